@@ -0,0 +1,9 @@
+#!/bin/bash
+
+export CLASSPATH=.
+for p in lib/*.jar; do
+	export CLASSPATH="$CLASSPATH:$p"
+done
+
+cp target/mapeditor-0.0.1.jar .
+java -cp "mapeditor-0.0.1.jar:$CLASSPATH" isogame.editor.MapRenderer "$@"
@@ -31,6 +31,44 @@ public class GlobalConstants {
 	public static final double ISO_VIEWPORTW = 1920;
 	public static final double ISO_VIEWPORTH = 1080;
 
+	// number of tiles beyond the edge of the viewport to keep in the scene
+	// graph when culling offscreen tiles
+	public static final double CULL_MARGIN = 2;
+
+	// size of a baked terrain chunk.  Each chunk covers this many tiles across
+	// and this many tiles down in iso space.
+	public static final int BAKE_CHUNK_TILES = 8;
+
+	// size of the chunks (in tiles across and down) used to hold the scene
+	// graph nodes for the tiles
+	public static final int NODE_CHUNK_TILES = 16;
+
+	// width and maximum height of a texture atlas page
+	public static final int ATLAS_SIZE = 2048;
+
+	// maximum number of tiles to prepare for other camera angles each frame
+	// when using RotationCache.ALL
+	public static final int ROTATION_PREBUILD_TILES = 64;
+
+	// default rate and catch up limit for SimulationClock
+	public static final double SIMULATION_RATE = 60;
+	public static final int SIMULATION_MAX_CATCHUP = 5;
+
+	// range of zoom factors supported by View, and the number of mipmap levels
+	// to generate for zoomed out views.  Each level is half the size of the
+	// previous one.
+	public static final double MIN_ZOOM = 0.125;
+	public static final double MAX_ZOOM = 2;
+	public static final int MIPMAP_LEVELS = 3;
+
+	// size of a terrain chunk in tiles (across and down), and the default
+	// number of chunks to keep in memory, for terrain loaded from chunk files
+	public static final int TERRAIN_CHUNK_SIZE = 64;
+	public static final int TERRAIN_CHUNK_BUDGET = 256;
+
+	// number of tiles decoded by each task when loading terrain from JSON
+	public static final int TILE_DECODE_RANGE = 4096;
+
 	// number of tile height scrolled in one second
 	public static final double SCROLL_SPEED = 8;
 }
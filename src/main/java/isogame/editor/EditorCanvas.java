@@ -20,6 +20,7 @@ package isogame.editor;
 
 import isogame.engine.CorruptDataException;
 import isogame.engine.Library;
+import isogame.engine.MapFile;
 import isogame.engine.MapPoint;
 import isogame.engine.MapView;
 import isogame.engine.Stage;
@@ -73,7 +74,8 @@ public class EditorCanvas extends MapView {
 			final FileChooser fc = new FileChooser();
 			fc.setTitle("Open map file");
 			fc.setInitialDirectory(dataDir);
-			fc.getExtensionFilters().addAll(new ExtensionFilter("Map Files", "*.map"));
+			fc.getExtensionFilters().addAll(
+				new ExtensionFilter("Map Files", "*.map", "*.mapb"));
 			final File r = fc.showOpenDialog(window);
 			if (r != null) {
 				try {
@@ -146,7 +148,11 @@ public class EditorCanvas extends MapView {
 			saveStageAs(dataDir);
 		} else {
 			try {
-				localLibrary.writeToStream(new FileOutputStream(stageFile), stage);
+				if (stageFile.getName().endsWith(".mapb")) {
+					MapFile.save(stageFile, localLibrary, stage);
+				} else {
+					localLibrary.writeToStream(new FileOutputStream(stageFile), stage);
+				}
 				saveThumbnail(dataDir);
 				saved.setValue(true);
 			} catch (final IOException e) {
@@ -168,14 +174,20 @@ public class EditorCanvas extends MapView {
 		final FileChooser fc = new FileChooser();
 		fc.setTitle("Save map file");
 		fc.setInitialDirectory(dataDir);
-		fc.getExtensionFilters().addAll(new ExtensionFilter("Map Files", "*.map"));
+		fc.getExtensionFilters().addAll(
+			new ExtensionFilter("Map Files", "*.map"),
+			new ExtensionFilter("Binary Map Files", "*.mapb"));
 		File r = fc.showSaveDialog(window);
 		if (r != null) {
-			// automatically append .map if the user didn't give an extension
+			// automatically append .map (or .mapb if the binary format was chosen)
+			// if the user didn't give an extension
 			final String name = r.getName();
 			if (name.lastIndexOf('.') == -1) {
+				final ExtensionFilter filter = fc.getSelectedExtensionFilter();
+				final boolean binary = filter != null &&
+					filter.getExtensions().contains("*.mapb");
 				final File p = r.getAbsoluteFile().getParentFile();
-				r = new File(p, name + ".map");
+				r = new File(p, name + (binary? ".mapb" : ".map"));
 			}
 			stageFile = r;
 			String n = r.getName();
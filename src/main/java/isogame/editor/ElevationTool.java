@@ -22,9 +22,12 @@ import isogame.engine.CliffTexture;
 import isogame.engine.MapPoint;
 import isogame.engine.SlopeType;
 import isogame.engine.Stage;
+import isogame.engine.StageInfo;
 import isogame.engine.Tile;
 import isogame.engine.View;
 
+import javafx.scene.control.Alert;
+
 public class ElevationTool extends Tool {
 	private final CliffTexture texture;
 	private final int de;
@@ -46,7 +49,13 @@ public class ElevationTool extends Tool {
 				stage.terrain.setTile(t.newElevation(
 					t.elevation, SlopeType.NONE, texture));
 			} else {
-				if (t.elevation + de >= 0) {
+				if (t.elevation + de > StageInfo.MAX_ELEVATION) {
+					final Alert d = new Alert(Alert.AlertType.ERROR);
+					d.setHeaderText("Cannot raise tile " + p);
+					d.setContentText("Tiles cannot be higher than elevation " +
+						StageInfo.MAX_ELEVATION);
+					d.show();
+				} else if (t.elevation + de >= 0) {
 					stage.terrain.setTile(t.newElevation(
 						t.elevation + de, slope, texture));
 				}
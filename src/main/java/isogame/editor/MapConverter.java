@@ -0,0 +1,76 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.editor;
+
+import isogame.engine.CorruptDataException;
+import isogame.engine.MapFile;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+
+/**
+ * Converts map files between the JSON format and the binary format.  The
+ * direction of the conversion is decided by the format of the input file.
+ * Assets are not loaded, so this does not need JavaFX.
+ *
+ * Usage: MapConverter IN OUT
+ * */
+public class MapConverter {
+	public static void main(final String[] args) {
+		if (args.length != 2) {
+			System.err.println("Usage: MapConverter IN OUT");
+			System.exit(1);
+		}
+
+		final File in = new File(args[0]);
+		final File out = new File(args[1]);
+
+		try {
+			if (MapFile.isMapFile(in)) {
+				try (PrintWriter w = new PrintWriter(new OutputStreamWriter(
+					new FileOutputStream(out), StandardCharsets.UTF_8))
+				) {
+					w.print(MapFile.toJSON(in));
+				}
+			} else {
+				try (Reader r = new BufferedReader(new InputStreamReader(
+					new FileInputStream(in), StandardCharsets.UTF_8))
+				) {
+					MapFile.fromJSON(r, out);
+				}
+			}
+		} catch (final IOException e) {
+			System.err.println("Cannot convert " + in + ": " + e.getMessage());
+			System.exit(1);
+		} catch (final CorruptDataException|JSONException e) {
+			System.err.println("Error in file " + in + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
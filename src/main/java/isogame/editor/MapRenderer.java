@@ -0,0 +1,293 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.editor;
+
+import isogame.engine.CameraAngle;
+import isogame.engine.Library;
+import isogame.engine.OffscreenRenderer;
+import isogame.engine.Stage;
+import isogame.engine.TilePrerenderer;
+import isogame.resource.DevelopmentResourceLocator;
+import isogame.resource.ResourceLocator;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.Optional;
+import javax.imageio.ImageIO;
+
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.Image;
+
+/**
+ * Renders maps to PNG files without opening the editor.  Loading, pixel
+ * conversion and PNG encoding run in parallel across maps.  Drawing has to
+ * happen on the JavaFX application thread, so it is done one piece at a time.
+ * No window is opened, but JavaFX still needs a display to start.
+ *
+ * Usage: MapRenderer --basedir=DIR [--angle=UL,LL,LR,UR] [--thumbs=DIR]
+ *   [--full=DIR] [--threads=N] FILE.map ...
+ *
+ * Thumbnails go to DIR/gfx/mapThumbs by default.  Full size images are only
+ * rendered if --full is given.  Full size images of big maps take a lot of
+ * memory, so the maps only render them in parallel while they fit in half of
+ * the heap.
+ * */
+public class MapRenderer extends Application {
+	private static final double THUMBW = 288d;
+	private static final double THUMBH = 162d;
+
+	// size of the pieces that full size images are rendered in
+	private static final int PIECE_SIZE = 2048;
+
+	// memory for images in progress, in units of 1024 pixels
+	private static final Semaphore imageBudget;
+	private static final int imageBudgetMax;
+	static {
+		final long kpixels = Runtime.getRuntime().maxMemory() / (2 * 4 * 1024);
+		imageBudgetMax = (int) Math.max(1, Math.min(Integer.MAX_VALUE, kpixels));
+		imageBudget = new Semaphore(imageBudgetMax);
+	}
+
+	public static void main(final String[] arguments) {
+		// the maps are loaded off the application thread, so the textures can't
+		// be prerendered on a canvas
+		TilePrerenderer.setSoftwareRendering(true);
+		Application.launch(arguments);
+	}
+
+	@Override
+	public void start(final javafx.stage.Stage primaryStage) {
+		final Map<String, String> args = getParameters().getNamed();
+		final List<String> files = getParameters().getUnnamed();
+
+		final String basedir = args.get("basedir");
+		if (basedir == null || files.isEmpty()) {
+			System.err.println("Usage: MapRenderer --basedir=DIR" +
+				" [--angle=UL,LL,LR,UR] [--thumbs=DIR] [--full=DIR]" +
+				" [--threads=N] FILE.map ...");
+			System.exit(1);
+		}
+
+		final File dataDir = new File(basedir);
+		final File thumbsDir = new File(args.getOrDefault("thumbs",
+			(new File(dataDir, "gfx/mapThumbs")).toString()));
+		final Optional<File> fullDir =
+			Optional.ofNullable(args.get("full")).map(s -> new File(s));
+
+		final Set<CameraAngle> angles = EnumSet.noneOf(CameraAngle.class);
+		final int threads;
+		try {
+			for (final String a : args.getOrDefault("angle", "UL").split(",")) {
+				angles.add(CameraAngle.valueOf(a.trim().toUpperCase()));
+			}
+			threads = Integer.parseInt(args.getOrDefault("threads",
+				Integer.toString(Runtime.getRuntime().availableProcessors())));
+		} catch (final IllegalArgumentException e) {
+			System.err.println("Bad argument: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		// the application thread must stay free to do the drawing
+		final Thread main = new Thread(() -> {
+			final boolean ok = renderAll(
+				dataDir, files, angles, thumbsDir, fullDir, Math.max(1, threads));
+			Platform.exit();
+			System.exit(ok? 0 : 1);
+		}, "MapRenderer");
+		main.setDaemon(true);
+		main.start();
+	}
+
+	/**
+	 * Render all the maps.
+	 * @return true if every map was rendered successfully
+	 * */
+	private static boolean renderAll(
+		final File dataDir,
+		final List<String> files,
+		final Set<CameraAngle> angles,
+		final File thumbsDir,
+		final Optional<File> fullDir,
+		final int threads
+	) {
+		final ResourceLocator loc = new DevelopmentResourceLocator(dataDir);
+
+		final Library global;
+		try {
+			global = Library.fromFile(loc.globalLibrary(),
+				loc.globalLibraryFilename(), loc, null, false);
+		} catch (final Exception e) {
+			System.err.println("Cannot load global library: " + e.getMessage());
+			return false;
+		}
+
+		thumbsDir.mkdirs();
+		fullDir.ifPresent(d -> d.mkdirs());
+
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final List<Future<Void>> jobs = new ArrayList<>();
+		for (final String file : files) {
+			jobs.add(pool.submit(() -> {
+				renderMap(new File(file), loc, global, angles, thumbsDir, fullDir);
+				return null;
+			}));
+		}
+		pool.shutdown();
+
+		boolean ok = true;
+		for (int i = 0; i < jobs.size(); i++) {
+			try {
+				jobs.get(i).get();
+				System.out.println("Rendered " + files.get(i));
+			} catch (final ExecutionException e) {
+				System.err.println("Cannot render " + files.get(i) + ": " +
+					e.getCause().toString());
+				ok = false;
+			} catch (final InterruptedException e) {
+				return false;
+			}
+		}
+
+		return ok;
+	}
+
+	/**
+	 * Load a map and render it from each of the requested camera angles.
+	 * */
+	private static void renderMap(
+		final File file,
+		final ResourceLocator loc,
+		final Library global,
+		final Set<CameraAngle> angles,
+		final File thumbsDir,
+		final Optional<File> fullDir
+	) throws Exception {
+		final Stage stage = Stage.fromFile(file, loc, global);
+		String name = stage.name;
+		if (name == null) name = file.getName().replaceFirst("\\.map$", "");
+
+		for (final CameraAngle angle : angles) {
+			final String outName = angle == CameraAngle.UL?
+				name + ".png" : name + "-" + angle.name() + ".png";
+			final Rectangle2D bounds = OffscreenRenderer.getBounds(stage, angle);
+
+			final double thumbScale = Math.min(
+				THUMBW / bounds.getWidth(), THUMBH / bounds.getHeight());
+			renderPNG(stage, angle, bounds, thumbScale, new File(thumbsDir, outName));
+
+			if (fullDir.isPresent()) {
+				renderPNG(stage, angle, bounds, 1.0, new File(fullDir.get(), outName));
+			}
+		}
+	}
+
+	/**
+	 * Render a stage to a PNG file.  This waits until there is enough memory
+	 * for the image, so that several large images aren't held at once.
+	 * */
+	private static void renderPNG(
+		final Stage stage,
+		final CameraAngle angle,
+		final Rectangle2D bounds,
+		final double scale,
+		final File out
+	) throws IOException, InterruptedException, ExecutionException {
+		final long w = (long) Math.ceil(bounds.getWidth() * scale);
+		final long h = (long) Math.ceil(bounds.getHeight() * scale);
+		final int cost = (int) Math.min(imageBudgetMax, ((w * h) / 1024) + 1);
+
+		imageBudget.acquire(cost);
+		try {
+			writePNG(renderImage(stage, angle, bounds, scale), out);
+		} finally {
+			imageBudget.release(cost);
+		}
+	}
+
+	/**
+	 * Render a stage into a single image, one piece at a time.
+	 * */
+	private static BufferedImage renderImage(
+		final Stage stage,
+		final CameraAngle angle,
+		final Rectangle2D bounds,
+		final double scale
+	) throws InterruptedException, ExecutionException {
+		final int w = (int) Math.ceil(bounds.getWidth() * scale);
+		final int h = (int) Math.ceil(bounds.getHeight() * scale);
+		final BufferedImage r = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+		final Graphics2D g = r.createGraphics();
+
+		try {
+			for (int y = 0; y < h; y += PIECE_SIZE) {
+				for (int x = 0; x < w; x += PIECE_SIZE) {
+					final Rectangle2D area = new Rectangle2D(
+						bounds.getMinX() + (x / scale),
+						bounds.getMinY() + (y / scale),
+						Math.min(PIECE_SIZE, w - x) / scale,
+						Math.min(PIECE_SIZE, h - y) / scale);
+
+					final Image piece = onFXThread(() ->
+						OffscreenRenderer.render(stage, angle, area, scale));
+					g.drawImage(SwingFXUtils.fromFXImage(piece, null), x, y, null);
+				}
+			}
+		} finally {
+			g.dispose();
+		}
+
+		return r;
+	}
+
+	private static void writePNG(final BufferedImage img, final File out)
+		throws IOException
+	{
+		if (!ImageIO.write(img, "png", out))
+			throw new IOException("No PNG writer available");
+	}
+
+	/**
+	 * Run a job on the JavaFX application thread and wait for the result.
+	 * */
+	private static <T> T onFXThread(final Callable<T> job)
+		throws InterruptedException, ExecutionException
+	{
+		final FutureTask<T> task = new FutureTask<>(job);
+		Platform.runLater(task);
+		return task.get();
+	}
+}
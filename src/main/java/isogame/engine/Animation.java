@@ -19,10 +19,11 @@ along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
 package isogame.engine;
 
 import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
-import javafx.collections.ObservableList;
 import javafx.geometry.Point2D;
-import javafx.scene.Node;
+import javafx.scene.canvas.GraphicsContext;
 import static isogame.GlobalConstants.TILEW;
 
 public abstract class Animation {
@@ -51,12 +52,30 @@ public abstract class Animation {
 	 * @param t the current time
 	 * */
 	public void updateSceneGraph(
-		final ObservableList<Node> graph,
+		final SceneGraphIndex graph,
 		final StageInfo terrain,
 		final CameraAngle angle,
 		final long t
 	) {
-		sprite.updateSceneGraph(graph, terrain, angle, t);
+		sprite.placeSceneGraph(graph, terrain, angle, t);
+	}
+
+	/**
+	 * Render the sprite onto a canvas
+	 * @param schedule Schedules a drawing operation to run immediately after a
+	 * particular tile has been drawn
+	 * @param terrain the terrain we're rendering onto
+	 * @param angle the current camera angle
+	 * @param t the current time
+	 * */
+	public void render(
+		final BiConsumer<MapPoint, Consumer<GraphicsContext>> schedule,
+		final StageInfo terrain,
+		final CameraAngle angle,
+		final long t
+	) {
+		final MapPoint p = sprite.getPos();
+		sprite.renderAt(schedule, p, terrain.correctedSpriteIsoCoord(p, angle), angle, t);
 	}
 }
 
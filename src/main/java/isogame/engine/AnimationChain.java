@@ -21,9 +21,10 @@ package isogame.engine;
 import java.util.LinkedList;
 import java.util.Optional;
 import java.util.Queue;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
-import javafx.collections.ObservableList;
-import javafx.scene.Node;
+import javafx.scene.canvas.GraphicsContext;
 
 public class AnimationChain {
 	private Runnable onFinished = () -> {};
@@ -56,7 +57,7 @@ public class AnimationChain {
 	 * Update the animation
 	 * @return true if the entire animation chain is finished
 	 * */
-	private boolean updateAnimation(
+	boolean updateAnimation(
 		final StageInfo terrain, final long t
 	) {
 		if (!activeAnimation.isPresent()) {
@@ -83,7 +84,7 @@ public class AnimationChain {
 	 * Update the scene graph taking into account all animations
 	 * */
 	public void updateSceneGraph(
-		final ObservableList<Node> graph,
+		final SceneGraphIndex graph,
 		final StageInfo terrain,
 		final CameraAngle angle,
 		final long t
@@ -96,6 +97,23 @@ public class AnimationChain {
 		}
 	}
 
+	/**
+	 * Render the sprite onto a canvas taking into account all animations
+	 * */
+	public void render(
+		final BiConsumer<MapPoint, Consumer<GraphicsContext>> schedule,
+		final StageInfo terrain,
+		final CameraAngle angle,
+		final long t
+	) {
+		if (updateAnimation(terrain, t)) {
+			sprite.render(schedule, terrain, angle, t);
+		} else {
+			activeAnimation.ifPresent(a ->
+				a.render(schedule, terrain, angle, t));
+		}
+	}
+
 	public void queueAnimation(final Animation a) {
 		queuedAnimations.add(a);
 	}
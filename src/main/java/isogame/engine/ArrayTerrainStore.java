@@ -0,0 +1,99 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+/**
+ * Terrain stored in parallel arrays in row major order, so a map costs only
+ * a few bytes per tile.
+ * */
+final class ArrayTerrainStore extends TerrainStore {
+	private final byte[] elevation;
+	private final byte[] slope;
+	private final short[] texture;
+	private final short[] cliff;
+	private final byte[] flags;
+
+	public ArrayTerrainStore(final int w, final int h) {
+		super(w, h,
+			new Palette<>(Short.MAX_VALUE), new Palette<>(Short.MAX_VALUE));
+		this.elevation = new byte[w * h];
+		this.slope = new byte[w * h];
+		this.texture = new short[w * h];
+		this.cliff = new short[w * h];
+		this.flags = new byte[w * h];
+	}
+
+	/**
+	 * Make a store from arrays that have already been filled in.  The arrays
+	 * are used directly, not copied.
+	 * */
+	ArrayTerrainStore(
+		final int w, final int h,
+		final Palette<TerrainTexture> textures,
+		final Palette<CliffTexture> cliffTextures,
+		final byte[] elevation, final byte[] slope,
+		final short[] texture, final short[] cliff, final byte[] flags
+	) {
+		super(w, h, textures, cliffTextures);
+		this.elevation = elevation;
+		this.slope = slope;
+		this.texture = texture;
+		this.cliff = cliff;
+		this.flags = flags;
+	}
+
+	@Override public int elevation(final int x, final int y) {
+		return elevation[(y * w) + x];
+	}
+
+	@Override public int slope(final int x, final int y) {
+		return slope[(y * w) + x];
+	}
+
+	@Override public int texture(final int x, final int y) {
+		return texture[(y * w) + x];
+	}
+
+	@Override public int cliff(final int x, final int y) {
+		return cliff[(y * w) + x];
+	}
+
+	@Override public int flags(final int x, final int y) {
+		return flags[(y * w) + x];
+	}
+
+	@Override public void set(
+		final int x, final int y,
+		final int elevation, final int slope,
+		final int texture, final int cliff, final int flags
+	) {
+		final int i = (y * w) + x;
+		this.elevation[i] = (byte) elevation;
+		this.slope[i] = (byte) slope;
+		this.texture[i] = (short) texture;
+		this.cliff[i] = (short) cliff;
+		this.flags[i] = (byte) flags;
+	}
+
+	@Override public int maxElevation() {
+		int r = 0;
+		for (final byte e : elevation) r = Math.max(r, e);
+		return r;
+	}
+}
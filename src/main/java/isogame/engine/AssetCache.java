@@ -0,0 +1,62 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A thread safe cache in front of the sprite lookups in a library, so that
+ * the tasks that make a map's sprites in parallel can resolve sprite ids
+ * without going through the library's chain of parents every time.  The library must not be
+ * modified while the cache is in use.
+ * */
+final class AssetCache {
+	@FunctionalInterface
+	interface Lookup<T> {
+		public T get(final String id) throws CorruptDataException;
+	}
+
+	private final Library lib;
+
+	private final Map<String, SpriteInfo> sprites = new ConcurrentHashMap<>();
+
+	public AssetCache(final Library lib) {
+		this.lib = lib;
+	}
+
+	public SpriteInfo getSprite(final String id) throws CorruptDataException {
+		return lookup(sprites, id, lib::getSprite);
+	}
+
+	/**
+	 * Two threads may look up the same id at once, but they get the same
+	 * object from the library so it doesn't matter which one is cached.
+	 * */
+	private static <T> T lookup(
+		final Map<String, T> cache, final String id, final Lookup<T> lookup
+	) throws CorruptDataException {
+		final T r = cache.get(id);
+		if (r != null) return r;
+
+		final T x = lookup.get(id);
+		cache.putIfAbsent(id, x);
+		return x;
+	}
+}
@@ -0,0 +1,138 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import javafx.geometry.Rectangle2D;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import static isogame.GlobalConstants.MIPMAP_LEVELS;
+
+/**
+ * A rectangular part of an image, usually one entry in a texture atlas.  The
+ * mipmaps of a region are the same part of the mipmaps of the whole image.
+ * */
+public final class AtlasRegion {
+	public final Image image;
+	public final Rectangle2D viewport;
+
+	// the mipmaps of the whole image.  Null for regions that are mipmaps.
+	private final MipChain chain;
+
+	// smaller versions of this region, made on demand
+	private AtlasRegion[] mips = null;
+
+	/**
+	 * A region covering an entire image.
+	 * */
+	public AtlasRegion(final Image image) {
+		this(image, new Rectangle2D(0, 0, image.getWidth(), image.getHeight()));
+	}
+
+	public AtlasRegion(final Image image, final Rectangle2D viewport) {
+		this(image, viewport, new MipChain(image));
+	}
+
+	/**
+	 * @param chain The mipmaps of the image, shared by all its regions
+	 * */
+	AtlasRegion(
+		final Image image, final Rectangle2D viewport, final MipChain chain
+	) {
+		this.image = image;
+		this.viewport = viewport;
+		this.chain = chain;
+	}
+
+	public double getWidth() {
+		return viewport.getWidth();
+	}
+
+	public double getHeight() {
+		return viewport.getHeight();
+	}
+
+	/**
+	 * Make a node that displays this region.
+	 * */
+	public ImageView makeView() {
+		final ImageView r = new ImageView(image);
+		r.setViewport(viewport);
+		return r;
+	}
+
+	/**
+	 * Get a mipmap of this region.
+	 * @param level The mipmap level.  Level 0 is this region.
+	 * */
+	public synchronized AtlasRegion getMip(final int level) {
+		if (level <= 0 || chain == null) return this;
+		if (mips == null) mips = new AtlasRegion[MIPMAP_LEVELS + 1];
+
+		final int l = Math.min(level, MIPMAP_LEVELS);
+		if (mips[l] == null) {
+			final double s = MipMap.scale(l);
+			mips[l] = new AtlasRegion(chain.get(l), new Rectangle2D(
+				viewport.getMinX() * s, viewport.getMinY() * s,
+				Math.ceil(viewport.getWidth() * s),
+				Math.ceil(viewport.getHeight() * s)), null);
+		}
+		return mips[l];
+	}
+
+	/**
+	 * Make a node that displays a mipmap of this region at the size of this
+	 * region.
+	 * */
+	public ImageView makeView(final int level) {
+		final ImageView r = getMip(level).makeView();
+		if (level > 0) {
+			r.setFitWidth(getWidth());
+			r.setFitHeight(getHeight());
+		}
+		return r;
+	}
+
+	/**
+	 * Draw this region onto a canvas.
+	 * @param x The x coordinate of the top left corner
+	 * @param y The y coordinate of the top left corner
+	 * */
+	public void draw(final GraphicsContext cx, final double x, final double y) {
+		cx.drawImage(image,
+			viewport.getMinX(), viewport.getMinY(),
+			viewport.getWidth(), viewport.getHeight(),
+			x, y, viewport.getWidth(), viewport.getHeight());
+	}
+
+	/**
+	 * Draw a mipmap of this region onto a canvas, at the size of this region.
+	 * @param x The x coordinate of the top left corner
+	 * @param y The y coordinate of the top left corner
+	 * */
+	public void draw(
+		final GraphicsContext cx, final double x, final double y, final int level
+	) {
+		final AtlasRegion mip = getMip(level);
+		cx.drawImage(mip.image,
+			mip.viewport.getMinX(), mip.viewport.getMinY(),
+			mip.viewport.getWidth(), mip.viewport.getHeight(),
+			x, y, viewport.getWidth(), viewport.getHeight());
+	}
+}
@@ -0,0 +1,201 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javafx.geometry.Point2D;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.Node;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+
+import static isogame.GlobalConstants.BAKE_CHUNK_TILES;
+import static isogame.GlobalConstants.TILEH;
+import static isogame.GlobalConstants.TILEW;
+import static isogame.engine.TilePrerenderer.OFFSETX;
+import static isogame.engine.TilePrerenderer.OFFSETY;
+
+/**
+ * Composites the flat ground tiles of a stage into a small number of large
+ * images for a single camera angle.
+ *
+ * Ground tiles (elevation 0 and no slope) can never obscure anything else on
+ * the map, so they can all be drawn before any other tiles or sprites.  This
+ * lets us replace the ground tiles with a handful of chunks without upsetting
+ * the z-order.  Chunks are fixed size rectangles in iso space, and are baked
+ * lazily the first time they are needed.  Chunks with no ground tiles in them
+ * have no image.
+ * */
+class BakedTerrain {
+	public static final double CHUNKW = BAKE_CHUNK_TILES * TILEW;
+	public static final double CHUNKH = BAKE_CHUNK_TILES * TILEH;
+
+	private final StageInfo terrain;
+	private final CameraAngle angle;
+	private final int mipLevel;
+
+	private final Map<MapPoint, ImageView> chunks = new HashMap<>();
+	private final Set<MapPoint> stale = new HashSet<>();
+
+	private final Canvas canvas;
+	private final SnapshotParameters sp = new SnapshotParameters();
+
+	/**
+	 * @param mipLevel The mipmap level.  Chunks are baked at the resolution of
+	 * this level and scaled up to their full size in iso space.
+	 * */
+	public BakedTerrain(
+		final StageInfo terrain, final CameraAngle angle, final int mipLevel
+	) {
+		this.terrain = terrain;
+		this.angle = angle;
+		this.mipLevel = mipLevel;
+		final double scale = MipMap.scale(mipLevel);
+		canvas = new Canvas(Math.ceil(CHUNKW * scale), Math.ceil(CHUNKH * scale));
+		sp.setFill(Color.TRANSPARENT);
+	}
+
+	/**
+	 * Determine if a tile is drawn as part of the baked terrain.
+	 * */
+	public static boolean isBaked(final Tile tile) {
+		return tile.elevation == 0 && tile.slope == SlopeType.NONE;
+	}
+
+	/**
+	 * Get the bounding box of a tile's prerendered image in iso space.
+	 * */
+	private Rectangle2D tileBounds(final Tile tile) {
+		// the prerendered images have a 4 pixel border around the tile
+		final Point2D l = terrain.toIsoCoord(tile.pos, angle);
+		return new Rectangle2D(l.getX() - OFFSETX, l.getY() - OFFSETY,
+			TILEW + 8, TILEH + OFFSETY + 4);
+	}
+
+	/**
+	 * Get the chunks that intersect a rectangle in iso space.
+	 * */
+	private List<MapPoint> chunksIn(final Rectangle2D r) {
+		final int x0 = (int) Math.floor(r.getMinX() / CHUNKW);
+		final int x1 = (int) Math.floor(r.getMaxX() / CHUNKW);
+		final int y0 = (int) Math.floor(r.getMinY() / CHUNKH);
+		final int y1 = (int) Math.floor(r.getMaxY() / CHUNKH);
+
+		final List<MapPoint> result = new ArrayList<>();
+		for (int y = y0; y <= y1; y++) {
+			for (int x = x0; x <= x1; x++) result.add(new MapPoint(x, y));
+		}
+		return result;
+	}
+
+	/**
+	 * Get the nodes for all the chunks that intersect an area, baking any
+	 * chunks that are missing or out of date.  Chunks outside the area are
+	 * discarded to save memory.
+	 * @param area The area of iso space to cover
+	 * */
+	public List<Node> getChunks(final Rectangle2D area) {
+		final List<MapPoint> live = chunksIn(area);
+		chunks.keySet().retainAll(new HashSet<>(live));
+
+		final List<Node> r = new ArrayList<>();
+		for (final MapPoint c : live) {
+			ImageView view = chunks.get(c);
+			if (view == null) {
+				view = new ImageView();
+				view.setX(c.x * CHUNKW);
+				view.setY(c.y * CHUNKH);
+				view.setFitWidth(CHUNKW);
+				view.setFitHeight(CHUNKH);
+				chunks.put(c, view);
+				stale.add(c);
+			}
+			r.add(view);
+		}
+
+		update();
+		return r;
+	}
+
+	/**
+	 * Mark the chunks covering a tile as out of date.
+	 * */
+	public void invalidate(final Tile tile) {
+		stale.addAll(chunksIn(tileBounds(tile)));
+	}
+
+	/**
+	 * Rebake any chunks that are out of date.
+	 * */
+	public void update() {
+		for (final MapPoint c : stale) {
+			final ImageView view = chunks.get(c);
+			if (view != null) view.setImage(bake(c));
+		}
+		stale.clear();
+	}
+
+	/**
+	 * Render a single chunk.
+	 * @return null if there are no ground tiles in the chunk
+	 * */
+	private WritableImage bake(final MapPoint c) {
+		final Rectangle2D r = new Rectangle2D(c.x * CHUNKW, c.y * CHUNKH, CHUNKW, CHUNKH);
+
+		// find all the ground tiles that overlap this chunk
+		final Rectangle2D search = new Rectangle2D(
+			r.getMinX() - TILEW, r.getMinY() - TILEH,
+			r.getWidth() + (2 * TILEW), r.getHeight() + (2 * TILEH));
+
+		final List<Tile> tiles = new ArrayList<>();
+		for (final Tile tile : terrain.tilesUnder(search, angle)) {
+			if (isBaked(tile) && tileBounds(tile).intersects(r)) tiles.add(tile);
+		}
+		if (tiles.isEmpty()) return null;
+
+		// the prerendered tiles overlap slightly, so draw them from the back to
+		// the front, just like the scene graph does.
+		tiles.sort(Comparator.comparingInt(tile -> terrain.drawOrder(tile.pos, angle)));
+
+		final GraphicsContext cx = canvas.getGraphicsContext2D();
+		final double scale = MipMap.scale(mipLevel);
+		cx.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+		for (final Tile tile : tiles) {
+			final Point2D l = terrain.toIsoCoord(tile.pos, angle);
+			cx.save();
+			cx.scale(scale, scale);
+			cx.translate(l.getX() - r.getMinX(), l.getY() - r.getMinY());
+			tile.render(cx, angle, mipLevel);
+			cx.restore();
+		}
+
+		return canvas.snapshot(sp, null);
+	}
+}
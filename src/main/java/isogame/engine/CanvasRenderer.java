@@ -0,0 +1,69 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import javafx.geometry.Rectangle2D;
+import javafx.scene.Node;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.transform.Affine;
+
+/**
+ * Renders a stage by drawing the visible part of it onto a canvas every
+ * frame.  The cost of a frame depends only on what is visible, and there is
+ * no scene graph to maintain.
+ * */
+public class CanvasRenderer implements StageRenderer {
+	private final Canvas canvas = new Canvas();
+	private final Affine identity = new Affine();
+	private final Affine canvasTransform = new Affine();
+
+	public CanvasRenderer() {
+		canvas.getTransforms().add(canvasTransform);
+	}
+
+	@Override
+	public Node getNode() {
+		return canvas;
+	}
+
+	@Override
+	public void render(final Stage stage, final View view, final long t) {
+		final Rectangle2D v = view.getVisibleArea();
+
+		// the canvas never gets bigger than it is at zoom 1, so zooming out
+		// doesn't cost any more fill rate
+		final double zoom = Math.min(1, view.getZoom());
+		final double w = Math.ceil(v.getWidth() * zoom);
+		final double h = Math.ceil(v.getHeight() * zoom);
+		if (canvas.getWidth() != w) canvas.setWidth(w);
+		if (canvas.getHeight() != h) canvas.setHeight(h);
+		canvasTransform.setToTransform(1 / zoom, 0, v.getMinX(), 0, 1 / zoom, v.getMinY());
+
+		final GraphicsContext cx = canvas.getGraphicsContext2D();
+		cx.setTransform(identity);
+		cx.clearRect(0, 0, w, h);
+		cx.scale(zoom, zoom);
+		cx.translate(-v.getMinX(), -v.getMinY());
+
+		stage.setMetrics(view.metrics);
+		stage.setMipLevel(view.getMipLevel());
+		stage.render(cx, view.isDebug.get(), v, view.getCameraAngle(), t);
+	}
+}
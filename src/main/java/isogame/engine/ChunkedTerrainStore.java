@@ -0,0 +1,429 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Terrain stored in a chunk file and loaded on demand, for worlds too big to
+ * keep in memory.  The map is divided into square chunks.  Chunks are loaded
+ * the first time one of their tiles is used, and the least recently used
+ * chunks are evicted when there are more than a fixed number in memory.
+ * Pinned chunks are never evicted.  Modified chunks are written back to the
+ * file when they are evicted or flushed.
+ *
+ * File format, all big endian:
+ *   int magic, int version, int w, int h, int chunk size, int max elevation
+ *   the chunks in row major order, each one chunk size squared tiles:
+ *     byte elevation[], byte slope[], short texture[], short cliff[], byte flags[]
+ *   int n, n terrain texture ids (modified UTF-8)
+ *   int n, n cliff texture ids
+ * */
+final class ChunkedTerrainStore extends TerrainStore {
+	private static final int MAGIC = 0x49534F43;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+	private static final int BYTES_PER_TILE = 7;
+
+	private static final class Chunk {
+		final int index;
+		final byte[] elevation;
+		final byte[] slope;
+		final short[] texture;
+		final short[] cliff;
+		final byte[] flags;
+
+		int pins = 0;
+		long lastUse = 0;
+		boolean dirty = false;
+
+		Chunk(final int index, final int n) {
+			this.index = index;
+			this.elevation = new byte[n];
+			this.slope = new byte[n];
+			this.texture = new short[n];
+			this.cliff = new short[n];
+			this.flags = new byte[n];
+		}
+	}
+
+	private final FileChannel file;
+	private final int chunkSize;
+	private final int chunksW;
+	private final int budget;
+	private final Chunk[] chunks;
+	private final List<Chunk> loaded = new ArrayList<>();
+
+	private long clock = 0;
+	private int maxElevation;
+	private boolean headerDirty = false;
+
+	// number of palette entries in the file
+	private int paletteSize;
+
+	private ChunkedTerrainStore(
+		final FileChannel file,
+		final int w, final int h,
+		final int chunkSize,
+		final int maxElevation,
+		final int budget,
+		final Palette<TerrainTexture> textures,
+		final Palette<CliffTexture> cliffTextures
+	) {
+		super(w, h, textures, cliffTextures);
+		this.file = file;
+		this.chunkSize = chunkSize;
+		this.chunksW = (w + chunkSize - 1) / chunkSize;
+		this.chunks = new Chunk[chunksW * ((h + chunkSize - 1) / chunkSize)];
+		this.maxElevation = maxElevation;
+		this.budget = Math.max(1, budget);
+		this.paletteSize = textures.size() + cliffTextures.size();
+	}
+
+	/**
+	 * Open a chunk file.
+	 * @param lib Where to find the textures
+	 * @param budget The number of chunks to keep in memory
+	 * */
+	public static ChunkedTerrainStore open(
+		final Path path, final Library lib, final int budget
+	) throws IOException, CorruptDataException {
+		final FileChannel file = FileChannel.open(path,
+			StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		try {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(file, header, 0);
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION)
+				throw new CorruptDataException("Not a terrain chunk file " + path);
+
+			final int w = header.getInt();
+			final int h = header.getInt();
+			final int chunkSize = header.getInt();
+			final int maxElevation = header.getInt();
+			if (w <= 0 || h <= 0 || chunkSize <= 0)
+				throw new CorruptDataException("Invalid terrain chunk file " + path);
+
+			final long paletteOffset = paletteOffset(w, h, chunkSize);
+			if (file.size() < paletteOffset)
+				throw new CorruptDataException("Truncated terrain chunk file " + path);
+
+			final ByteBuffer paletteData =
+				ByteBuffer.allocate((int) (file.size() - paletteOffset));
+			readFully(file, paletteData, paletteOffset);
+			final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(paletteData.array()));
+
+			final Palette<TerrainTexture> textures = new Palette<>(Short.MAX_VALUE);
+			final int nTextures = in.readInt();
+			for (int i = 0; i < nTextures; i++) textures.indexOf(lib.getTerrain(in.readUTF()));
+
+			final Palette<CliffTexture> cliffTextures = new Palette<>(Short.MAX_VALUE);
+			final int nCliffs = in.readInt();
+			for (int i = 0; i < nCliffs; i++) cliffTextures.indexOf(lib.getCliffTexture(in.readUTF()));
+
+			return new ChunkedTerrainStore(file, w, h, chunkSize,
+				maxElevation, budget, textures, cliffTextures);
+
+		} catch (final IOException|CorruptDataException|RuntimeException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Write terrain to a new chunk file.
+	 * */
+	public static void write(
+		final TerrainStore terrain, final Path path, final int chunkSize
+	) throws IOException {
+		try (FileChannel file = FileChannel.open(path,
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING)
+		) {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION)
+				.putInt(terrain.w).putInt(terrain.h)
+				.putInt(chunkSize).putInt(terrain.maxElevation());
+			header.flip();
+			writeFully(file, header, 0);
+
+			final int chunksW = (terrain.w + chunkSize - 1) / chunkSize;
+			final int chunksH = (terrain.h + chunkSize - 1) / chunkSize;
+			final Chunk chunk = new Chunk(0, chunkSize * chunkSize);
+			for (int cy = 0; cy < chunksH; cy++) {
+				for (int cx = 0; cx < chunksW; cx++) {
+					for (int y = 0; y < chunkSize; y++) {
+						for (int x = 0; x < chunkSize; x++) {
+							final int mx = (cx * chunkSize) + x;
+							final int my = (cy * chunkSize) + y;
+							final int i = (y * chunkSize) + x;
+							final boolean in = mx < terrain.w && my < terrain.h;
+							chunk.elevation[i] = (byte) (in? terrain.elevation(mx, my) : 0);
+							chunk.slope[i] = (byte) (in? terrain.slope(mx, my) : 0);
+							chunk.texture[i] = (short) (in? terrain.texture(mx, my) : 0);
+							chunk.cliff[i] = (short) (in? terrain.cliff(mx, my) : -1);
+							chunk.flags[i] = (byte) (in? terrain.flags(mx, my) : 0);
+						}
+					}
+					writeChunk(file, chunk,
+						chunkOffset((cy * chunksW) + cx, chunkSize), chunkSize);
+				}
+			}
+
+			writePalettes(file, terrain,
+				paletteOffset(terrain.w, terrain.h, chunkSize));
+		}
+	}
+
+	private static long chunkOffset(final int index, final int chunkSize) {
+		return HEADER_SIZE + ((long) index) * chunkSize * chunkSize * BYTES_PER_TILE;
+	}
+
+	private static long paletteOffset(final int w, final int h, final int chunkSize) {
+		final int n = ((w + chunkSize - 1) / chunkSize) * ((h + chunkSize - 1) / chunkSize);
+		return chunkOffset(n, chunkSize);
+	}
+
+	private static void writePalettes(
+		final FileChannel file, final TerrainStore terrain, final long offset
+	) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(terrain.textures.size());
+		for (int i = 0; i < terrain.textures.size(); i++)
+			out.writeUTF(terrain.textures.get(i).id);
+		out.writeInt(terrain.cliffTextures.size());
+		for (int i = 0; i < terrain.cliffTextures.size(); i++)
+			out.writeUTF(terrain.cliffTextures.get(i).id);
+		out.flush();
+
+		writeFully(file, ByteBuffer.wrap(bytes.toByteArray()), offset);
+		file.truncate(offset + bytes.size());
+	}
+
+	private static void writeChunk(
+		final FileChannel file, final Chunk chunk,
+		final long offset, final int chunkSize
+	) throws IOException {
+		final int n = chunkSize * chunkSize;
+		final ByteBuffer buffer = ByteBuffer.allocate(n * BYTES_PER_TILE);
+		buffer.put(chunk.elevation);
+		buffer.put(chunk.slope);
+		buffer.asShortBuffer().put(chunk.texture);
+		buffer.position(buffer.position() + (2 * n));
+		buffer.asShortBuffer().put(chunk.cliff);
+		buffer.position(buffer.position() + (2 * n));
+		buffer.put(chunk.flags);
+		buffer.flip();
+		writeFully(file, buffer, offset);
+	}
+
+	private static void readFully(
+		final FileChannel file, final ByteBuffer buffer, final long offset
+	) throws IOException {
+		long p = offset;
+		while (buffer.hasRemaining()) {
+			final int n = file.read(buffer, p);
+			if (n < 0) throw new IOException("Unexpected end of terrain chunk file");
+			p += n;
+		}
+	}
+
+	private static void writeFully(
+		final FileChannel file, final ByteBuffer buffer, final long offset
+	) throws IOException {
+		long p = offset;
+		while (buffer.hasRemaining()) p += file.write(buffer, p);
+	}
+
+	/**
+	 * Get the chunk that contains a tile, loading it if necessary.
+	 * */
+	private Chunk chunk(final int x, final int y) {
+		final int i = ((y / chunkSize) * chunksW) + (x / chunkSize);
+		Chunk c = chunks[i];
+		if (c == null) c = load(i);
+		c.lastUse = ++clock;
+		return c;
+	}
+
+	private int offset(final int x, final int y) {
+		return ((y % chunkSize) * chunkSize) + (x % chunkSize);
+	}
+
+	private Chunk load(final int index) {
+		try {
+			while (loaded.size() >= budget && evictOne());
+
+			final int n = chunkSize * chunkSize;
+			final ByteBuffer buffer = ByteBuffer.allocate(n * BYTES_PER_TILE);
+			readFully(file, buffer, chunkOffset(index, chunkSize));
+			buffer.flip();
+
+			final Chunk c = new Chunk(index, n);
+			buffer.get(c.elevation);
+			buffer.get(c.slope);
+			buffer.asShortBuffer().get(c.texture);
+			buffer.position(buffer.position() + (2 * n));
+			buffer.asShortBuffer().get(c.cliff);
+			buffer.position(buffer.position() + (2 * n));
+			buffer.get(c.flags);
+
+			for (int i = 0; i < n; i++) {
+				if (c.slope[i] < 0 || c.slope[i] >= SlopeType.values().length ||
+					c.texture[i] < 0 || c.texture[i] >= textures.size() ||
+					c.cliff[i] < -1 || c.cliff[i] >= cliffTextures.size()
+				) {
+					throw new IOException("Corrupt terrain chunk " + index);
+				}
+			}
+
+			chunks[index] = c;
+			loaded.add(c);
+			return c;
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Evict the least recently used chunk that isn't pinned.
+	 * @return false if every chunk is pinned
+	 * */
+	private boolean evictOne() throws IOException {
+		int lru = -1;
+		for (int i = 0; i < loaded.size(); i++) {
+			final Chunk c = loaded.get(i);
+			if (c.pins == 0 && (lru == -1 || c.lastUse < loaded.get(lru).lastUse)) lru = i;
+		}
+		if (lru == -1) return false;
+
+		final Chunk c = loaded.get(lru);
+		if (c.dirty) writeChunk(file, c, chunkOffset(c.index, chunkSize), chunkSize);
+		chunks[c.index] = null;
+		loaded.set(lru, loaded.get(loaded.size() - 1));
+		loaded.remove(loaded.size() - 1);
+		return true;
+	}
+
+	@Override public int elevation(final int x, final int y) {
+		return chunk(x, y).elevation[offset(x, y)];
+	}
+
+	@Override public int slope(final int x, final int y) {
+		return chunk(x, y).slope[offset(x, y)];
+	}
+
+	@Override public int texture(final int x, final int y) {
+		return chunk(x, y).texture[offset(x, y)];
+	}
+
+	@Override public int cliff(final int x, final int y) {
+		return chunk(x, y).cliff[offset(x, y)];
+	}
+
+	@Override public int flags(final int x, final int y) {
+		return chunk(x, y).flags[offset(x, y)];
+	}
+
+	@Override public void set(
+		final int x, final int y,
+		final int elevation, final int slope,
+		final int texture, final int cliff, final int flags
+	) {
+		final Chunk c = chunk(x, y);
+		final int i = offset(x, y);
+		c.elevation[i] = (byte) elevation;
+		c.slope[i] = (byte) slope;
+		c.texture[i] = (short) texture;
+		c.cliff[i] = (short) cliff;
+		c.flags[i] = (byte) flags;
+		c.dirty = true;
+
+		if (elevation > maxElevation) {
+			maxElevation = elevation;
+			headerDirty = true;
+		}
+	}
+
+	@Override public int maxElevation() {
+		return maxElevation;
+	}
+
+	@Override public TerrainPin pin(
+		final int x0, final int y0, final int x1, final int y1
+	) {
+		final List<Chunk> pinned = new ArrayList<>();
+		for (int cy = y0 / chunkSize; cy <= y1 / chunkSize; cy++) {
+			for (int cx = x0 / chunkSize; cx <= x1 / chunkSize; cx++) {
+				final Chunk c = chunk(cx * chunkSize, cy * chunkSize);
+				c.pins += 1;
+				pinned.add(c);
+			}
+		}
+
+		return new TerrainPin(() -> {
+			for (final Chunk c : pinned) c.pins -= 1;
+		});
+	}
+
+	@Override public void flush() throws IOException {
+		for (final Chunk c : loaded) {
+			if (c.dirty) {
+				writeChunk(file, c, chunkOffset(c.index, chunkSize), chunkSize);
+				c.dirty = false;
+			}
+		}
+
+		if (textures.size() + cliffTextures.size() != paletteSize) {
+			writePalettes(file, this, paletteOffset(w, h, chunkSize));
+			paletteSize = textures.size() + cliffTextures.size();
+		}
+
+		if (headerDirty) {
+			final ByteBuffer b = ByteBuffer.allocate(4);
+			b.putInt(maxElevation).flip();
+			writeFully(file, b, HEADER_SIZE - 4);
+			headerDirty = false;
+		}
+
+		file.force(false);
+	}
+
+	@Override public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			file.close();
+		}
+	}
+}
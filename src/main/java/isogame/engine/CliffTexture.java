@@ -20,27 +20,49 @@ package isogame.engine;
 
 import isogame.resource.ResourceLocator;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
 import javafx.scene.paint.ImagePattern;
-import javafx.scene.paint.Paint;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import static isogame.GlobalConstants.ATLAS_SIZE;
+import static isogame.GlobalConstants.TILEH;
+
 public class CliffTexture implements HasJSONRepresentation {
 	// a paint for every direction the slope could be going.
-	private final Paint ul;
-	private final Paint ur;
-	private final Paint flat;
+	private final ImagePattern ul;
+	private final ImagePattern ur;
+	private final ImagePattern flat;
 
 	public final String id;
 	private final String urlWide;
 	private final String urlNarrow;
 
-	private final Map<SlopeType, Image> prerendered;
+	private final Map<SlopeType, AtlasRegion> prerendered;
+
+	private static final WritablePixelFormat<IntBuffer> format =
+		PixelFormat.getIntArgbPreInstance();
+
+	// composited cliff columns, keyed by elevation and slope
+	private final Map<Integer, AtlasRegion> columns = new ConcurrentHashMap<>();
+
+	// the atlas to put the cliff columns in.  May be null.
+	private volatile TextureAtlas columnAtlas = null;
 
 	public CliffTexture(
 		final ResourceLocator loc,
@@ -60,14 +82,39 @@ public class CliffTexture implements HasJSONRepresentation {
 			flat = null;
 		} else {
 			try {
-				final Image imgWide = new Image(loc.gfx(urlWide));
-				final Image imgNarrow = new Image(loc.gfx(urlNarrow));
+				final byte[] dataWide;
+				final byte[] dataNarrow;
+				try (InputStream in = loc.gfx(urlWide)) {
+					dataWide = PrerenderCache.readAll(in);
+				}
+				try (InputStream in = loc.gfx(urlNarrow)) {
+					dataNarrow = PrerenderCache.readAll(in);
+				}
+				final Image imgWide = new Image(new ByteArrayInputStream(dataWide));
+				final Image imgNarrow = new Image(new ByteArrayInputStream(dataNarrow));
 
 				ul = new ImagePattern(imgNarrow, -1, 0, 2, 1, true);
 				ur = new ImagePattern(imgNarrow,  0, 0, 2, 1, true);
 				flat = new ImagePattern(imgWide,  0, 0, 1, 1, true);
 
-				prerendered = TilePrerenderer.prerenderCliff(this::getTexture);
+				final String key = PrerenderCache.key("cliff", dataWide, dataNarrow);
+				final SlopeType[] slopes = SlopeType.values();
+				final Optional<List<Image>> cached =
+					PrerenderCache.load(key, slopes.length);
+
+				final Map<SlopeType, Image> images;
+				if (cached.isPresent()) {
+					images = new EnumMap<>(SlopeType.class);
+					for (int i = 0; i < slopes.length; i++)
+						images.put(slopes[i], cached.get().get(i));
+				} else {
+					images = TilePrerenderer.prerenderCliff(this::getTexture);
+					final List<Image> r = new ArrayList<>();
+					for (final SlopeType s : slopes) r.add(images.get(s));
+					PrerenderCache.store(key, r);
+				}
+
+				prerendered = TerrainTexture.toRegions(images);
 			} catch (IOException e) {
 				throw new CorruptDataException(
 					"Cannot locate resource " + urlWide + " or " + urlNarrow, e);
@@ -103,7 +150,7 @@ public class CliffTexture implements HasJSONRepresentation {
 		return r;
 	}
 
-	public Paint getTexture(final SlopeType s) {
+	public ImagePattern getTexture(final SlopeType s) {
 		switch (s) {
 			case N: return ur;
 			case S: return flat;
@@ -115,15 +162,109 @@ public class CliffTexture implements HasJSONRepresentation {
 		}
 	}
 
-	public Paint getFlatTexture() {
+	public ImagePattern getFlatTexture() {
 		return flat;
 	}
 
 	/**
 	 * Get an appropriate prerendered texture.
 	 * */
-	public Image getPreTexture(final SlopeType slope) {
+	public AtlasRegion getPreTexture(final SlopeType slope) {
 		return prerendered.get(slope);
 	}
+
+	/**
+	 * Get a whole cliff column as a single image.  This is the cliff for the
+	 * slope (if any) with elevation units of flat cliff drawn beneath it, to be
+	 * drawn at the same position as the prerendered texture for the slope.
+	 * */
+	public AtlasRegion getColumn(final SlopeType slope, final int elevation) {
+		if (elevation == 0) return prerendered.get(slope);
+		return columns.computeIfAbsent(
+			(elevation * SlopeType.values().length) + slope.ordinal(),
+			k -> compositeColumn(slope, elevation));
+	}
+
+	private AtlasRegion compositeColumn(
+		final SlopeType slope, final int elevation
+	) {
+		final AtlasRegion flatCliff = prerendered.get(SlopeType.NONE);
+		final int w = (int) flatCliff.getWidth();
+		final int h = (int) flatCliff.getHeight();
+		final int step = (int) (TILEH / 2);
+		final int outH = h + (elevation * step);
+		final int[] out = new int[w * outH];
+		final int[] pixels = new int[w * h];
+
+		if (slope != SlopeType.NONE) {
+			readPixels(prerendered.get(slope), pixels, w, h);
+			compositeOver(out, pixels, 0);
+		}
+
+		readPixels(flatCliff, pixels, w, h);
+		for (int i = 1; i <= elevation; i++) {
+			compositeOver(out, pixels, i * step * w);
+		}
+
+		// very tall columns don't fit in the atlas, so they get their own images
+		final TextureAtlas atlas = columnAtlas;
+		if (atlas != null && w <= ATLAS_SIZE && outH <= ATLAS_SIZE) {
+			return atlas.add(out, w, outH);
+		} else {
+			final WritableImage r = new WritableImage(w, outH);
+			r.getPixelWriter().setPixels(0, 0, w, outH, format, out, 0, w);
+			return new AtlasRegion(r);
+		}
+	}
+
+	private static void readPixels(
+		final AtlasRegion region, final int[] pixels, final int w, final int h
+	) {
+		region.image.getPixelReader().getPixels(
+			(int) region.viewport.getMinX(), (int) region.viewport.getMinY(),
+			w, h, format, pixels, 0, w);
+	}
+
+	/**
+	 * Composite premultiplied ARGB pixels over the pixels in a buffer.
+	 * */
+	private static void compositeOver(
+		final int[] out, final int[] pixels, final int offset
+	) {
+		for (int i = 0; i < pixels.length; i++) {
+			final int src = pixels[i];
+			final int inv = 255 - (src >>> 24);
+			if (inv == 255) continue;
+
+			final int dst = out[offset + i];
+			int r = 0;
+			for (int shift = 0; shift < 32; shift += 8) {
+				final int v = ((src >>> shift) & 0xFF) +
+					((((dst >>> shift) & 0xFF) * inv) / 255);
+				r |= Math.min(255, v) << shift;
+			}
+			out[offset + i] = r;
+		}
+	}
+
+	/**
+	 * Move the prerendered textures into a texture atlas.
+	 * */
+	void packInto(final TextureAtlas.Builder atlas) {
+		if (prerendered == null) return;
+		for (final SlopeType s : SlopeType.values()) {
+			atlas.add(prerendered.get(s), r -> prerendered.put(s, r));
+		}
+	}
+
+	/**
+	 * Put the cliff columns in a texture atlas, like the prerendered textures.
+	 * Any columns made so far are discarded, so they will be made again in the
+	 * atlas.
+	 * */
+	void setColumnAtlas(final TextureAtlas atlas) {
+		columnAtlas = atlas;
+		columns.clear();
+	}
 }
 
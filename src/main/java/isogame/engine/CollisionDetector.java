@@ -44,16 +44,7 @@ public class CollisionDetector {
 		while (it.hasNext()) {
 			final Tile tile = it.next();
 			final Point2D cp = stage.terrain.correctedIsoCoord(tile.pos, a);
-			final List<Point2D> shape;
-
-			switch (a) {
-				case UL: shape = tile.shapeUL; break;
-				case UR: shape = tile.shapeUR; break;
-				case LL: shape = tile.shapeLL; break;
-				case LR: shape = tile.shapeLR; break;
-				default:
-					throw new RuntimeException("Invalid camera angle, this cannot happen");
-			}
+			final TileShape shape = tile.getShape(a);
 
 			if (isPointInPolygon(
 				shape, in.getX() - cp.getX(), in.getY() - cp.getY())
@@ -94,7 +85,7 @@ public class CollisionDetector {
 	 * Determine if a point lies inside a convex polygon.
 	 * */
 	private boolean isPointInPolygon(
-		final List<Point2D> shape,
+		final TileShape shape,
 		final double x,
 		final double y
 	) {
@@ -103,12 +94,12 @@ public class CollisionDetector {
 		// for a convex polygon, we can determine if a point lies inside the
 		// polygon by checking it lies on the same side of each line on the
 		// perimeter of the polygon.
-		final int pts = shape.size();
+		final int pts = shape.n;
 		for (int i = 0; i < pts; i++) {
-			final double lx0 = shape.get(i).getX();
-			final double ly0 = shape.get(i).getY();
-			final double lx1 = shape.get((i + 1) % pts).getX();
-			final double ly1 = shape.get((i + 1) % pts).getY();
+			final double lx0 = shape.x(i);
+			final double ly0 = shape.y(i);
+			final double lx1 = shape.x((i + 1) % pts);
+			final double ly1 = shape.y((i + 1) % pts);
 
 			// the sign of this cross product determines which side the point is on.
 			final double det = ((lx1 - lx0) * (y - ly0)) - ((ly1 - ly0) * (x - lx0));
@@ -37,6 +37,9 @@ public class ContinuousAnimator {
 	private boolean stopping = false;
 	private boolean t0IsNow = true;
 
+	// set when the animation is changed from outside the animation loop
+	private boolean changed = true;
+
 	// deal with changes to an animation in progress
 	private boolean animationChanging = false;
 	private Point2D vector1;
@@ -55,6 +58,7 @@ public class ContinuousAnimator {
 	 * @param speed The number of times per second we traverse the entire vector
 	 * */
 	public void setAnimation(final Point2D vector, final double speed) {
+		changed = true;
 		if (running && (!vector.equals(this.vector) || speed != this.speed)) {
 			animationChanging = true;
 			this.vector1 = vector;
@@ -67,6 +71,7 @@ public class ContinuousAnimator {
 
 	public void setClamp(final Rectangle2D clamp) {
 		this.clamp = clamp;
+		changed = true;
 	}
 
 	/**
@@ -75,25 +80,38 @@ public class ContinuousAnimator {
 	public void reset(final Point2D origin) {
 		this.origin = origin;
 		t0IsNow = true;
+		changed = true;
 	}
 
 	public void start() {
 		if (!running) t0IsNow = true;
 		running = true;
+		changed = true;
 	}
 
 	public void stop() {
 		if (running) {
 			running = false;
 			stopping = true;
+			changed = true;
 		}
 	}
 
+	/**
+	 * Determine if the value might have changed since the last call to
+	 * valueAt.  If not, there is no need to call valueAt again.
+	 * */
+	public boolean isAnimating() {
+		return running || changed;
+	}
+
 	/**
 	 * Compute the position at time t.
 	 * @param t The time at which to compute the position.
 	 * */
 	public Point2D valueAt(final long t) {
+		changed = false;
+
 		if (t0IsNow) {
 			t0 = t;
 			t0IsNow = false;
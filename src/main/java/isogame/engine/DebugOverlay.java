@@ -0,0 +1,97 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import javafx.geometry.Point2D;
+import javafx.scene.Group;
+import javafx.scene.Node;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+import javafx.scene.text.TextAlignment;
+import static isogame.GlobalConstants.TILEH;
+import static isogame.GlobalConstants.TILEW;
+
+/**
+ * Labels tiles with their special status (see Tile.specialStatusString) for
+ * debugging.  This is a single layer over the whole stage, and it is only
+ * created when debugging is turned on.  Text nodes are pooled, and only the
+ * live tiles that have a special status get one.
+ * */
+class DebugOverlay {
+	private static final Font font = new Font(TILEH / 2);
+
+	private final Group root = new Group();
+	private final List<Text> pool = new ArrayList<>();
+
+	public Node getNode() {
+		return root;
+	}
+
+	/**
+	 * Relabel the tiles.
+	 * @param tiles The tiles that are currently in the scene graph
+	 * */
+	void update(
+		final StageInfo terrain,
+		final Collection<Tile> tiles,
+		final CameraAngle angle
+	) {
+		int n = 0;
+		for (final Tile tile : tiles) {
+			final String status = tile.specialStatusString();
+			if (status == null) continue;
+
+			if (n == pool.size()) pool.add(makeText());
+			final Text text = pool.get(n++);
+			final Point2D l = terrain.correctedIsoCoord(tile.pos, angle);
+			text.setText(status);
+			text.setX(l.getX());
+			text.setY(l.getY() + (TILEH / 2));
+		}
+
+		root.getChildren().setAll(pool.subList(0, n));
+	}
+
+	private static Text makeText() {
+		final Text r = new Text();
+		r.setWrappingWidth(TILEW);
+		r.setFont(font);
+		r.setTextAlignment(TextAlignment.CENTER);
+		r.setFill(Color.RED);
+		return r;
+	}
+
+	/**
+	 * Draw the label for a tile at (0,0) on a canvas.
+	 * */
+	static void render(final GraphicsContext cx, final Tile tile) {
+		final String status = tile.specialStatusString();
+		if (status == null) return;
+
+		cx.setFont(font);
+		cx.setFill(Color.RED);
+		cx.setTextAlign(TextAlignment.CENTER);
+		cx.fillText(status, TILEW / 2, TILEH / 2);
+	}
+}
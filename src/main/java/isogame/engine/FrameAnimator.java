@@ -48,5 +48,15 @@ public class FrameAnimator {
 	public int frameAt(final long t) {
 		return (int) ((frame0 + ((t - t0) / framePeriod)) % nframes);
 	}
+
+	/**
+	 * Compute the time at which the frame will next change.
+	 * @param t The current time
+	 * @return Long.MAX_VALUE if the frame never changes
+	 * */
+	public long nextFrameAt(final long t) {
+		if (nframes <= 1) return Long.MAX_VALUE;
+		return t0 + ((Math.floorDiv(t - t0, framePeriod) + 1) * framePeriod);
+	}
 }
 
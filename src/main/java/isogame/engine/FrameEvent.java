@@ -0,0 +1,82 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A flight recorder event describing a single frame.  This class is only
+ * loaded when FrameMetrics is asked to record events, so the engine still
+ * works on JVMs without flight recorder.
+ * */
+@Name("isogame.Frame")
+@Label("Frame")
+@Category("isogame")
+class FrameEvent extends Event {
+	@Label("Frame Time") @Timespan(Timespan.NANOSECONDS)
+	long frameTime;
+
+	@Label("Tiles Time") @Timespan(Timespan.NANOSECONDS)
+	long tilesTime;
+
+	@Label("Sprites Time") @Timespan(Timespan.NANOSECONDS)
+	long spritesTime;
+
+	@Label("Highlights Time") @Timespan(Timespan.NANOSECONDS)
+	long highlightsTime;
+
+	@Label("Debug Time") @Timespan(Timespan.NANOSECONDS)
+	long debugTime;
+
+	@Label("Tiles Rebuilt")
+	long tilesRebuilt;
+
+	@Label("Sprites Moved")
+	long spritesMoved;
+
+	@Label("Nodes Added")
+	long nodesAdded;
+
+	@Label("Nodes Removed")
+	long nodesRemoved;
+
+	@Label("Frames Skipped")
+	long framesSkipped;
+
+	static void commit(final FrameMetrics.Frame frame) {
+		final FrameEvent e = new FrameEvent();
+		if (!e.isEnabled()) return;
+
+		e.frameTime = frame.getTime(FrameMetrics.Phase.FRAME);
+		e.tilesTime = frame.getTime(FrameMetrics.Phase.TILES);
+		e.spritesTime = frame.getTime(FrameMetrics.Phase.SPRITES);
+		e.highlightsTime = frame.getTime(FrameMetrics.Phase.HIGHLIGHTS);
+		e.debugTime = frame.getTime(FrameMetrics.Phase.DEBUG);
+		e.tilesRebuilt = frame.getCount(FrameMetrics.Counter.TILES_REBUILT);
+		e.spritesMoved = frame.getCount(FrameMetrics.Counter.SPRITES_MOVED);
+		e.nodesAdded = frame.getCount(FrameMetrics.Counter.NODES_ADDED);
+		e.nodesRemoved = frame.getCount(FrameMetrics.Counter.NODES_REMOVED);
+		e.framesSkipped = frame.getCount(FrameMetrics.Counter.FRAMES_SKIPPED);
+		e.commit();
+	}
+}
@@ -0,0 +1,218 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Collects timings and counts for each frame drawn by a View, to find out
+ * where the time goes when frames are dropped.  Metrics are only collected
+ * while enabled, and collection costs a few calls to System.nanoTime per
+ * frame.  Must only be used on the JavaFX application thread.
+ * */
+public class FrameMetrics {
+	/**
+	 * The parts of a frame that are timed.  Phases may overlap, in particular
+	 * FRAME covers the whole frame.
+	 * */
+	public enum Phase {
+		FRAME, TILES, SPRITES, HIGHLIGHTS, DEBUG
+	}
+
+	/**
+	 * The events that are counted.
+	 * */
+	public enum Counter {
+		TILES_REBUILT, SPRITES_MOVED, NODES_ADDED, NODES_REMOVED, FRAMES_SKIPPED
+	}
+
+	/**
+	 * The metrics for a single frame.
+	 * */
+	public static class Frame {
+		private final long[] times;
+		private final long[] counts;
+
+		private Frame(final long[] times, final long[] counts) {
+			this.times = times;
+			this.counts = counts;
+		}
+
+		/**
+		 * Get the time spent in a phase, in nanoseconds.
+		 * */
+		public long getTime(final Phase phase) {
+			return times[phase.ordinal()];
+		}
+
+		public long getCount(final Counter counter) {
+			return counts[counter.ordinal()];
+		}
+	}
+
+	private boolean enabled = false;
+	private boolean recordEvents = false;
+	private long frames = 0;
+
+	private final long[] starts = new long[Phase.values().length];
+	private final long[] times = new long[Phase.values().length];
+	private final long[] counts = new long[Counter.values().length];
+	private final long[] totals = new long[Counter.values().length];
+
+	private final Map<Phase, Histogram> timeHistograms = new EnumMap<>(Phase.class);
+	private final Map<Counter, Histogram> countHistograms = new EnumMap<>(Counter.class);
+
+	private Optional<Frame> lastFrame = Optional.empty();
+	private Consumer<Frame> onFrame = x -> {};
+
+	public FrameMetrics() {
+		for (final Phase p : Phase.values()) timeHistograms.put(p, new Histogram());
+		for (final Counter c : Counter.values()) countHistograms.put(c, new Histogram());
+	}
+
+	/**
+	 * Start or stop collecting metrics.
+	 * */
+	public void setEnabled(final boolean enabled) {
+		if (enabled && !this.enabled) {
+			for (int i = 0; i < times.length; i++) times[i] = 0;
+			for (int i = 0; i < counts.length; i++) counts[i] = 0;
+		}
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Emit a flight recorder event for every frame while metrics are enabled.
+	 * This does nothing if the JVM does not support flight recorder events.
+	 * */
+	public void setRecordEvents(final boolean recordEvents) {
+		this.recordEvents = recordEvents;
+	}
+
+	/**
+	 * Set a callback to invoke at the end of every frame.
+	 * */
+	public void doOnFrame(final Consumer<Frame> onFrame) {
+		this.onFrame = onFrame;
+	}
+
+	/**
+	 * Discard all the metrics collected so far.
+	 * */
+	public void reset() {
+		frames = 0;
+		for (int i = 0; i < totals.length; i++) totals[i] = 0;
+		for (final Histogram h : timeHistograms.values()) h.reset();
+		for (final Histogram h : countHistograms.values()) h.reset();
+		lastFrame = Optional.empty();
+	}
+
+	/**
+	 * Get the number of frames measured.
+	 * */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * Get the distribution of the time spent in a phase per frame, in
+	 * nanoseconds.
+	 * */
+	public Histogram getHistogram(final Phase phase) {
+		return timeHistograms.get(phase);
+	}
+
+	/**
+	 * Get the distribution of an event count per frame.
+	 * */
+	public Histogram getHistogram(final Counter counter) {
+		return countHistograms.get(counter);
+	}
+
+	/**
+	 * Get the total number of events counted over all frames.
+	 * */
+	public long getTotal(final Counter counter) {
+		return totals[counter.ordinal()];
+	}
+
+	/**
+	 * Get the metrics for the most recent frame.
+	 * */
+	public Optional<Frame> getLastFrame() {
+		return lastFrame;
+	}
+
+	void beginPhase(final Phase phase) {
+		if (enabled) starts[phase.ordinal()] = System.nanoTime();
+	}
+
+	void endPhase(final Phase phase) {
+		if (enabled) times[phase.ordinal()] += System.nanoTime() - starts[phase.ordinal()];
+	}
+
+	void count(final Counter counter, final int n) {
+		if (enabled) counts[counter.ordinal()] += n;
+	}
+
+	void beginFrame() {
+		beginPhase(Phase.FRAME);
+	}
+
+	/**
+	 * Finish the current frame.  Events counted between frames are included in
+	 * the next frame.
+	 * */
+	void endFrame() {
+		if (!enabled) return;
+		endPhase(Phase.FRAME);
+
+		for (final Phase p : Phase.values()) {
+			timeHistograms.get(p).record(times[p.ordinal()]);
+		}
+		for (final Counter c : Counter.values()) {
+			countHistograms.get(c).record(counts[c.ordinal()]);
+			totals[c.ordinal()] += counts[c.ordinal()];
+		}
+		frames += 1;
+
+		final Frame frame = new Frame(times.clone(), counts.clone());
+		lastFrame = Optional.of(frame);
+		for (int i = 0; i < times.length; i++) times[i] = 0;
+		for (int i = 0; i < counts.length; i++) counts[i] = 0;
+
+		if (recordEvents) {
+			try {
+				FrameEvent.commit(frame);
+			} catch (final LinkageError e) {
+				// no flight recorder in this JVM
+				recordEvents = false;
+			}
+		}
+
+		onFrame.accept(frame);
+	}
+}
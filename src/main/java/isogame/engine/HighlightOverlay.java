@@ -0,0 +1,283 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import javafx.geometry.Point2D;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Paint;
+import javafx.scene.transform.Affine;
+
+/**
+ * Draws all the highlighting for one camera angle as a single layer, which is
+ * cut into bands so that it can be interleaved with the tiles and sprites.
+ *
+ * Each row of tiles in the draw order gets one band, drawn on a canvas that
+ * covers the highlighted tiles in that row.  The band goes in the scene graph
+ * after the last highlighted tile in the row, so the tiles in later rows hide
+ * it just as they hide the tiles.  The tiles in a row are side by side, so
+ * they don't hide each other, apart from their antialiased borders.  Those are
+ * handled by painting the band from back to front, and erasing the outline of
+ * each tile after the first highlighted one before filling its own highlight.
+ *
+ * Sprites must go in front of the highlighting of their own row, so the band
+ * is cut wherever there are sprites, and each piece goes before the sprites
+ * that end it.
+ *
+ * Bands are only redrawn when the highlighting or the tiles in their row
+ * change.  When the sprites or the culling window move, the bands are cut
+ * again, and any pieces that cover the same tiles as before are put back in
+ * the scene graph without redrawing them.
+ * */
+class HighlightOverlay {
+	private final StageInfo terrain;
+	private final CameraAngle angle;
+	private final double scale;
+
+	/**
+	 * A piece of a band, covering the tiles from one column to another.
+	 * */
+	private static class Piece {
+		final int col0;
+		final int col1;
+		final MapPoint last;
+		final PrioritizedGroup node =
+			new PrioritizedGroup(PrioritizedGroup.HIGHLIGHT);
+
+		Piece(final int col0, final int col1, final MapPoint last) {
+			this.col0 = col0;
+			this.col1 = col1;
+			this.last = last;
+		}
+	}
+
+	// the pieces of the band for each row that has highlighting
+	private final Map<Integer, List<Piece>> rows = new HashMap<>();
+
+	// rows that must be redrawn, and rows that must only be cut again
+	private final Set<Integer> redraw = new HashSet<>();
+	private final Set<Integer> recut = new HashSet<>();
+
+	/**
+	 * @param scale The resolution of the bands relative to iso space.  This is
+	 * less than 1 when the view is zoomed out, so the canvases don't get too
+	 * big.
+	 * */
+	public HighlightOverlay(
+		final StageInfo terrain, final CameraAngle angle, final double scale
+	) {
+		this.terrain = terrain;
+		this.angle = angle;
+		this.scale = scale;
+	}
+
+	/**
+	 * Get the row of a tile in the draw order.
+	 * */
+	public int rowOf(final MapPoint p) {
+		return terrain.drawOrder(p, angle) / terrain.w;
+	}
+
+	/**
+	 * Redraw the band for a row on the next update, because the highlighting
+	 * has changed.
+	 * */
+	public void invalidate(final int row) {
+		redraw.add(row);
+	}
+
+	/**
+	 * Redraw the band for a row on the next update, because the tiles have
+	 * changed.  Does nothing if the row has no highlighting.
+	 * */
+	public void invalidateTiles(final int row) {
+		if (rows.containsKey(row)) redraw.add(row);
+	}
+
+	/**
+	 * Cut the band for a row again on the next update, because the sprites in
+	 * the row have changed.  Does nothing if the row has no highlighting.
+	 * */
+	public void invalidateSprites(final int row) {
+		if (rows.containsKey(row)) recut.add(row);
+	}
+
+	/**
+	 * Put all the bands back in the scene graph on the next update, after it
+	 * has been reset.
+	 * */
+	public void invalidateAll() {
+		recut.addAll(rows.keySet());
+	}
+
+	/**
+	 * Make sure a row with highlighting has a band, after it comes into the
+	 * culling window.
+	 * */
+	public void reveal(final int row) {
+		if (!rows.containsKey(row)) redraw.add(row);
+	}
+
+	/**
+	 * Bring the bands up to date.
+	 * @param index The scene graph
+	 * @param isLive Determines if a tile is in the scene graph
+	 * @param highlight Gets the highlight colour for a tile
+	 * */
+	public void update(
+		final SceneGraphIndex index,
+		final Predicate<MapPoint> isLive,
+		final Function<MapPoint, Optional<Paint>> highlight
+	) {
+		recut.removeAll(redraw);
+		for (final int row : redraw) updateRow(row, true, index, isLive, highlight);
+		for (final int row : recut) updateRow(row, false, index, isLive, highlight);
+		redraw.clear();
+		recut.clear();
+	}
+
+	private void updateRow(
+		final int row,
+		final boolean changed,
+		final SceneGraphIndex index,
+		final Predicate<MapPoint> isLive,
+		final Function<MapPoint, Optional<Paint>> highlight
+	) {
+		final List<Piece> old = rows.remove(row);
+		if (old != null) {
+			for (final Piece piece : old) index.remove(piece.node);
+		}
+
+		// cut the band after the last highlighted tile, and wherever there are
+		// sprites
+		final List<Piece> pieces = new ArrayList<>();
+		int col0 = -1;
+		int col1 = -1;
+		MapPoint last = null;
+		for (int col = 0; col < terrain.w; col++) {
+			final MapPoint p = terrain.fromDrawOrder(row, col, angle);
+			if (p == null || !isLive.test(p)) continue;
+
+			if (highlight.apply(p).isPresent()) {
+				if (col0 < 0) col0 = col;
+				col1 = col;
+				last = p;
+			}
+
+			if (col0 >= 0 && index.hasSprites(p)) {
+				pieces.add(new Piece(col0, col1, last));
+				col0 = -1;
+			}
+		}
+		if (col0 >= 0) pieces.add(new Piece(col0, col1, last));
+		if (pieces.isEmpty()) return;
+
+		// reuse the pieces that haven't changed
+		for (int i = 0; i < pieces.size(); i++) {
+			final Piece piece = pieces.get(i);
+			final Piece reused = changed || old == null? null : findPiece(old, piece);
+			if (reused != null) {
+				pieces.set(i, reused);
+				index.insertHighlight(reused.node, reused.last);
+			} else {
+				draw(row, piece, highlight);
+				index.insertHighlight(piece.node, piece.last);
+			}
+		}
+
+		rows.put(row, pieces);
+	}
+
+	private static Piece findPiece(final List<Piece> pieces, final Piece piece) {
+		for (final Iterator<Piece> i = pieces.iterator(); i.hasNext();) {
+			final Piece p = i.next();
+			if (p.col0 == piece.col0 && p.col1 == piece.col1) {
+				i.remove();
+				return p;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Draw a piece of a band on a new canvas.
+	 * */
+	private void draw(
+		final int row,
+		final Piece piece,
+		final Function<MapPoint, Optional<Paint>> highlight
+	) {
+		// find the tiles and the area covered by their highlighting
+		final List<MapPoint> tiles = new ArrayList<>();
+		double x0 = Double.MAX_VALUE; double x1 = -Double.MAX_VALUE;
+		double y0 = Double.MAX_VALUE; double y1 = -Double.MAX_VALUE;
+		for (int col = piece.col0; col <= piece.col1; col++) {
+			final MapPoint p = terrain.fromDrawOrder(row, col, angle);
+			if (p == null) continue;
+			tiles.add(p);
+
+			if (highlight.apply(p).isPresent()) {
+				final Point2D l = terrain.correctedIsoCoord(p, angle);
+				final TileShape shape = terrain.getShape(p, angle);
+				x0 = Math.min(x0, l.getX() + shape.minX);
+				x1 = Math.max(x1, l.getX() + shape.maxX);
+				y0 = Math.min(y0, l.getY() + shape.minY);
+				y1 = Math.max(y1, l.getY() + shape.maxY);
+			}
+		}
+
+		final Canvas canvas = new Canvas(
+			Math.ceil((x1 - x0) * scale), Math.ceil((y1 - y0) * scale));
+		canvas.getTransforms().add(new Affine(1 / scale, 0, x0, 0, 1 / scale, y0));
+		piece.node.getChildren().setAll(canvas);
+
+		final GraphicsContext cx = canvas.getGraphicsContext2D();
+		cx.scale(scale, scale);
+		cx.translate(-x0, -y0);
+
+		// the first tile is always highlighted
+		for (final MapPoint p : tiles) {
+			final Optional<Paint> color = highlight.apply(p);
+			final Point2D l = terrain.correctedIsoCoord(p, angle);
+			final TileShape shape = terrain.getShape(p, angle);
+
+			cx.save();
+			cx.translate(l.getX(), l.getY());
+			shape.tracePath(cx);
+			cx.clip();
+			cx.clearRect(shape.minX, shape.minY,
+				shape.maxX - shape.minX, shape.maxY - shape.minY);
+			color.ifPresent(c -> {
+				cx.setFill(c);
+				cx.fill();
+			});
+			cx.restore();
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+/**
+ * A histogram of non-negative values, with buckets that double in size.
+ * Recording a value takes constant time and the memory use is fixed, so it
+ * is cheap enough to update every frame.  Percentiles are accurate to within
+ * a factor of two.
+ * */
+public class Histogram {
+	private static final int BUCKETS = 64;
+
+	// bucket 0 holds zero, bucket i holds [2^(i-1), 2^i)
+	private final long[] buckets = new long[BUCKETS];
+
+	private long count = 0;
+	private long sum = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+	/**
+	 * Add a value to the histogram.  Negative values are counted as zero.
+	 * */
+	public void record(final long value) {
+		final long v = Math.max(0, value);
+		buckets[BUCKETS - Long.numberOfLeadingZeros(v)] += 1;
+		count += 1;
+		sum += v;
+		min = Math.min(min, v);
+		max = Math.max(max, v);
+	}
+
+	/**
+	 * Remove all the values.
+	 * */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) buckets[i] = 0;
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getSum() {
+		return sum;
+	}
+
+	/**
+	 * @return The smallest value, or 0 if the histogram is empty
+	 * */
+	public long getMin() {
+		return count == 0? 0 : min;
+	}
+
+	/**
+	 * @return The largest value, or 0 if the histogram is empty
+	 * */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * @return The mean value, or 0 if the histogram is empty
+	 * */
+	public double getMean() {
+		return count == 0? 0 : ((double) sum) / ((double) count);
+	}
+
+	/**
+	 * Get an upper bound on a percentile.
+	 * @param p The percentile, between 0 and 100
+	 * @return The top of the bucket that contains the percentile, or 0 if the
+	 * histogram is empty
+	 * */
+	public long getPercentile(final double p) {
+		if (count == 0) return 0;
+
+		final long rank = (long) Math.ceil((Math.max(0, Math.min(100, p)) / 100) * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i];
+			if (seen >= rank && seen > 0) {
+				final long top = i == 0? 0 : i == BUCKETS - 1?
+					Long.MAX_VALUE : (1L << i) - 1;
+				return Math.max(getMin(), Math.min(max, top));
+			}
+		}
+
+		return max;
+	}
+
+	/**
+	 * Get the number of values in each bucket.  Bucket 0 counts zeros, and
+	 * bucket i counts values from 2^(i-1) up to 2^i - 1.
+	 * */
+	public long[] getBuckets() {
+		return buckets.clone();
+	}
+
+	@Override public String toString() {
+		return "n=" + count + " min=" + getMin() + " mean=" + ((long) getMean()) +
+			" p50=" + getPercentile(50) + " p99=" + getPercentile(99) + " max=" + max;
+	}
+}
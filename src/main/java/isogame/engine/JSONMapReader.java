@@ -0,0 +1,377 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Reads JSON map files without building a JSONObject for the whole file.  The
+ * tiles are decoded one at a time straight into packed arrays, so the memory
+ * needed is about the size of the finished stage rather than several times
+ * the size of the file.  The library sections are small, so they are read
+ * into an ordinary JSONObject.
+ *
+ * The fields of a JSON object can come in any order (and the files written by
+ * Library.writeToStream usually have the tile data before the width and
+ * height), so the tile arrays grow as the tiles are read and the positions of
+ * the tiles are checked at the end.
+ * */
+final class JSONMapReader {
+	@FunctionalInterface
+	private interface FieldReader {
+		public void read(final String key) throws CorruptDataException;
+	}
+
+	@FunctionalInterface
+	private interface ElementReader {
+		public void read(final int i) throws CorruptDataException;
+	}
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final JSONTokener x;
+	private final MapData data = new MapData();
+
+	// everything except the stage
+	private final JSONObject library = new JSONObject();
+
+	private boolean hasStage = false;
+	private boolean hasTerrain = false;
+	private boolean hasTiles = false;
+	private String name = null;
+	private int w = -1;
+	private int h = -1;
+
+	// texture ids, in order of first appearance
+	private final Map<String, Integer> textures = new HashMap<>();
+	private final Map<String, Integer> cliffTextures = new HashMap<>();
+
+	private int nTiles = 0;
+	private int nSprites = 0;
+
+	// for checking that the tiles are in row major order
+	private MapPoint last = null;
+	private int rowWidth = -1;
+
+	private JSONMapReader(final Reader in) {
+		this.x = new JSONTokener(in);
+	}
+
+	/**
+	 * Read a JSON map file.
+	 * @throws JSONException if the file is not valid JSON
+	 * @throws CorruptDataException if the file is valid JSON, but not a map
+	 * */
+	public static MapData read(final Reader in)
+		throws CorruptDataException, JSONException
+	{
+		final JSONMapReader r = new JSONMapReader(in);
+		r.readObject("map", key -> {
+			if (key.equals("stage")) {
+				r.hasStage = true;
+				r.readStage();
+			} else {
+				r.library.put(key, r.x.nextValue());
+			}
+		});
+		return r.finish();
+	}
+
+	private void readStage() throws CorruptDataException {
+		readObject("stage", key -> {
+			switch (key) {
+				case "name": name = stringValue(x.nextValue(), "stage"); break;
+				case "terrain": hasTerrain = true; readTerrain(); break;
+				case "sprites":
+					data.allocateSprites(0);
+					readArray("stage", this::readSprite);
+					break;
+				default: x.nextValue();
+			}
+		});
+	}
+
+	private void readTerrain() throws CorruptDataException {
+		readObject("stage info", key -> {
+			switch (key) {
+				case "w": w = intValue(x.nextValue(), "stage info"); break;
+				case "h": h = intValue(x.nextValue(), "stage info"); break;
+				case "data":
+					hasTiles = true;
+					// don't trust the size for more than the initial allocation, the
+					// arrays grow if there really are more tiles
+					allocateTiles(w > 0 && h > 0?
+						(int) Math.min((long) w * h, INITIAL_CAPACITY) : INITIAL_CAPACITY);
+					readArray("stage info", this::readTile);
+					break;
+				default: x.nextValue();
+			}
+		});
+	}
+
+	private void readTile(final int i) throws CorruptDataException {
+		final Object v = x.nextValue();
+		if (!(v instanceof JSONObject))
+			throw new CorruptDataException("Type error in stage info");
+		final JSONObject json = (JSONObject) v;
+
+		try {
+			final MapPoint p = MapPoint.fromJSON(json.getJSONObject("p"));
+			final int elevation = json.getInt("elevation");
+			final SlopeType slope = SlopeType.valueOf(json.getString("slope"));
+			final boolean isManaZone = json.getBoolean("isManaZone");
+			final StartZoneType startZone =
+				StartZoneType.valueOf(json.getString("startZone"));
+			final String texture = json.getString("texture");
+			final String cliffTexture = json.optString("cliffTexture", null);
+
+			checkOrder(p);
+			if (elevation < 0 || elevation > Byte.MAX_VALUE)
+				throw new CorruptDataException("Invalid elevation at " + p);
+
+			if (i >= data.elevation.length) allocateTiles((int) Math.min(
+				Integer.MAX_VALUE, 2L * data.elevation.length));
+			data.elevation[i] = (byte) elevation;
+			data.slope[i] = (byte) slope.ordinal();
+			data.flags[i] = (byte) ((isManaZone? StageInfo.MANA_ZONE : 0) |
+				(startZone.ordinal() << StageInfo.START_ZONE_SHIFT));
+			data.texture[i] = paletteIndex(textures, texture);
+			data.cliff[i] = cliffTexture == null? -1 :
+				paletteIndex(cliffTextures, cliffTexture);
+			nTiles = i + 1;
+
+		} catch (final JSONException e) {
+			throw new CorruptDataException("Error parsing tile, " + e.getMessage(), e);
+		} catch (final IllegalArgumentException e) {
+			throw new CorruptDataException("Type error in tile", e);
+		}
+	}
+
+	private void readSprite(final int i) throws CorruptDataException {
+		final Object v = x.nextValue();
+		if (!(v instanceof JSONObject))
+			throw new CorruptDataException("Type error in stage");
+		final JSONObject json = (JSONObject) v;
+
+		try {
+			final MapPoint pos = MapPoint.fromJSON(json.getJSONObject("pos"));
+			final FacingDirection direction =
+				FacingDirection.valueOf(json.getString("direction"));
+			final String sprite = json.getString("sprite");
+			final String animation = json.getString("animation");
+
+			if (i >= data.spriteIds.length)
+				allocateSprites(Math.max(16, 2 * data.spriteIds.length));
+			data.spriteIds[i] = data.intern(sprite);
+			data.animations[i] = data.intern(animation);
+			data.directions[i] = (byte) direction.ordinal();
+			data.xs[i] = pos.x;
+			data.ys[i] = pos.y;
+			nSprites = i + 1;
+
+		} catch (final JSONException e) {
+			throw new CorruptDataException("Error parsing sprite, " + e.getMessage(), e);
+		} catch (final IllegalArgumentException e) {
+			throw new CorruptDataException("Type error in sprite", e);
+		}
+	}
+
+	/**
+	 * Check that a tile follows on from the previous tile in row major order.
+	 * The width of the first row is taken as the width of the map.
+	 * */
+	private void checkOrder(final MapPoint p) throws CorruptDataException {
+		final boolean ok;
+		if (last == null) {
+			ok = p.x == 0 && p.y == 0;
+		} else if (p.y == last.y) {
+			ok = p.x == last.x + 1;
+		} else {
+			ok = p.x == 0 && p.y == last.y + 1 &&
+				(rowWidth == -1 || last.x + 1 == rowWidth);
+			if (rowWidth == -1) rowWidth = last.x + 1;
+		}
+
+		if (!ok) throw new CorruptDataException("Tile " + p + " is out of place");
+		last = p;
+	}
+
+	/**
+	 * Check that all the required parts of the map were present and consistent,
+	 * and finish off the map data.
+	 * */
+	private MapData finish() throws CorruptDataException {
+		if (!hasStage) throw missing("map", "stage");
+		if (name == null) throw missing("stage", "name");
+		if (!hasTerrain) throw missing("stage", "terrain");
+		if (data.spriteIds == null) throw missing("stage", "sprites");
+		if (w == -1) throw missing("stage info", "w");
+		if (h == -1) throw missing("stage info", "h");
+		if (!hasTiles) throw missing("stage info", "data");
+
+		if (w <= 0 || h <= 0 || (long) w * h > Integer.MAX_VALUE)
+			throw new CorruptDataException("Invalid stage size");
+		if (nTiles != w * h)
+			throw new CorruptDataException("Incorrect number of tiles in stage");
+		if (last.x + 1 != w || (rowWidth != -1 && rowWidth != w))
+			throw new CorruptDataException("Tile " + last + " is out of place");
+
+		// trim the arrays, if they had to grow
+		allocateTiles(nTiles);
+		allocateSprites(nSprites);
+		data.w = w;
+		data.h = h;
+
+		final int[] r = new int[textures.size()];
+		for (final Map.Entry<String, Integer> e : textures.entrySet())
+			r[e.getValue()] = data.intern(e.getKey());
+		data.textures = r;
+
+		final int[] rc = new int[cliffTextures.size()];
+		for (final Map.Entry<String, Integer> e : cliffTextures.entrySet())
+			rc[e.getValue()] = data.intern(e.getKey());
+		data.cliffTextures = rc;
+
+		data.name = data.intern(name);
+		data.library = data.intern(library.toString());
+		return data;
+	}
+
+	/**
+	 * Resize the tile arrays, keeping the tiles that have been read so far.
+	 * */
+	private void allocateTiles(final int n) {
+		if (data.elevation != null && data.elevation.length == n) return;
+		if (data.elevation == null) {
+			data.elevation = new byte[n];
+			data.slope = new byte[n];
+			data.flags = new byte[n];
+			data.texture = new short[n];
+			data.cliff = new short[n];
+		} else {
+			data.elevation = Arrays.copyOf(data.elevation, n);
+			data.slope = Arrays.copyOf(data.slope, n);
+			data.flags = Arrays.copyOf(data.flags, n);
+			data.texture = Arrays.copyOf(data.texture, n);
+			data.cliff = Arrays.copyOf(data.cliff, n);
+		}
+	}
+
+	/**
+	 * Resize the sprite arrays, keeping the sprites that have been read so far.
+	 * */
+	private void allocateSprites(final int n) {
+		if (data.spriteIds.length == n) return;
+		data.spriteIds = Arrays.copyOf(data.spriteIds, n);
+		data.animations = Arrays.copyOf(data.animations, n);
+		data.directions = Arrays.copyOf(data.directions, n);
+		data.xs = Arrays.copyOf(data.xs, n);
+		data.ys = Arrays.copyOf(data.ys, n);
+	}
+
+	private static short paletteIndex(
+		final Map<String, Integer> palette, final String id
+	) throws CorruptDataException {
+		final Integer i = palette.get(id);
+		if (i != null) return (short) (int) i;
+		if (palette.size() >= Short.MAX_VALUE)
+			throw new CorruptDataException("Too many different textures in stage");
+		palette.put(id, palette.size());
+		return (short) (palette.size() - 1);
+	}
+
+	private static CorruptDataException missing(
+		final String section, final String key
+	) {
+		return new CorruptDataException("Error parsing " + section +
+			", JSONObject[\"" + key + "\"] not found.");
+	}
+
+	private static int intValue(final Object v, final String section)
+		throws CorruptDataException
+	{
+		if (!(v instanceof Number))
+			throw new CorruptDataException("Type error in " + section);
+		return ((Number) v).intValue();
+	}
+
+	private static String stringValue(final Object v, final String section)
+		throws CorruptDataException
+	{
+		if (!(v instanceof String))
+			throw new CorruptDataException("Type error in " + section);
+		return (String) v;
+	}
+
+	/**
+	 * Read a JSON object one field at a time.  The field reader must consume
+	 * the value of each field.
+	 * @param section What we are reading, for error messages
+	 * */
+	private void readObject(final String section, final FieldReader field)
+		throws CorruptDataException
+	{
+		if (x.nextClean() != '{')
+			throw new CorruptDataException("Type error in " + section);
+		if (x.nextClean() == '}') return;
+		x.back();
+
+		while (true) {
+			final char q = x.nextClean();
+			if (q != '"' && q != '\'') throw x.syntaxError("Expected a key");
+			final String key = x.nextString(q);
+			if (x.nextClean() != ':') throw x.syntaxError("Expected a ':' after a key");
+
+			field.read(key);
+
+			final char c = x.nextClean();
+			if (c == '}') return;
+			if (c != ',') throw x.syntaxError("Expected a ',' or '}'");
+		}
+	}
+
+	/**
+	 * Read a JSON array one element at a time.  The element reader must consume
+	 * each element.
+	 * @param section What we are reading, for error messages
+	 * */
+	private void readArray(final String section, final ElementReader element)
+		throws CorruptDataException
+	{
+		if (x.nextClean() != '[')
+			throw new CorruptDataException("Type error in " + section);
+		if (x.nextClean() == ']') return;
+		x.back();
+
+		for (int i = 0; true; i++) {
+			element.read(i);
+
+			final char c = x.nextClean();
+			if (c == ']') return;
+			if (c != ',') throw x.syntaxError("Expected a ',' or ']'");
+		}
+	}
+}
@@ -15,6 +15,8 @@ public class KeyBinding {
 	public final static KeyBinding scrollRight = new KeyBinding("Scroll right");
 	public final static KeyBinding rotateLeft = new KeyBinding("Rotate left");
 	public final static KeyBinding rotateRight = new KeyBinding("Rotate right");
+	public final static KeyBinding zoomIn = new KeyBinding("Zoom in");
+	public final static KeyBinding zoomOut = new KeyBinding("Zoom out");
 
 	private final String name;
 
@@ -30,6 +32,8 @@ public class KeyBinding {
 		r.add(scrollDown);
 		r.add(scrollLeft);
 		r.add(scrollRight);
+		r.add(zoomIn);
+		r.add(zoomOut);
 		return r;
 	}
 
@@ -43,6 +47,8 @@ public class KeyBinding {
 			case "Scroll right": return scrollRight;
 			case "Rotate left": return rotateLeft;
 			case "Rotate right": return rotateRight;
+			case "Zoom in": return zoomIn;
+			case "Zoom out": return zoomOut;
 			default:
 				throw new RuntimeException("Unhandled keybinding " + s);
 		}
@@ -31,12 +31,16 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 /**
  * A library of game assets.
@@ -178,6 +182,15 @@ public class Library {
 		else return defaultCliffTexture;
 	}
 
+	/**
+	 * Pack the prerendered terrain and cliff textures in this library into a
+	 * texture atlas.  Textures added later are not packed until this is called
+	 * again.
+	 * */
+	public TextureAtlas packTextures() {
+		return TextureAtlas.pack(terrains.values(), cliffTextures.values());
+	}
+
 	/**
 	 * Create an empty library
 	 * */
@@ -200,11 +213,9 @@ public class Library {
 		) {
 			if (in == null) throw new FileNotFoundException("File not found " + url);
 
-			final StringBuilder raw = new StringBuilder();
-			String line = null;
-			while ((line = in.readLine()) != null) raw.append(line);
-
-			final JSONObject json = new JSONObject(raw.toString());
+			// parse straight from the reader, without copying the whole file into a
+			// string first
+			final JSONObject json = new JSONObject(new JSONTokener(in));
 			return fromJSON(json, url, loc, parent, nofx);
 
 		} catch (JSONException e) {
@@ -252,22 +263,38 @@ public class Library {
 				r.sprites.put(id, SpriteInfo.fromJSON(sprite, loc));
 			}
 
+			// prerendering the textures is expensive, so do it in parallel if it
+			// doesn't have to be done on the FX thread
+			final boolean parallel = nofx || TilePrerenderer.isSoftwareRendering();
+			final Map<String, CompletableFuture<TerrainTexture>> terrainJobs =
+				new LinkedHashMap<>();
 			for (final Object x : terrains) {
 				final JSONObject terrain = (JSONObject) x;
 				final String id = (String) terrain.get("id");
 				if (id == null)
 					throw new CorruptDataException("Missing id for sprite in " + url);
-				r.terrains.put(id, TerrainTexture.fromJSON(terrain, loc, nofx));
+				terrainJobs.put(id, load(parallel, () ->
+					TerrainTexture.fromJSON(terrain, loc, nofx)));
 			}
 
+			final Map<String, CompletableFuture<CliffTexture>> cliffJobs =
+				new LinkedHashMap<>();
 			for (final Object x : cliffTextures) {
 				final JSONObject cliffTerrain = (JSONObject) x;
 				final String id = (String) cliffTerrain.get("id");
 				if (id == null)
 					throw new CorruptDataException("Missing id for sprite in " + url);
-				r.cliffTextures.put(id, CliffTexture.fromJSON(cliffTerrain, loc, nofx));
+				cliffJobs.put(id, load(parallel, () ->
+					CliffTexture.fromJSON(cliffTerrain, loc, nofx)));
 			}
 
+			for (final String id : terrainJobs.keySet())
+				r.terrains.put(id, await(terrainJobs.get(id)));
+			for (final String id : cliffJobs.keySet())
+				r.cliffTextures.put(id, await(cliffJobs.get(id)));
+
+			if (!nofx) r.packTextures();
+
 			return r;
 		} catch (ClassCastException e) {
 			throw new CorruptDataException(url + " is corrupted");
@@ -276,6 +303,81 @@ public class Library {
 		}
 	}
 
+	@FunctionalInterface
+	interface Loader<T> {
+		public T load() throws CorruptDataException;
+	}
+
+	/**
+	 * Run a loader on the common fork-join pool.
+	 * */
+	static <T> CompletableFuture<T> loadAsync(final Loader<T> loader) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return loader.load();
+			} catch (final CorruptDataException e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	/**
+	 * Run a loader, either on the common fork-join pool or right now on the
+	 * calling thread.
+	 * */
+	private static <T> CompletableFuture<T> load(
+		final boolean parallel, final Loader<T> loader
+	) throws CorruptDataException
+	{
+		if (parallel) {
+			return loadAsync(loader);
+		} else {
+			return CompletableFuture.completedFuture(loader.load());
+		}
+	}
+
+	/**
+	 * Wait for a loader to finish, rethrowing any exceptions it raised.
+	 * */
+	static <T> T await(final CompletableFuture<T> job)
+		throws CorruptDataException
+	{
+		try {
+			return job.join();
+		} catch (final CompletionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof CorruptDataException) {
+				throw (CorruptDataException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Get the JSON representation of this library, without any stage data.
+	 * */
+	JSONObject getJSON() {
+		final JSONObject o = new JSONObject();
+
+		final JSONArray prioritiesArray = new JSONArray();
+		priorities.forEach(x -> prioritiesArray.put(x));
+		final JSONArray spriteArray = new JSONArray();
+		sprites.values().forEach(x -> spriteArray.put(x.getJSON()));
+		final JSONArray terrainArray = new JSONArray();
+		terrains.values().forEach(x -> terrainArray.put(x.getJSON()));
+		final JSONArray cliffArray = new JSONArray();
+		cliffTextures.values().forEach(x -> cliffArray.put(x.getJSON()));
+
+		o.put("sprite_priorities", prioritiesArray);
+		o.put("sprites", spriteArray);
+		o.put("terrains", terrainArray);
+		o.put("cliffTextures", cliffArray);
+		return o;
+	}
+
 	/**
 	 * Write this library to an output stream.
 	 * */
@@ -294,21 +396,7 @@ public class Library {
 		try (PrintWriter out =
 			new PrintWriter(new OutputStreamWriter(outStream, "UTF-8"));
 		) {
-			final JSONObject o = new JSONObject();
-
-			final JSONArray prioritiesArray = new JSONArray();
-			priorities.forEach(x -> prioritiesArray.put(x));
-			final JSONArray spriteArray = new JSONArray();
-			sprites.values().forEach(x -> spriteArray.put(x.getJSON()));
-			final JSONArray terrainArray = new JSONArray();
-			terrains.values().forEach(x -> terrainArray.put(x.getJSON()));
-			final JSONArray cliffArray = new JSONArray();
-			cliffTextures.values().forEach(x -> cliffArray.put(x.getJSON()));
-
-			o.put("sprite_priorities", prioritiesArray);
-			o.put("sprites", spriteArray);
-			o.put("terrains", terrainArray);
-			o.put("cliffTextures", cliffArray);
+			final JSONObject o = getJSON();
 			if (stage != null) o.put("stage", stage.getJSON());
 
 			out.print(o);
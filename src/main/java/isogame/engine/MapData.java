@@ -0,0 +1,153 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import isogame.resource.ResourceLocator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The contents of a map file, unpacked but not resolved against a library.
+ * Asset ids and names are kept in a string table, and the tiles are packed in
+ * the same way as in StageInfo.
+ * */
+final class MapData {
+	private static final FacingDirection[] facingDirections =
+		FacingDirection.values();
+
+	final List<String> strings = new ArrayList<>();
+	private final Map<String, Integer> stringIndex = new HashMap<>();
+
+	int library;
+	int name = -1;
+
+	int w;
+	int h;
+	int[] textures;
+	int[] cliffTextures;
+	byte[] elevation;
+	byte[] slope;
+	byte[] flags;
+	short[] texture;
+	short[] cliff;
+
+	int[] spriteIds;
+	int[] animations;
+	byte[] directions;
+	int[] xs;
+	int[] ys;
+
+	/**
+	 * Add a string to the string table.
+	 * @return The index of the string
+	 * */
+	int intern(final String s) {
+		final Integer i = stringIndex.get(s);
+		if (i != null) return i;
+		strings.add(s);
+		stringIndex.put(s, strings.size() - 1);
+		return strings.size() - 1;
+	}
+
+	String string(final int i) throws CorruptDataException {
+		if (i < 0 || i >= strings.size())
+			throw new CorruptDataException("Invalid string index " + i + " in map file");
+		return strings.get(i);
+	}
+
+	void allocateTiles(final int w, final int h) {
+		final int n = w * h;
+		this.w = w;
+		this.h = h;
+		elevation = new byte[n];
+		slope = new byte[n];
+		flags = new byte[n];
+		texture = new short[n];
+		cliff = new short[n];
+	}
+
+	void allocateSprites(final int n) {
+		spriteIds = new int[n];
+		animations = new int[n];
+		directions = new byte[n];
+		xs = new int[n];
+		ys = new int[n];
+	}
+
+	/**
+	 * Resolve the assets and build the stage.  The tile arrays are handed over
+	 * to the stage, so this object should not be used afterwards.
+	 * */
+	Stage toStage(final ResourceLocator loc, final Library global)
+		throws CorruptDataException
+	{
+		final String stageName = name == -1? null : string(name);
+
+		final Library lib;
+		try {
+			lib = Library.fromJSON(new JSONObject(string(library)),
+				stageName, loc, global, false);
+		} catch (final JSONException e) {
+			throw new CorruptDataException("Error parsing library in map file, " +
+				e.getMessage(), e);
+		}
+
+		// each asset id is looked up once, not once per tile
+		final Palette<TerrainTexture> terrainPalette = new Palette<>(Short.MAX_VALUE);
+		for (final int i : textures) terrainPalette.indexOf(lib.getTerrain(string(i)));
+		final Palette<CliffTexture> cliffPalette = new Palette<>(Short.MAX_VALUE);
+		for (final int i : cliffTextures) cliffPalette.indexOf(lib.getCliffTexture(string(i)));
+
+		final Stage r = new Stage(new StageInfo(new ArrayTerrainStore(
+			w, h, terrainPalette, cliffPalette,
+			elevation, slope, texture, cliff, flags)), lib);
+		r.name = stageName;
+
+		// sprites are made in parallel, but added in their original order
+		final AssetCache assets = new AssetCache(lib);
+		final List<CompletableFuture<Sprite>> jobs = new ArrayList<>();
+		for (int i = 0; i < spriteIds.length; i++) {
+			final int j = i;
+			jobs.add(Library.loadAsync(() -> makeSprite(j, assets)));
+		}
+		for (final CompletableFuture<Sprite> job : jobs) r.addSprite(Library.await(job));
+
+		return r;
+	}
+
+	private Sprite makeSprite(final int i, final AssetCache assets)
+		throws CorruptDataException
+	{
+		final Sprite sprite = new Sprite(assets.getSprite(string(spriteIds[i])));
+		final String animation = string(animations[i]);
+		if (!sprite.info.animations.containsKey(animation))
+			throw new CorruptDataException("Missing animation \"" + animation + "\"");
+		sprite.setDirection(facingDirections[directions[i]]);
+		sprite.setPos(new MapPoint(xs[i], ys[i]));
+		sprite.setAnimation(animation);
+		return sprite;
+	}
+}
@@ -0,0 +1,351 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import isogame.resource.ResourceLocator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Binary map files.  These hold the same information as the JSON map files,
+ * but the tiles are stored as packed arrays that can be copied straight out
+ * of a memory mapped file, and asset ids are stored once in a string table
+ * instead of once per tile.
+ *
+ * File format, all big endian:
+ *   int magic, int version
+ *   int n, n strings (int length, UTF-8 bytes)
+ *   int library   # string holding the library section of the JSON map file
+ *   int name      # string holding the stage name, or -1
+ *   int w, int h
+ *   int n, n terrain texture ids (strings)
+ *   int n, n cliff texture ids (strings)
+ *   byte elevation[w*h], byte slope[w*h], byte flags[w*h]
+ *   short texture[w*h], short cliff[w*h]   # indices into the id lists
+ *   int n, n sprites (int sprite id, int animation id, byte direction, int x, int y)
+ *
+ * The tile arrays are in row major order.  Slopes and directions are enum
+ * ordinals, a cliff index of -1 means no cliff texture, and the flags are
+ * laid out as in StageInfo.
+ * */
+public final class MapFile {
+	private static final int MAGIC = 0x49534F4D;
+	private static final int VERSION = 1;
+
+	// the size of each tile and sprite in the file
+	private static final int BYTES_PER_TILE = 7;
+	private static final int BYTES_PER_SPRITE = 17;
+
+	private static final SlopeType[] slopeTypes = SlopeType.values();
+	private static final StartZoneType[] startZoneTypes = StartZoneType.values();
+	private static final FacingDirection[] directions = FacingDirection.values();
+
+	private MapFile() {
+	}
+
+	/**
+	 * Determine if a file is a binary map file, as opposed to a JSON map file.
+	 * */
+	public static boolean isMapFile(final File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return file.length() >= 4 && in.readInt() == MAGIC;
+		}
+	}
+
+	/**
+	 * Load a stage from a binary map file.
+	 * */
+	public static Stage load(
+		final File file, final ResourceLocator loc, final Library global
+	) throws IOException, CorruptDataException
+	{
+		return read(file).toStage(loc, global);
+	}
+
+	/**
+	 * Write a stage to a binary map file.
+	 * @param lib The local library of the stage
+	 * */
+	public static void save(
+		final File file, final Library lib, final Stage stage
+	) throws IOException
+	{
+		final MapData data = new MapData();
+		data.library = data.intern(lib.getJSON().toString());
+		if (stage.name != null) data.name = data.intern(stage.name);
+
+		final TerrainStore store = stage.terrain.getStore();
+		data.textures = new int[store.textures.size()];
+		for (int i = 0; i < data.textures.length; i++)
+			data.textures[i] = data.intern(store.textures.get(i).id);
+		data.cliffTextures = new int[store.cliffTextures.size()];
+		for (int i = 0; i < data.cliffTextures.length; i++)
+			data.cliffTextures[i] = data.intern(store.cliffTextures.get(i).id);
+
+		data.allocateTiles(store.w, store.h);
+		for (int y = 0; y < store.h; y++) {
+			for (int x = 0; x < store.w; x++) {
+				final int i = (y * store.w) + x;
+				data.elevation[i] = (byte) store.elevation(x, y);
+				data.slope[i] = (byte) store.slope(x, y);
+				data.flags[i] = (byte) store.flags(x, y);
+				data.texture[i] = (short) store.texture(x, y);
+				data.cliff[i] = (short) store.cliff(x, y);
+			}
+		}
+
+		data.allocateSprites(stage.allSprites.size());
+		int i = 0;
+		for (final Sprite s : stage.allSprites) {
+			data.spriteIds[i] = data.intern(s.info.id);
+			data.animations[i] = data.intern(s.getAnimation());
+			data.directions[i] = (byte) s.getDirection().ordinal();
+			data.xs[i] = s.getPos().x;
+			data.ys[i] = s.getPos().y;
+			i += 1;
+		}
+
+		write(data, file);
+	}
+
+	/**
+	 * Convert a binary map file to the JSON map format.  No assets are loaded,
+	 * so this works without JavaFX.
+	 * */
+	public static JSONObject toJSON(final File file)
+		throws IOException, CorruptDataException
+	{
+		final MapData data = read(file);
+
+		final JSONArray tiles = new JSONArray();
+		for (int i = 0; i < data.w * data.h; i++) {
+			final JSONObject tile = new JSONObject();
+			tile.put("p", new MapPoint(i % data.w, i / data.w).getJSON());
+			tile.put("elevation", Integer.valueOf(data.elevation[i]));
+			tile.put("slope", slopeTypes[data.slope[i]].name());
+			tile.put("isManaZone",
+				Boolean.valueOf((data.flags[i] & StageInfo.MANA_ZONE) != 0));
+			tile.put("startZone",
+				startZoneTypes[data.flags[i] >> StageInfo.START_ZONE_SHIFT].name());
+			tile.put("texture", data.string(data.textures[data.texture[i]]));
+			if (data.cliff[i] >= 0) tile.put("cliffTexture",
+				data.string(data.cliffTextures[data.cliff[i]]));
+			tiles.put(tile);
+		}
+
+		final JSONObject terrain = new JSONObject();
+		terrain.put("w", Integer.valueOf(data.w));
+		terrain.put("h", Integer.valueOf(data.h));
+		terrain.put("data", tiles);
+
+		final JSONArray sprites = new JSONArray();
+		for (int i = 0; i < data.spriteIds.length; i++) {
+			final JSONObject sprite = new JSONObject();
+			sprite.put("pos", new MapPoint(data.xs[i], data.ys[i]).getJSON());
+			sprite.put("direction", directions[data.directions[i]].name());
+			sprite.put("animation", data.string(data.animations[i]));
+			sprite.put("sprite", data.string(data.spriteIds[i]));
+			sprites.put(sprite);
+		}
+
+		final JSONObject stage = new JSONObject();
+		if (data.name != -1) stage.put("name", data.string(data.name));
+		stage.put("terrain", terrain);
+		stage.put("sprites", sprites);
+
+		try {
+			final JSONObject r = new JSONObject(data.string(data.library));
+			r.put("stage", stage);
+			return r;
+		} catch (final JSONException e) {
+			throw new CorruptDataException("Error parsing library in map file, " +
+				e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Convert a map in the JSON map format to a binary map file.  No assets are
+	 * loaded, so this works without JavaFX.
+	 * */
+	public static void fromJSON(final Reader in, final File file)
+		throws IOException, CorruptDataException, JSONException
+	{
+		write(JSONMapReader.read(in), file);
+	}
+
+	/**
+	 * Read and check a binary map file.
+	 * */
+	private static MapData read(final File file)
+		throws IOException, CorruptDataException
+	{
+		final ByteBuffer in;
+		try (FileChannel channel = FileChannel.open(
+			file.toPath(), StandardOpenOption.READ)
+		) {
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		try {
+			if (in.getInt() != MAGIC)
+				throw new CorruptDataException(file + " is not a map file");
+			final int version = in.getInt();
+			if (version != VERSION) throw new CorruptDataException(
+				file + " has unsupported map file version " + version);
+
+			final MapData data = new MapData();
+			final int nStrings = count(in);
+			for (int i = 0; i < nStrings; i++) {
+				final byte[] bytes = new byte[count(in)];
+				in.get(bytes);
+				data.strings.add(new String(bytes, StandardCharsets.UTF_8));
+			}
+
+			data.library = in.getInt();
+			data.name = in.getInt();
+
+			final int w = in.getInt();
+			final int h = in.getInt();
+			if (w <= 0 || h <= 0 || (long) w * h > Integer.MAX_VALUE)
+				throw new CorruptDataException("Invalid stage size");
+
+			data.textures = new int[count(in)];
+			in.asIntBuffer().get(data.textures);
+			in.position(in.position() + (4 * data.textures.length));
+			data.cliffTextures = new int[count(in)];
+			in.asIntBuffer().get(data.cliffTextures);
+			in.position(in.position() + (4 * data.cliffTextures.length));
+
+			// check the size before allocating anything, so a corrupted size can't
+			// make us run out of memory
+			final int n = w * h;
+			if ((long) n * BYTES_PER_TILE > in.remaining())
+				throw new CorruptDataException(file + " is truncated");
+			data.allocateTiles(w, h);
+			in.get(data.elevation);
+			in.get(data.slope);
+			in.get(data.flags);
+			in.asShortBuffer().get(data.texture);
+			in.position(in.position() + (2 * n));
+			in.asShortBuffer().get(data.cliff);
+			in.position(in.position() + (2 * n));
+
+			for (int i = 0; i < n; i++) {
+				if (data.elevation[i] < 0 ||
+					data.slope[i] < 0 || data.slope[i] >= slopeTypes.length ||
+					data.flags[i] < 0 ||
+					data.flags[i] >> StageInfo.START_ZONE_SHIFT >= startZoneTypes.length ||
+					data.texture[i] < 0 || data.texture[i] >= data.textures.length ||
+					data.cliff[i] < -1 || data.cliff[i] >= data.cliffTextures.length
+				) {
+					throw new CorruptDataException("Invalid tile at " +
+						new MapPoint(i % w, i / w) + " in " + file);
+				}
+			}
+
+			final int nSprites = count(in);
+			if ((long) nSprites * BYTES_PER_SPRITE > in.remaining())
+				throw new CorruptDataException(file + " is truncated");
+			data.allocateSprites(nSprites);
+			for (int i = 0; i < data.spriteIds.length; i++) {
+				data.spriteIds[i] = in.getInt();
+				data.animations[i] = in.getInt();
+				data.directions[i] = in.get();
+				data.xs[i] = in.getInt();
+				data.ys[i] = in.getInt();
+				if (data.directions[i] < 0 || data.directions[i] >= directions.length)
+					throw new CorruptDataException("Invalid sprite direction in " + file);
+			}
+
+			return data;
+		} catch (final BufferUnderflowException e) {
+			throw new CorruptDataException(file + " is truncated", e);
+		}
+	}
+
+	/**
+	 * Read a count, checking that it is not obviously corrupted.
+	 * */
+	private static int count(final ByteBuffer in) throws CorruptDataException {
+		final int n = in.getInt();
+		if (n < 0 || n > in.remaining())
+			throw new CorruptDataException("Invalid count in map file");
+		return n;
+	}
+
+	private static void write(final MapData data, final File file)
+		throws IOException
+	{
+		try (DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(new FileOutputStream(file)))
+		) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeInt(data.strings.size());
+			for (final String s : data.strings) {
+				final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			out.writeInt(data.library);
+			out.writeInt(data.name);
+
+			out.writeInt(data.w);
+			out.writeInt(data.h);
+			out.writeInt(data.textures.length);
+			for (final int i : data.textures) out.writeInt(i);
+			out.writeInt(data.cliffTextures.length);
+			for (final int i : data.cliffTextures) out.writeInt(i);
+
+			out.write(data.elevation);
+			out.write(data.slope);
+			out.write(data.flags);
+			final ByteBuffer shorts = ByteBuffer.allocate(4 * data.texture.length);
+			shorts.asShortBuffer().put(data.texture).put(data.cliff);
+			out.write(shorts.array());
+
+			out.writeInt(data.spriteIds.length);
+			for (int i = 0; i < data.spriteIds.length; i++) {
+				out.writeInt(data.spriteIds[i]);
+				out.writeInt(data.animations[i]);
+				out.writeByte(data.directions[i]);
+				out.writeInt(data.xs[i]);
+				out.writeInt(data.ys[i]);
+			}
+		}
+	}
+}
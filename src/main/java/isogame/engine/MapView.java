@@ -90,6 +90,8 @@ public class MapView extends View {
 		keyBindings.setSecondaryKey(KeyBinding.scrollRight, new KeyCodeCombination(KeyCode.RIGHT));
 		keyBindings.setSecondaryKey(KeyBinding.rotateLeft,  new KeyCodeCombination(KeyCode.Q));
 		keyBindings.setSecondaryKey(KeyBinding.rotateRight, new KeyCodeCombination(KeyCode.E));
+		keyBindings.setSecondaryKey(KeyBinding.zoomIn,      new KeyCodeCombination(KeyCode.EQUALS));
+		keyBindings.setSecondaryKey(KeyBinding.zoomOut,     new KeyCodeCombination(KeyCode.MINUS));
 
 		// Listen for events
 		root.addEventHandler(MouseEvent.ANY, mouseHandler);
@@ -107,6 +109,12 @@ public class MapView extends View {
 					scrolling.setClamp(getScrollBounds(this.stage));
 					centreOnTile(this.stage, centreP);
 					scrolling.reset(getScrollPos());
+				} else if (action == KeyBinding.zoomIn || action == KeyBinding.zoomOut) {
+					if (this.stage == null) return;
+					setZoom(action == KeyBinding.zoomIn? getZoom() * 2 : getZoom() / 2);
+					scrolling.setClamp(getScrollBounds(this.stage));
+					scrolling.reset(getScrollPos());
+					setScrollingAnimation();
 				}
 			});
 		});
@@ -130,6 +138,11 @@ public class MapView extends View {
 	public void centreOnTile(final MapPoint tile) {
 		if (stage == null) return;
 		this.centreOnTile(stage, tile);
+	}
+
+	@Override
+	public void centreOnTile(final Stage stage, final MapPoint tile) {
+		super.centreOnTile(stage, tile);
 		scrolling.reset(this.getScrollPos());
 	}
 
@@ -144,9 +157,19 @@ public class MapView extends View {
 			if (target == 0) target = now;
 
 			if (stage != null && (target - now) < targetDuration) {
-				setScrollPos(scrolling.valueAt(target));
-				update(enableAnimations? target : 0, stage);
-				while (target <= now) target = target + targetDuration;
+				final long t = enableAnimations? target : 0;
+
+				// skip the frame entirely if nothing has changed
+				if (scrolling.isAnimating()) setScrollPos(scrolling.valueAt(target));
+				if (needsUpdate(t, stage)) update(t, stage);
+
+				// count the frames we missed because the last one took too long
+				int periods = 0;
+				while (target <= now) {
+					target = target + targetDuration;
+					periods += 1;
+				}
+				if (periods > 1) metrics.count(FrameMetrics.Counter.FRAMES_SKIPPED, periods - 1);
 			}
 		}
 	};
@@ -236,32 +259,32 @@ public class MapView extends View {
 	private void setScrollingAnimation() {
 		if (kup && !kdown) {
 			if (kleft && !kright) {
-				scrolling.setAnimation(new Point2D(-TILEH, -TILEH), SCROLL_SPEED);
+				scrolling.setAnimation(new Point2D(-TILEH, -TILEH), SCROLL_SPEED / getZoom());
 				scrolling.start();
 			} else if (kright && !kleft) {
-				scrolling.setAnimation(new Point2D(TILEH, -TILEH), SCROLL_SPEED);
+				scrolling.setAnimation(new Point2D(TILEH, -TILEH), SCROLL_SPEED / getZoom());
 				scrolling.start();
 			} else if (!kleft && !kright) {
-				scrolling.setAnimation(new Point2D(0, -TILEH), SCROLL_SPEED);
+				scrolling.setAnimation(new Point2D(0, -TILEH), SCROLL_SPEED / getZoom());
 				scrolling.start();
 			}
 		} else if (kdown && !kup) {
 			if (kleft && !kright) {
-				scrolling.setAnimation(new Point2D(-TILEH, TILEH), SCROLL_SPEED);
+				scrolling.setAnimation(new Point2D(-TILEH, TILEH), SCROLL_SPEED / getZoom());
 				scrolling.start();
 			} else if (kright && !kleft) {
-				scrolling.setAnimation(new Point2D(TILEH, TILEH), SCROLL_SPEED);
+				scrolling.setAnimation(new Point2D(TILEH, TILEH), SCROLL_SPEED / getZoom());
 				scrolling.start();
 			} else if (!kleft && !kright) {
-				scrolling.setAnimation(new Point2D(0, TILEH), SCROLL_SPEED);
+				scrolling.setAnimation(new Point2D(0, TILEH), SCROLL_SPEED / getZoom());
 				scrolling.start();
 			}
 		} else if (!kdown && !kup) {
 			if (kleft && !kright) {
-				scrolling.setAnimation(new Point2D(-TILEH, 0), SCROLL_SPEED);
+				scrolling.setAnimation(new Point2D(-TILEH, 0), SCROLL_SPEED / getZoom());
 				scrolling.start();
 			} else if (kright && !kleft) {
-				scrolling.setAnimation(new Point2D(TILEH, 0), SCROLL_SPEED);
+				scrolling.setAnimation(new Point2D(TILEH, 0), SCROLL_SPEED / getZoom());
 				scrolling.start();
 			} else {
 				scrolling.stop();
@@ -0,0 +1,159 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import javafx.application.Platform;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.input.MouseButton;
+import javafx.scene.paint.Color;
+
+/**
+ * A small overview of a stage, with one block of pixels per tile.  Tiles are
+ * drawn in the average colour of their texture, lighter the higher they are,
+ * and tiles with sprites on them are marked.  Only the tiles that change are
+ * redrawn.  Clicking on the minimap centres the view on that tile.
+ *
+ * The minimap listens for map changes (see Stage.addMapChangeListener) while
+ * it is in a scene, and stops listening when it is removed from the scene.
+ * */
+public class Minimap extends ImageView {
+	private final Stage stage;
+	private final WritableImage image;
+	private final PixelWriter writer;
+
+	private final Set<MapPoint> dirty = new HashSet<>();
+	private boolean updateScheduled = false;
+
+	private final Consumer<MapPoint> onMapChange = this::invalidateTile;
+	private boolean listening = false;
+
+	private Function<Sprite, Color> spriteColor = s -> Color.RED;
+
+	/**
+	 * @param view The view to centre when the minimap is clicked
+	 * @param stage The stage to draw
+	 * @param blockSize The size of the block of pixels for each tile
+	 * */
+	public Minimap(final View view, final Stage stage, final double blockSize) {
+		this.stage = stage;
+		this.image = new WritableImage(stage.terrain.w, stage.terrain.h);
+		this.writer = image.getPixelWriter();
+
+		setImage(image);
+		setSmooth(false);
+		setFitWidth(stage.terrain.w * blockSize);
+		setFitHeight(stage.terrain.h * blockSize);
+
+		for (int y = 0; y < stage.terrain.h; y++) {
+			for (int x = 0; x < stage.terrain.w; x++) drawTile(new MapPoint(x, y));
+		}
+
+		stage.addMapChangeListener(onMapChange);
+		listening = true;
+
+		// stop listening while detached, and catch up on any changes we missed
+		// when we are attached again
+		sceneProperty().addListener((o, s0, s1) -> {
+			if (s1 == null && listening) {
+				stage.removeMapChangeListener(onMapChange);
+				listening = false;
+			} else if (s1 != null && !listening) {
+				stage.addMapChangeListener(onMapChange);
+				listening = true;
+				invalidateAll();
+			}
+		});
+
+		setOnMouseClicked(event -> {
+			if (event.getButton() != MouseButton.PRIMARY) return;
+			final MapPoint p = new MapPoint(
+				(int) (event.getX() / blockSize), (int) (event.getY() / blockSize));
+			if (p.x >= 0 && p.y >= 0 && p.x < stage.terrain.w && p.y < stage.terrain.h)
+				view.centreOnTile(stage, p);
+		});
+	}
+
+	/**
+	 * Set the colour used to mark the tiles that sprites are standing on.
+	 * */
+	public void setSpriteColor(final Function<Sprite, Color> spriteColor) {
+		this.spriteColor = spriteColor;
+		dirty.addAll(stage.allSprites.stream()
+			.map(s -> s.getPos()).collect(Collectors.toList()));
+		scheduleUpdate();
+	}
+
+	/**
+	 * Mark every tile as needing to be redrawn.
+	 * */
+	private void invalidateAll() {
+		for (int y = 0; y < stage.terrain.h; y++) {
+			for (int x = 0; x < stage.terrain.w; x++) dirty.add(new MapPoint(x, y));
+		}
+		scheduleUpdate();
+	}
+
+	/**
+	 * Mark a tile as needing to be redrawn.  Changes are batched up and drawn
+	 * on the next pulse.
+	 * */
+	private void invalidateTile(final MapPoint p) {
+		if (p.x < 0 || p.y < 0 || p.x >= stage.terrain.w || p.y >= stage.terrain.h)
+			return;
+		dirty.add(p);
+		scheduleUpdate();
+	}
+
+	private void scheduleUpdate() {
+		if (updateScheduled) return;
+		updateScheduled = true;
+		Platform.runLater(this::update);
+	}
+
+	/**
+	 * Redraw all the tiles that have changed.
+	 * */
+	public void update() {
+		updateScheduled = false;
+		for (final MapPoint p : dirty) drawTile(p);
+		dirty.clear();
+	}
+
+	private void drawTile(final MapPoint p) {
+		writer.setColor(p.x, p.y, tileColor(p));
+	}
+
+	private Color tileColor(final MapPoint p) {
+		final List<Sprite> sprites = stage.getSpritesByTile(p);
+		if (!sprites.isEmpty()) return spriteColor.apply(sprites.get(0));
+
+		final double elevation = stage.terrain.getElevation(p.x, p.y) +
+			(stage.terrain.getSlope(p.x, p.y) == SlopeType.NONE? 0 : 0.5);
+		return stage.terrain.getTerrain(p).getSampleColor().deriveColor(
+			0, 1, Math.min(1.6, 0.8 + (0.1 * elevation)), 1);
+	}
+}
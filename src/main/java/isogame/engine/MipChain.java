@@ -0,0 +1,93 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.Image;
+import javafx.scene.image.WritableImage;
+import static isogame.GlobalConstants.MIPMAP_LEVELS;
+
+/**
+ * The mipmaps of a whole image, usually a texture atlas page.  Each level is
+ * a half size copy of the level before, made the first time it is needed.
+ * The regions of the page take their mipmaps from these copies, so there is
+ * one image per page per level rather than one per region.
+ * */
+final class MipChain {
+	/**
+	 * Regions should start on multiples of this, so that no pixel in any
+	 * level mixes pixels from two regions.
+	 * */
+	public static final int ALIGN = 1 << MIPMAP_LEVELS;
+
+	private final Image base;
+	private final WritableImage[] levels = new WritableImage[MIPMAP_LEVELS + 1];
+
+	public MipChain(final Image base) {
+		this.base = base;
+	}
+
+	/**
+	 * Round a coordinate up to the next multiple of ALIGN.
+	 * */
+	public static int align(final int x) {
+		return ((x + ALIGN - 1) / ALIGN) * ALIGN;
+	}
+
+	/**
+	 * Get a level of the mipmap.
+	 * @param level The level, from 0 (the base image) to MIPMAP_LEVELS
+	 * */
+	public synchronized Image get(final int level) {
+		if (level <= 0) return base;
+		if (levels[level] == null) {
+			final Image larger = get(level - 1);
+			levels[level] = MipMap.downsample(larger,
+				new Rectangle2D(0, 0, larger.getWidth(), larger.getHeight()));
+		}
+		return levels[level];
+	}
+
+	/**
+	 * Bring the levels that have already been made up to date after part of
+	 * the base image has changed.
+	 * @param x The left edge of the changed area, a multiple of ALIGN
+	 * @param y The top edge of the changed area, a multiple of ALIGN
+	 * */
+	public synchronized void update(
+		final int x, final int y, final int w, final int h
+	) {
+		for (int level = 1; level <= MIPMAP_LEVELS && levels[level] != null; level++) {
+			final Image larger = get(level - 1);
+			final int x0 = x >> (level - 1);
+			final int y0 = y >> (level - 1);
+			final int w0 = Math.min((int) larger.getWidth() - x0,
+				(w + (1 << (level - 1)) - 1) >> (level - 1));
+			final int h0 = Math.min((int) larger.getHeight() - y0,
+				(h + (1 << (level - 1)) - 1) >> (level - 1));
+			if (w0 <= 0 || h0 <= 0) return;
+
+			final WritableImage part =
+				MipMap.downsample(larger, new Rectangle2D(x0, y0, w0, h0));
+			levels[level].getPixelWriter().setPixels(x0 / 2, y0 / 2,
+				(int) part.getWidth(), (int) part.getHeight(),
+				part.getPixelReader(), 0, 0);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.nio.IntBuffer;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+import static isogame.GlobalConstants.MIPMAP_LEVELS;
+
+/**
+ * Utilities for generating and selecting mipmaps.  Mipmap level 0 is the full
+ * resolution image, and each level after that is half the size of the one
+ * before.
+ * */
+final class MipMap {
+	private static final WritablePixelFormat<IntBuffer> format =
+		PixelFormat.getIntArgbPreInstance();
+
+	private MipMap() {
+	}
+
+	/**
+	 * Choose the mipmap level to use for a zoom factor.
+	 * */
+	public static int levelFor(final double zoom) {
+		if (zoom >= 1) return 0;
+		int level = 0;
+		while (level < MIPMAP_LEVELS && zoom <= 1.0d / (1 << (level + 1))) level += 1;
+		return level;
+	}
+
+	/**
+	 * Get the scale factor of a mipmap level.
+	 * */
+	public static double scale(final int level) {
+		return 1.0d / (1 << level);
+	}
+
+	/**
+	 * Make a half size copy of part of an image, using a box filter.
+	 * @param area The part of the image to copy
+	 * */
+	public static WritableImage downsample(
+		final Image img, final Rectangle2D area
+	) {
+		final int w = (int) area.getWidth();
+		final int h = (int) area.getHeight();
+		final int[] pixels = new int[w * h];
+		img.getPixelReader().getPixels(
+			(int) area.getMinX(), (int) area.getMinY(), w, h, format, pixels, 0, w);
+
+		final int w2 = Math.max(1, (w + 1) / 2);
+		final int h2 = Math.max(1, (h + 1) / 2);
+		final int[] out = new int[w2 * h2];
+		for (int y = 0; y < h2; y++) {
+			for (int x = 0; x < w2; x++) {
+				final int x0 = Math.min(w - 1, x * 2);
+				final int x1 = Math.min(w - 1, (x * 2) + 1);
+				final int y0 = Math.min(h - 1, y * 2) * w;
+				final int y1 = Math.min(h - 1, (y * 2) + 1) * w;
+				out[(y * w2) + x] = average(
+					pixels[y0 + x0], pixels[y0 + x1], pixels[y1 + x0], pixels[y1 + x1]);
+			}
+		}
+
+		final WritableImage r = new WritableImage(w2, h2);
+		r.getPixelWriter().setPixels(0, 0, w2, h2, format, out, 0, w2);
+		return r;
+	}
+
+	/**
+	 * Make a resized copy of part of an image, using bilinear filtering.  Only
+	 * pixels inside the area are sampled, so nothing bleeds in from around the
+	 * edges.
+	 * @param area The part of the image to copy
+	 * @param w The width of the new image
+	 * @param h The height of the new image
+	 * */
+	public static WritableImage resize(
+		final PixelReader img, final Rectangle2D area, final int w, final int h
+	) {
+		final int sw = (int) area.getWidth();
+		final int sh = (int) area.getHeight();
+		final int[] pixels = new int[sw * sh];
+		img.getPixels((int) area.getMinX(), (int) area.getMinY(),
+			sw, sh, format, pixels, 0, sw);
+
+		final double sx = ((double) sw) / ((double) w);
+		final double sy = ((double) sh) / ((double) h);
+		final int[] out = new int[w * h];
+		for (int y = 0; y < h; y++) {
+			final double fy = clamp(((y + 0.5d) * sy) - 0.5d, sh - 1);
+			final int y0 = (int) fy;
+			final int y1 = Math.min(sh - 1, y0 + 1);
+			final double dy = fy - y0;
+			for (int x = 0; x < w; x++) {
+				final double fx = clamp(((x + 0.5d) * sx) - 0.5d, sw - 1);
+				final int x0 = (int) fx;
+				final int x1 = Math.min(sw - 1, x0 + 1);
+				final double dx = fx - x0;
+				out[(y * w) + x] = interpolate(
+					pixels[(y0 * sw) + x0], pixels[(y0 * sw) + x1],
+					pixels[(y1 * sw) + x0], pixels[(y1 * sw) + x1], dx, dy);
+			}
+		}
+
+		final WritableImage r = new WritableImage(w, h);
+		r.getPixelWriter().setPixels(0, 0, w, h, format, out, 0, w);
+		return r;
+	}
+
+	private static double clamp(final double v, final int max) {
+		return Math.max(0, Math.min(max, v));
+	}
+
+	/**
+	 * Bilinear interpolation between four premultiplied ARGB colours.
+	 * */
+	private static int interpolate(
+		final int c00, final int c10, final int c01, final int c11,
+		final double dx, final double dy
+	) {
+		int r = 0;
+		for (int shift = 0; shift < 32; shift += 8) {
+			final double top = (((c00 >>> shift) & 0xFF) * (1 - dx)) +
+				(((c10 >>> shift) & 0xFF) * dx);
+			final double bottom = (((c01 >>> shift) & 0xFF) * (1 - dx)) +
+				(((c11 >>> shift) & 0xFF) * dx);
+			r |= ((int) Math.round((top * (1 - dy)) + (bottom * dy))) << shift;
+		}
+		return r;
+	}
+
+	/**
+	 * Average four premultiplied ARGB colours.
+	 * */
+	private static int average(
+		final int c0, final int c1, final int c2, final int c3
+	) {
+		int r = 0;
+		for (int shift = 0; shift < 32; shift += 8) {
+			final int v = ((c0 >>> shift) & 0xFF) + ((c1 >>> shift) & 0xFF) +
+				((c2 >>> shift) & 0xFF) + ((c3 >>> shift) & 0xFF);
+			r |= ((v + 2) / 4) << shift;
+		}
+		return r;
+	}
+}
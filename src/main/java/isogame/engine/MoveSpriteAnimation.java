@@ -19,11 +19,11 @@ along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
 package isogame.engine;
 
 import java.util.Optional;
-import java.util.function.Supplier;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
-import javafx.collections.ObservableList;
 import javafx.geometry.Point2D;
-import javafx.scene.Node;
+import javafx.scene.canvas.GraphicsContext;
 
 import static isogame.GlobalConstants.TILEW;
 import static isogame.GlobalConstants.TILEH;
@@ -48,6 +48,13 @@ public class MoveSpriteAnimation extends Animation {
 	private final double targetv;
 	private double v = 0d;
 
+	// the previous value of v and the times of the last two updates, for
+	// interpolation
+	private double vPrev = 0d;
+	private long tPrev = 0;
+	private long tNow = 0;
+	private boolean updated = false;
+
 	private final static Point2D upV = new Point2D(TILEW / 2d, -(TILEH / 2d));
 	private final static Point2D downV = new Point2D(-(TILEW / 2d), TILEH / 2d);
 	private final static Point2D leftV = new Point2D(-(TILEW / 2d), -(TILEH / 2d));
@@ -158,6 +165,11 @@ public class MoveSpriteAnimation extends Animation {
 	@Override public boolean updateAnimation(
 		final StageInfo terrain, final long t
 	) {
+		vPrev = v;
+		tPrev = updated? tNow : t;
+		tNow = t;
+		updated = true;
+
 		double v1 = animator.valueAt(t).getX();
 		if (v1 >= targetv) {
 			v = targetv;
@@ -179,13 +191,32 @@ public class MoveSpriteAnimation extends Animation {
 		return false;
 	}
 
-	@Override public void updateSceneGraph(
-		final ObservableList<Node> graph,
-		final StageInfo terrain,
-		final CameraAngle angle,
-		final long t
+	// where to draw the sprite, as computed by updatePlacement
+	private Point2D placement = Point2D.ZERO;
+	private double sliceX = 0d;
+	private double sliceW = 0d;
+	private boolean jumped = false;
+
+	/**
+	 * Get the distance along the path at which to draw the sprite.  When the
+	 * animation is driven by a SimulationClock, t lies between the last two
+	 * updates so we interpolate.  We never go back past the start of the
+	 * current tile, since the sprite has already moved onto it.
+	 * */
+	private double renderV(final long t) {
+		if (t >= tNow || tNow == tPrev) return v;
+		final double a = Math.max(0d, (double) (t - tPrev) / (double) (tNow - tPrev));
+		return Math.max(Math.floor(v), vPrev + ((v - vPrev) * a));
+	}
+
+	/**
+	 * Work out where to draw the sprite and its slice.
+	 * */
+	private void updatePlacement(
+		final StageInfo terrain, final CameraAngle angle, final long t
 	) {
-		final double scale = v - Math.floor(v);
+		final double rv = renderV(t);
+		final double scale = rv - Math.floor(rv);
 
 		// get the motion direction
 		Point2D offsetVector;
@@ -213,51 +244,64 @@ public class MoveSpriteAnimation extends Animation {
 		}
 
 		// handle jumps
-		if (doJump && scale >= 0.5d) {
+		jumped = doJump && scale >= 0.5d;
+		if (jumped) {
 			elevationOffset = jump;
 			if (!doneJump) sprite.invalidate();
 			doneJump = true;
 		}
 
-		// get the left and right tiles and their coordinates
-		final MapPoint pos0 = sprite.getPos();
-		final MapPoint pos1 = pos0.add(directionVector);
-
-		final Point2D pl = terrain.correctedSpriteIsoCoord(pos0, angle);
+		final Point2D pl = terrain.correctedSpriteIsoCoord(sprite.getPos(), angle);
 
-		final Tile tile0 = terrain.getTile(pos0);
-		final Tile tile1 = terrain.getTile(pos1);
-
-		// update the translations
-		sprite.sceneGraph.setTranslateX(pl.getX() + offset.getX());
-		sprite.sceneGraph.setTranslateY(pl.getY() +
-			offset.getY() + (elevationOffset * (TILEH / 2d)));
+		placement = new Point2D(pl.getX() + offset.getX(),
+			pl.getY() + offset.getY() + (elevationOffset * (TILEH / 2d)));
 
+		// the slice always lines up with the main sprite
 		if (movingAway) {
-			sprite.slicedGraphNode.setX((TILEW / 2d) - offset.getX());
-			sprite.slicedGraphNode.setWidth((TILEW / 2d) + offset.getX());
-			sprite.slicedGraph.setTranslateX(pl.getX() + (TILEW / 2d) -
-				sprite.slicedGraphNode.getX());
+			sliceX = (TILEW / 2d) - offset.getX();
+			sliceW = (TILEW / 2d) + offset.getX();
 		} else {
-			sprite.slicedGraphNode.setX(0d);
-			sprite.slicedGraphNode.setWidth((TILEW / 2d) - offset.getX());
-			sprite.slicedGraph.setTranslateX(sprite.sceneGraph.getTranslateX());
+			sliceX = 0d;
+			sliceW = (TILEW / 2d) - offset.getX();
 		}
+	}
+
+	@Override public void updateSceneGraph(
+		final SceneGraphIndex graph,
+		final StageInfo terrain,
+		final CameraAngle angle,
+		final long t
+	) {
+		updatePlacement(terrain, angle, t);
 
-		sprite.slicedGraph.setTranslateY(sprite.sceneGraph.getTranslateY());
+		// get the start and end positions
+		final MapPoint pos0 = sprite.getPos();
+		final MapPoint pos1 = pos0.add(directionVector);
+
+		// update the translations
+		sprite.sceneGraph.setTranslateX(placement.getX());
+		sprite.sceneGraph.setTranslateY(placement.getY());
+
+		sprite.setSlice(sliceX, sliceW);
+		sprite.slicedGraph.setTranslateX(placement.getX());
+		sprite.slicedGraph.setTranslateY(placement.getY());
 
 		// update the sprite
-		final Supplier<Integer> iMain = () -> {
-			if (doJump && scale >= 0.5d) {
-				return tile1.getSceneGraphIndex(graph, sprite.info.priority) + 1;
-			} else {
-				return tile0.getSceneGraphIndex(graph, sprite.info.priority) + 1;
-			}
-		};
-		final Supplier<Integer> iSlice = () ->
-			tile1.getSceneGraphIndex(graph, sprite.info.priority) + 1;
+		sprite.update(graph, jumped? pos1 : pos0, Optional.of(pos1), angle, t);
+	}
+
+	@Override public void render(
+		final BiConsumer<MapPoint, Consumer<GraphicsContext>> schedule,
+		final StageInfo terrain,
+		final CameraAngle angle,
+		final long t
+	) {
+		updatePlacement(terrain, angle, t);
 
-		sprite.update(graph, iMain, Optional.of(iSlice), angle, t);
+		final MapPoint pos0 = sprite.getPos();
+		final MapPoint pos1 = pos0.add(directionVector);
+
+		sprite.renderAt(schedule, jumped? pos1 : pos0, placement, angle, t);
+		sprite.renderSliceAt(schedule, pos1, placement, sliceX, sliceW, angle, t);
 	}
 }
-
@@ -0,0 +1,126 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import javafx.geometry.Point2D;
+
+/**
+ * Keeps track of which tiles are completely hidden behind other tiles, for a
+ * single camera angle.
+ *
+ * Every tile has two neighbours in front of it, one down and to the left on
+ * the screen and the other down and to the right.  If both of these rise at
+ * least two elevation levels above the highest point of a tile, then between
+ * them their cliff columns cover the whole outline of the tile (including its
+ * own cliff column), so there is no point in drawing it.  A tile only depends
+ * on its two front neighbours, so the map can be kept up to date cheaply as
+ * tiles change.  Tiles are only examined when they are first asked about, so
+ * that terrain which is loaded in chunks is not all pulled into memory.
+ *
+ * Sprites are not affected.  A sprite on a hidden tile is still drawn in its
+ * usual place, and the tiles in front of it cover the parts that would have
+ * been hidden anyway.
+ * */
+class OcclusionMap {
+	public final CameraAngle angle;
+
+	private final StageInfo terrain;
+
+	// UNKNOWN for tiles that have not been examined yet
+	private static final byte UNKNOWN = 0;
+	private static final byte VISIBLE = 1;
+	private static final byte HIDDEN = 2;
+	private final byte[] occluded;
+
+	// map offsets to the tiles in front of a tile, for this camera angle
+	private final MapPoint frontLeft;
+	private final MapPoint frontRight;
+
+	public OcclusionMap(final StageInfo terrain, final CameraAngle angle) {
+		this.terrain = terrain;
+		this.angle = angle;
+		this.occluded = new byte[terrain.w * terrain.h];
+
+		final MapPoint[] ds = new MapPoint[] {
+			new MapPoint(1, 0), new MapPoint(-1, 0),
+			new MapPoint(0, 1), new MapPoint(0, -1)};
+		final Point2D o = terrain.toIsoCoord(new MapPoint(0, 0), angle);
+		MapPoint fl = null;
+		MapPoint fr = null;
+		for (final MapPoint d : ds) {
+			final Point2D v = terrain.toIsoCoord(d, angle).subtract(o);
+			if (v.getY() > 0 && v.getX() < 0) fl = d;
+			if (v.getY() > 0 && v.getX() > 0) fr = d;
+		}
+		if (fl == null || fr == null) throw new RuntimeException(
+			"Invalid iso transform, this cannot happen");
+		frontLeft = fl;
+		frontRight = fr;
+	}
+
+	/**
+	 * Determine if a tile is completely hidden.
+	 * */
+	public boolean isOccluded(final MapPoint p) {
+		final int i = index(p);
+		if (occluded[i] == UNKNOWN) occluded[i] = computeOccluded(p)? HIDDEN : VISIBLE;
+		return occluded[i] == HIDDEN;
+	}
+
+	/**
+	 * Bring the map up to date after a tile has changed.
+	 * @return The tiles that have been hidden or revealed by the change.  Tiles
+	 * that have not been asked about yet are not included.
+	 * */
+	public List<MapPoint> update(final MapPoint pos) {
+		final List<MapPoint> r = new ArrayList<>(3);
+		final MapPoint[] affected = new MapPoint[] {
+			pos, pos.subtract(frontLeft), pos.subtract(frontRight)};
+
+		for (final MapPoint p : affected) {
+			if (!terrain.hasTile(p) || occluded[index(p)] == UNKNOWN) continue;
+			final byte o = computeOccluded(p)? HIDDEN : VISIBLE;
+			if (o != occluded[index(p)]) {
+				occluded[index(p)] = o;
+				r.add(p);
+			}
+		}
+
+		return r;
+	}
+
+	private boolean computeOccluded(final MapPoint p) {
+		// a sloped tile reaches up to the next elevation level
+		final int top = terrain.getElevation(p.x, p.y) +
+			(terrain.getSlope(p.x, p.y) == SlopeType.NONE? 0 : 1);
+		return isAtLeast(p.x + frontLeft.x, p.y + frontLeft.y, top + 2) &&
+			isAtLeast(p.x + frontRight.x, p.y + frontRight.y, top + 2);
+	}
+
+	private boolean isAtLeast(final int x, final int y, final int elevation) {
+		return x >= 0 && y >= 0 && x < terrain.w && y < terrain.h &&
+			terrain.getElevation(x, y) >= elevation;
+	}
+
+	private int index(final MapPoint p) {
+		return (p.y * terrain.w) + p.x;
+	}
+}
@@ -0,0 +1,105 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import javafx.geometry.Point2D;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+import javafx.scene.SnapshotParameters;
+import static isogame.GlobalConstants.ELEVATION_H;
+import static isogame.GlobalConstants.TILEH;
+import static isogame.GlobalConstants.TILEW;
+import static isogame.engine.TilePrerenderer.OFFSETX;
+import static isogame.engine.TilePrerenderer.OFFSETY;
+
+/**
+ * Renders whole stages to off-screen images, without a View or a window.
+ * Large images should be rendered in pieces, because canvases and snapshots
+ * are limited by the maximum texture size of the graphics pipeline.
+ * */
+public final class OffscreenRenderer {
+	private OffscreenRenderer() {}
+
+	/**
+	 * Get the area of iso space that contains the entire stage, including the
+	 * cliffs under the lowest tiles and the sprites sticking up above the
+	 * tiles.
+	 * */
+	public static Rectangle2D getBounds(
+		final Stage stage, final CameraAngle angle
+	) {
+		final StageInfo terrain = stage.terrain;
+
+		final int maxElevation = terrain.getMaxElevation();
+
+		final Point2D pt = terrain.toIsoCoord(terrain.getTop(angle), angle);
+		final Point2D pb = terrain.toIsoCoord(terrain.getBottom(angle), angle);
+		final Point2D pl = terrain.toIsoCoord(terrain.getLeft(angle), angle);
+		final Point2D pr = terrain.toIsoCoord(terrain.getRight(angle), angle);
+
+		final double minX = pl.getX() - OFFSETX;
+		final double maxX = pr.getX() + TILEW + OFFSETX;
+		final double maxY = pb.getY() + TILEH + OFFSETY;
+
+		// leave room for the highest tiles, and for the tallest animation of
+		// every sprite, measured from the tile it is standing on
+		double minY = pt.getY() + (ELEVATION_H * maxElevation) - OFFSETY;
+		for (final Sprite s : stage.allSprites) {
+			int h = 0;
+			for (final SpriteAnimation a : s.info.getAllAnimations()) h = Math.max(h, a.h);
+			final Point2D l = terrain.correctedIsoCoord(s.getPos(), angle);
+			minY = Math.min(minY, l.getY() + TILEH - h);
+		}
+
+		return new Rectangle2D(minX, minY, maxX - minX, maxY - minY);
+	}
+
+	/**
+	 * Render part of a stage.  Must be called on the JavaFX application thread.
+	 * @param area The area of iso space to render
+	 * @param scale The scale of the output image.  The mipmap level of the
+	 * stage is adjusted to suit.
+	 * @return An image of the area, ceil(area * scale) pixels in size, with a
+	 * transparent background
+	 * */
+	public static WritableImage render(
+		final Stage stage,
+		final CameraAngle angle,
+		final Rectangle2D area,
+		final double scale
+	) {
+		final int w = (int) Math.ceil(area.getWidth() * scale);
+		final int h = (int) Math.ceil(area.getHeight() * scale);
+
+		stage.setMipLevel(MipMap.levelFor(scale));
+
+		final Canvas canvas = new Canvas(w, h);
+		final GraphicsContext cx = canvas.getGraphicsContext2D();
+		cx.scale(scale, scale);
+		cx.translate(-area.getMinX(), -area.getMinY());
+		stage.render(cx, false, area, angle, 0);
+
+		final SnapshotParameters params = new SnapshotParameters();
+		params.setFill(Color.TRANSPARENT);
+		return canvas.snapshot(params, new WritableImage(w, h));
+	}
+}
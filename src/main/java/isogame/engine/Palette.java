@@ -0,0 +1,74 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Assigns small integer indices to objects, so that arrays of indices can
+ * stand in for arrays of references.  Objects are compared by identity, and
+ * indices are never reused.
+ * */
+final class Palette<T> {
+	private final List<T> entries = new ArrayList<>();
+	private final Map<T, Integer> indices = new IdentityHashMap<>();
+	private final int limit;
+
+	/**
+	 * @param limit The maximum number of entries
+	 * */
+	public Palette(final int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Get the index of an object, adding it to the palette if necessary.
+	 * @throws IllegalStateException if the palette is full
+	 * */
+	public int indexOf(final T x) {
+		final Integer i = indices.get(x);
+		if (i != null) return i;
+
+		if (entries.size() >= limit) throw new IllegalStateException(
+			"Too many different entries, the limit is " + limit);
+		final int r = entries.size();
+		entries.add(x);
+		indices.put(x, r);
+		return r;
+	}
+
+	/**
+	 * Get the index of an object, if it is in the palette.
+	 * */
+	public Optional<Integer> find(final T x) {
+		return Optional.ofNullable(indices.get(x));
+	}
+
+	public T get(final int i) {
+		return entries.get(i);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,198 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+import static isogame.GlobalConstants.TILEH;
+import static isogame.GlobalConstants.TILEW;
+
+/**
+ * An on-disk cache of prerendered textures.  Entries are addressed by a hash
+ * of the source images, the tile size, and the prerenderer version and mode,
+ * so they never need to be invalidated explicitly.
+ *
+ * File format (native byte order):
+ *
+ * int MAGIC, int count, int width, int height,
+ * count * width * height premultiplied ARGB pixels
+ * */
+public class PrerenderCache {
+	private static final int MAGIC = 0x49534f50;
+	private static final int HEADER_INTS = 4;
+
+	private static final WritablePixelFormat<IntBuffer> format =
+		PixelFormat.getIntArgbPreInstance();
+
+	private static Optional<Path> directory = Optional.of(Paths.get(
+		System.getProperty("user.home"), ".isogame", "prerender"));
+
+	/**
+	 * Set the directory to cache prerendered textures in.
+	 * @param directory The cache directory, or empty to disable the cache
+	 * */
+	public static synchronized void setDirectory(final Optional<Path> directory) {
+		PrerenderCache.directory = directory;
+	}
+
+	private static synchronized Optional<Path> getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Read all the data from a stream.  The caller must close the stream.
+	 * */
+	static byte[] readAll(final InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Compute the cache key for a set of source images.
+	 * @param kind Distinguishes different kinds of prerendered texture
+	 * @param sources The encoded source images
+	 * */
+	static String key(final String kind, final byte[]... sources) {
+		try {
+			final MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update((kind + ":" + TILEW + ":" + TILEH + ":" +
+				TilePrerenderer.VERSION + ":" +
+				(TilePrerenderer.isSoftwareRendering()? "software" : "canvas")
+			).getBytes("UTF-8"));
+			for (final byte[] source : sources) {
+				md.update(ByteBuffer.allocate(4).putInt(source.length).array());
+				md.update(source);
+			}
+
+			final StringBuilder r = new StringBuilder();
+			for (final byte b : md.digest()) r.append(String.format("%02x", b));
+			return r.toString();
+		} catch (final NoSuchAlgorithmException|IOException e) {
+			throw new RuntimeException("Missing SHA-256 or UTF-8, this cannot happen", e);
+		}
+	}
+
+	/**
+	 * Load prerendered textures from the cache.
+	 * @param key The cache key, as computed by key()
+	 * @param count The number of images expected
+	 * @return The images, or empty if they are not in the cache
+	 * */
+	static Optional<List<Image>> load(final String key, final int count) {
+		final Optional<Path> dir = getDirectory();
+		if (!dir.isPresent()) return Optional.empty();
+
+		final Path file = dir.get().resolve(key);
+		if (!Files.isRegularFile(file)) return Optional.empty();
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final IntBuffer data = channel.map(
+				FileChannel.MapMode.READ_ONLY, 0, channel.size())
+				.order(ByteOrder.nativeOrder()).asIntBuffer();
+
+			if (data.remaining() < HEADER_INTS) return Optional.empty();
+			final int magic = data.get();
+			final int n = data.get();
+			final int w = data.get();
+			final int h = data.get();
+			if (magic != MAGIC || n != count || w <= 0 || h <= 0 ||
+				data.remaining() != n * w * h) return Optional.empty();
+
+			final List<Image> r = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				data.position(HEADER_INTS + (i * w * h));
+				final WritableImage img = new WritableImage(w, h);
+				img.getPixelWriter().setPixels(0, 0, w, h, format, data.slice(), w);
+				r.add(img);
+			}
+			return Optional.of(r);
+		} catch (final IOException e) {
+			// treat unreadable entries as a miss
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Store prerendered textures in the cache.  The images must all be the
+	 * same size.  Failures are ignored, since the cache is only an
+	 * optimisation.
+	 * */
+	static void store(final String key, final List<Image> images) {
+		final Optional<Path> dir = getDirectory();
+		if (!dir.isPresent() || images.isEmpty()) return;
+
+		final int w = (int) images.get(0).getWidth();
+		final int h = (int) images.get(0).getHeight();
+
+		final ByteBuffer out = ByteBuffer.allocate(
+			4 * (HEADER_INTS + (images.size() * w * h))).order(ByteOrder.nativeOrder());
+		final IntBuffer data = out.asIntBuffer();
+		data.put(MAGIC).put(images.size()).put(w).put(h);
+
+		final int[] pixels = new int[w * h];
+		for (final Image img : images) {
+			if ((int) img.getWidth() != w || (int) img.getHeight() != h) return;
+			img.getPixelReader().getPixels(0, 0, w, h, format, pixels, 0, w);
+			data.put(pixels);
+		}
+
+		try {
+			Files.createDirectories(dir.get());
+
+			// write to a temporary file first so that concurrent readers never see
+			// a partial entry
+			final Path tmp = Files.createTempFile(dir.get(), key, ".tmp");
+			try {
+				try (FileChannel channel =
+					FileChannel.open(tmp, StandardOpenOption.WRITE)
+				) {
+					while (out.hasRemaining()) channel.write(out);
+				}
+				Files.move(tmp, dir.get().resolve(key),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		} catch (final IOException|UnsupportedOperationException e) {
+			// the cache is only an optimisation, so carry on without it
+		}
+	}
+}
@@ -28,7 +28,11 @@ import javafx.scene.Group;
 public class PrioritizedGroup extends Group {
 	public final int priority;
 
-	public static final int TILE = -1;
+	public static final int TILE = -2;
+
+	// priority for highlighting, which goes after the tile and before any
+	// sprites on it
+	public static final int HIGHLIGHT = -1;
 
 	public PrioritizedGroup(final int priority) {
 		this.priority = priority;
@@ -0,0 +1,44 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+/**
+ * How much of the scene graph to keep around for camera angles other than
+ * the current one.  Keeping more makes rotation faster, at the cost of
+ * memory.
+ * */
+public enum RotationCache {
+	/**
+	 * Rebuild the scene graph from scratch on every rotation.  This uses the
+	 * least memory.
+	 * */
+	NONE,
+
+	/**
+	 * Keep the nodes for each camera angle once it has been displayed, so only
+	 * the first rotation to each angle is slow.
+	 * */
+	VISITED,
+
+	/**
+	 * Like VISITED, but also build the nodes for the other camera angles in the
+	 * background, a few tiles each frame.
+	 * */
+	ALL
+}
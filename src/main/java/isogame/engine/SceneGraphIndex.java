@@ -0,0 +1,316 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+
+/**
+ * Keeps track of where things are in the stage scene graph, so that sprites
+ * can be inserted at the correct depth without searching the whole graph.
+ *
+ * The scene graph consists of some fixed nodes at the back (e.g. baked
+ * terrain), followed by the live tiles (the ones that are not culled) in draw
+ * order.  Each tile is followed by a highlight band, if one ends on that tile
+ * (see HighlightOverlay), and then the sprites standing on it, in ascending
+ * order of priority.  Every live tile has
+ * a slot, and we keep a count of the nodes in each slot in a binary indexed
+ * tree, so the position of a slot can be found in O(log n) time.  A slot need
+ * not contain its tile's node.  Tiles that are hidden or drawn by baked
+ * terrain chunks have no node, so a map of flat ground needs only the chunks
+ * and the sprites.
+ *
+ * Only the live tiles have slots, so the index is the size of the visible
+ * window rather than the whole map.  Nodes on tiles that are not live share
+ * the slot of the live tile before them in draw order (slot 0 is for nodes
+ * before the first live tile).
+ * */
+public class SceneGraphIndex {
+	private final ObservableList<Node> graph;
+	private final StageInfo terrain;
+
+	private CameraAngle angle = CameraAngle.UL;
+	private int fixed = 0;
+
+	// the draw orders of the live tiles, in ascending order.  Slot i + 1
+	// belongs to the tile with draw order orders[i].  The arrays are reused by
+	// reset, so they may be longer than they need to be.
+	private int[] orders = new int[0];
+	private int tileCount = 0;
+	private int slotCount = 1;
+
+	// binary indexed tree over the slots, counting the nodes in each slot
+	private int[] tree = new int[2];
+
+	// which slots contain their tile's node, and which contain a highlight band
+	private boolean[] hasTile = new boolean[1];
+	private boolean[] hasHighlight = new boolean[1];
+
+	// the slot of every sprite node and highlight band in the graph
+	private final Map<Node, Integer> slots = new HashMap<>();
+	private final Map<Node, Integer> highlightSlots = new HashMap<>();
+
+	// called with the draw order row of a live tile when the sprites in its
+	// slot change
+	private IntConsumer onSpritesChanged = row -> {};
+
+	private FrameMetrics metrics = new FrameMetrics();
+
+	public SceneGraphIndex(
+		final ObservableList<Node> graph, final StageInfo terrain
+	) {
+		this.graph = graph;
+		this.terrain = terrain;
+	}
+
+	/**
+	 * Set a callback for when sprites are added to or removed from the slot of
+	 * a live tile.  The callback gets the row of the tile (its draw order
+	 * divided by the width of the map).
+	 * */
+	void setOnSpritesChanged(final IntConsumer onSpritesChanged) {
+		this.onSpritesChanged = onSpritesChanged;
+	}
+
+	/**
+	 * Set where to count the nodes added to and removed from the scene graph.
+	 * */
+	void setMetrics(final FrameMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Get the underlying scene graph.
+	 * */
+	public ObservableList<Node> getGraph() {
+		return graph;
+	}
+
+	/**
+	 * Replace the entire contents of the scene graph.  Any sprites will have to
+	 * be inserted again.
+	 * @param fixedNodes Nodes to go behind all the tiles
+	 * @param tiles The live tiles, in draw order
+	 * @param tileNode Gets the node for each tile, or null if the tile has no
+	 * node
+	 * @param angle The camera angle that determines the draw order
+	 * */
+	public void reset(
+		final List<Node> fixedNodes,
+		final List<Tile> tiles,
+		final Function<Tile, Node> tileNode,
+		final CameraAngle angle
+	) {
+		this.angle = angle;
+		this.fixed = fixedNodes.size();
+
+		tileCount = tiles.size();
+		slotCount = tileCount + 1;
+		if (tileCount > orders.length) {
+			orders = new int[tileCount];
+			tree = new int[slotCount + 1];
+			hasTile = new boolean[slotCount];
+			hasHighlight = new boolean[slotCount];
+		} else {
+			Arrays.fill(tree, 0, slotCount + 1, 0);
+			Arrays.fill(hasTile, 0, slotCount, false);
+			Arrays.fill(hasHighlight, 0, slotCount, false);
+		}
+		slots.clear();
+		highlightSlots.clear();
+
+		final List<Node> nodes = new ArrayList<>(fixedNodes);
+		int slot = 1;
+		for (final Tile tile : tiles) {
+			orders[slot - 1] = terrain.drawOrder(tile.pos, angle);
+			final Node node = tileNode.apply(tile);
+			if (node != null) {
+				hasTile[slot] = true;
+				nodes.add(node);
+			}
+			slot += 1;
+		}
+
+		// build the tree in linear time
+		for (int i = 1; i <= slotCount; i++) {
+			if (hasTile[i - 1]) tree[i] += 1;
+			final int j = i + (i & -i);
+			if (j <= slotCount) tree[j] += tree[i];
+		}
+
+		metrics.count(FrameMetrics.Counter.NODES_REMOVED, graph.size());
+		metrics.count(FrameMetrics.Counter.NODES_ADDED, nodes.size());
+		graph.setAll(nodes);
+	}
+
+	/**
+	 * Add a tile node to the scene graph, ahead of any sprites on that tile.
+	 * Does nothing if the tile is already in the scene graph.
+	 * */
+	public void insertTile(final Tile tile, final Node node) {
+		final int slot = tileSlot(tile.pos);
+		if (slot < 0 || hasTile[slot]) return;
+
+		graph.add(slotStart(slot), node);
+		hasTile[slot] = true;
+		add(slot, 1);
+		metrics.count(FrameMetrics.Counter.NODES_ADDED, 1);
+	}
+
+	/**
+	 * Remove a tile node from the scene graph, leaving any sprites on that tile
+	 * where they are.  Does nothing if the tile is not in the scene graph.
+	 * */
+	public void removeTile(final Tile tile) {
+		final int slot = tileSlot(tile.pos);
+		if (slot < 0 || !hasTile[slot]) return;
+
+		graph.remove(slotStart(slot));
+		hasTile[slot] = false;
+		add(slot, -1);
+		metrics.count(FrameMetrics.Counter.NODES_REMOVED, 1);
+	}
+
+	/**
+	 * Insert a sprite node after a tile and any lower or equal priority sprites
+	 * already on that tile.
+	 * @param node The node to insert
+	 * @param p The tile the sprite is on
+	 * @param priority The sprite priority
+	 * */
+	public void insert(final Node node, final MapPoint p, final int priority) {
+		final int slot = slotOf(p);
+
+		int i = slotStart(slot) + (hasTile[slot]? 1 : 0);
+		final int end = slotStart(slot) + count(slot);
+		while (i < end) {
+			final Node n = graph.get(i);
+			if (n instanceof PrioritizedGroup &&
+				((PrioritizedGroup) n).priority > priority) break;
+			i += 1;
+		}
+
+		graph.add(i, node);
+		slots.put(node, slot);
+		add(slot, 1);
+		metrics.count(FrameMetrics.Counter.NODES_ADDED, 1);
+		if (slot > 0) onSpritesChanged.accept(orders[slot - 1] / terrain.w);
+	}
+
+	/**
+	 * Insert a highlight band after a live tile, and before any sprites on that
+	 * tile.  Does nothing if the tile is not live or already has a band.
+	 * @param node The band, which should have priority HIGHLIGHT
+	 * @param p The last tile covered by the band
+	 * @return true if the band was inserted
+	 * */
+	public boolean insertHighlight(final PrioritizedGroup node, final MapPoint p) {
+		final int slot = tileSlot(p);
+		if (slot < 0 || hasHighlight[slot]) return false;
+
+		graph.add(slotStart(slot) + (hasTile[slot]? 1 : 0), node);
+		hasHighlight[slot] = true;
+		highlightSlots.put(node, slot);
+		add(slot, 1);
+		metrics.count(FrameMetrics.Counter.NODES_ADDED, 1);
+		return true;
+	}
+
+	/**
+	 * Determine if there are any sprites in the slot of a live tile.  These
+	 * may be sprites on the tile itself, or on tiles that are not live.
+	 * */
+	public boolean hasSprites(final MapPoint p) {
+		final int slot = tileSlot(p);
+		if (slot < 0) return false;
+		return count(slot) >
+			(hasTile[slot]? 1 : 0) + (hasHighlight[slot]? 1 : 0);
+	}
+
+	/**
+	 * Remove a sprite node or highlight band, if it is in the scene graph.
+	 * */
+	public void remove(final Node node) {
+		Integer slot = slots.remove(node);
+		if (slot == null) {
+			slot = highlightSlots.remove(node);
+			if (slot == null) return;
+			hasHighlight[slot] = false;
+		} else if (slot > 0) {
+			onSpritesChanged.accept(orders[slot - 1] / terrain.w);
+		}
+
+		final int start = slotStart(slot);
+		final int end = start + count(slot);
+		for (int i = start; i < end; i++) {
+			if (graph.get(i) == node) {
+				graph.remove(i);
+				break;
+			}
+		}
+		add(slot, -1);
+		metrics.count(FrameMetrics.Counter.NODES_REMOVED, 1);
+	}
+
+	/**
+	 * Get the slot for nodes on a tile.
+	 * */
+	private int slotOf(final MapPoint p) {
+		final int order = terrain.drawOrder(p, angle);
+		final int i = Arrays.binarySearch(orders, 0, tileCount, order);
+		return i >= 0? i + 1 : -(i + 1);
+	}
+
+	/**
+	 * Get the slot of a live tile.
+	 * @return -1 if the tile is not live
+	 * */
+	private int tileSlot(final MapPoint p) {
+		final int order = terrain.drawOrder(p, angle);
+		final int i = Arrays.binarySearch(orders, 0, tileCount, order);
+		return i >= 0? i + 1 : -1;
+	}
+
+	/**
+	 * Get the index in the scene graph of the first node in a slot.
+	 * */
+	private int slotStart(final int slot) {
+		int r = fixed;
+		for (int i = slot; i > 0; i -= i & -i) r += tree[i];
+		return r;
+	}
+
+	/**
+	 * Get the number of nodes in a slot.
+	 * */
+	private int count(final int slot) {
+		return slotStart(slot + 1) - slotStart(slot);
+	}
+
+	private void add(final int slot, final int d) {
+		for (int i = slot + 1; i <= slotCount; i += i & -i) tree[i] += d;
+	}
+}
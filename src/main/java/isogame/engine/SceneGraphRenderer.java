@@ -0,0 +1,69 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.util.Optional;
+
+import javafx.scene.Group;
+import javafx.scene.Node;
+
+/**
+ * Renders a stage by maintaining a retained scene graph.  This is the
+ * default renderer.
+ * */
+public class SceneGraphRenderer implements StageRenderer {
+	private final Group root = new Group();
+	private final Group graph = new Group();
+
+	// only exists while debugging is turned on
+	private Optional<DebugOverlay> debug = Optional.empty();
+
+	public SceneGraphRenderer() {
+		root.getChildren().add(graph);
+	}
+
+	@Override
+	public Node getNode() {
+		return root;
+	}
+
+	@Override
+	public void render(final Stage stage, final View view, final long t) {
+		stage.setMetrics(view.metrics);
+		stage.setVisibleArea(view.cullOffscreen.get()?
+			Optional.of(view.getVisibleArea()) : Optional.empty());
+		stage.setTerrainBaking(view.bakeTerrain.get());
+		stage.setRotationCache(view.rotationCache.get());
+		stage.setMipLevel(view.getMipLevel());
+		stage.update(graph.getChildren(), t, view.getCameraAngle());
+
+		view.metrics.beginPhase(FrameMetrics.Phase.DEBUG);
+		if (view.isDebug.get()) {
+			if (!debug.isPresent()) {
+				debug = Optional.of(new DebugOverlay());
+				root.getChildren().add(debug.get().getNode());
+			}
+			stage.updateDebugOverlay(debug.get());
+		} else if (debug.isPresent()) {
+			root.getChildren().remove(debug.get().getNode());
+			debug = Optional.empty();
+		}
+		view.metrics.endPhase(FrameMetrics.Phase.DEBUG);
+	}
+}
@@ -0,0 +1,120 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.util.function.LongConsumer;
+import static isogame.GlobalConstants.SIMULATION_MAX_CATCHUP;
+import static isogame.GlobalConstants.SIMULATION_RATE;
+
+/**
+ * A clock that advances the simulation (sprite animations etc.) in fixed
+ * ticks, independently of the rendering frame rate.  Rendering happens
+ * slightly behind the simulation, so that sprite positions can be
+ * interpolated between the last two ticks.
+ * */
+public class SimulationClock {
+	/**
+	 * Length of a tick in nanoseconds.
+	 * */
+	public final long tickPeriod;
+
+	/**
+	 * Maximum number of ticks to run in a single frame.  If we fall further
+	 * behind than this the simulation slows down instead of trying to catch up.
+	 * */
+	public final int maxCatchUp;
+
+	private boolean started = false;
+
+	// simulation time of the last tick
+	private long lastTick = 0;
+
+	// difference between the real time and the simulation time.  This grows
+	// every time we give up on catching up.
+	private long offset = 0;
+
+	/**
+	 * Create a clock with the default rate and catch up limit.
+	 * */
+	public SimulationClock() {
+		this(SIMULATION_RATE, SIMULATION_MAX_CATCHUP);
+	}
+
+	/**
+	 * @param ticksPerSecond The simulation rate
+	 * @param maxCatchUp The maximum number of ticks to run in a single frame
+	 * */
+	public SimulationClock(final double ticksPerSecond, final int maxCatchUp) {
+		if (ticksPerSecond <= 0)
+			throw new RuntimeException("Invalid simulation rate " + ticksPerSecond);
+		if (maxCatchUp < 1)
+			throw new RuntimeException("Invalid catch up limit " + maxCatchUp);
+
+		this.tickPeriod = (long) (1000000000.0d / ticksPerSecond);
+		this.maxCatchUp = maxCatchUp;
+	}
+
+	/**
+	 * Restart the clock.  The next call to advance runs a tick immediately.
+	 * */
+	public void reset() {
+		started = false;
+	}
+
+	/**
+	 * Run all the ticks that are due.
+	 * @param now The current time in nanoseconds
+	 * @param tick Called with the simulation time of each tick
+	 * */
+	public void advance(final long now, final LongConsumer tick) {
+		if (!started) {
+			started = true;
+			lastTick = now;
+			offset = 0;
+			tick.accept(lastTick);
+			return;
+		}
+
+		final long simNow = now - offset;
+		for (int i = 0; i < maxCatchUp && lastTick + tickPeriod <= simNow; i++) {
+			lastTick += tickPeriod;
+			tick.accept(lastTick);
+		}
+
+		// drop any ticks we couldn't get to
+		if (lastTick + tickPeriod <= simNow) offset = now - lastTick;
+	}
+
+	/**
+	 * Get the simulation time to render at.  This lies between the last two
+	 * ticks, so that animations can interpolate their positions.
+	 * @param now The current time in nanoseconds
+	 * */
+	public long renderTime(final long now) {
+		final long t = now - offset - tickPeriod;
+		return Math.max(lastTick - tickPeriod, Math.min(lastTick, t));
+	}
+
+	/**
+	 * Get the simulation time of the last tick.
+	 * */
+	public long getTime() {
+		return lastTick;
+	}
+}
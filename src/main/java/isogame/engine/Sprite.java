@@ -22,13 +22,12 @@ import isogame.GlobalConstants;
 
 import java.util.Optional;
 import java.util.function.BiConsumer;
-import java.util.function.Supplier;
+import java.util.function.Consumer;
 
-import javafx.collections.ObservableList;
 import javafx.geometry.Point2D;
-import javafx.scene.Node;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.canvas.GraphicsContext;
-import javafx.scene.shape.Rectangle;
+import javafx.scene.image.ImageView;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -54,8 +53,8 @@ public class Sprite extends VisibleObject implements HasJSONRepresentation {
 	// The current scenegraph node
 	public final PrioritizedGroup sceneGraph;
 	public final PrioritizedGroup slicedGraph;
-	public final Rectangle sceneGraphNode = new Rectangle();
-	public final Rectangle slicedGraphNode = new Rectangle();
+	public final ImageView sceneGraphNode = new ImageView();
+	public final ImageView slicedGraphNode = new ImageView();
 
 	// animate the frames
 	private FrameAnimator frameAnimator;
@@ -70,6 +69,12 @@ public class Sprite extends VisibleObject implements HasJSONRepresentation {
 		this.onMove = onMove;
 	}
 
+	private Runnable onInvalidate = () -> {};
+
+	void doOnInvalidate(final Runnable onInvalidate) {
+		this.onInvalidate = onInvalidate;
+	}
+
 	/**
 	 * @param info template to make the sprite
 	 * */
@@ -105,6 +110,7 @@ public class Sprite extends VisibleObject implements HasJSONRepresentation {
 		}
 
 		this.animationChain.ifPresent(chain -> chain.queueAnimation(anim));
+		onInvalidate.run();
 	}
 
 	/**
@@ -130,15 +136,19 @@ public class Sprite extends VisibleObject implements HasJSONRepresentation {
 		this.frame = -1;
 		this.frameAnimator = new FrameAnimator(
 			this.animation.frames, this.animation.framerate);
+		onInvalidate.run();
 
-		sceneGraphNode.setWidth(this.animation.w);
-		sceneGraphNode.setHeight(this.animation.h);
-		slicedGraphNode.setWidth(this.animation.w);
-		slicedGraphNode.setHeight(this.animation.h);
 		sceneGraphNode.setTranslateY(GlobalConstants.TILEH - this.animation.h);
 		slicedGraphNode.setTranslateY(GlobalConstants.TILEH - this.animation.h);
 	}
 
+	/**
+	 * Get the id of the current animation.
+	 * */
+	public String getAnimation() {
+		return animation.id;
+	}
+
 	/**
 	 * Set the position of this sprite
 	 * @param pos The new position for the sprite
@@ -164,43 +174,81 @@ public class Sprite extends VisibleObject implements HasJSONRepresentation {
 	}
 
 	private boolean isSliced = false;
+	private double sliceX = 0;
+	private double sliceW = 0;
+	private int mipLevel = 0;
+
+	/**
+	 * Set the part of the sprite shown by the sliced node.
+	 * @param sliceX The left hand side of the slice
+	 * @param sliceW The width of the slice
+	 * */
+	void setSlice(final double sliceX, final double sliceW) {
+		this.sliceX = sliceX;
+		this.sliceW = sliceW;
+		slicedGraphNode.setX(sliceX);
+		if (sliceW > 0) {
+			// the viewport is in the coordinates of the mipmapped image
+			final double scale = MipMap.scale(mipLevel);
+			slicedGraphNode.setViewport(new Rectangle2D(
+				sliceX * scale, 0, sliceW * scale, animation.h * scale));
+			slicedGraphNode.setFitWidth(sliceW);
+			slicedGraphNode.setFitHeight(animation.h);
+			slicedGraphNode.setVisible(true);
+		} else {
+			// a viewport with no width would show the whole image
+			slicedGraphNode.setVisible(false);
+		}
+	}
+
+	/**
+	 * Set the mipmap level to draw this sprite with.
+	 * */
+	void setMipLevel(final int mipLevel) {
+		if (mipLevel == this.mipLevel) return;
+		this.mipLevel = mipLevel;
+		setSlice(sliceX, sliceW);
+		invalidate();
+	}
 
 	/**
 	 * Update this sprite manually.
 	 * @param parent the scenegraph
-	 * @param iMain the index at which to insert the main slice
-	 * @param iSlice the index at which to insert the partial
+	 * @param main the tile on which to place the main slice
+	 * @param slice the tile on which to place the partial
 	 *           (if this sprite is sliced)
 	 * */
 	void update(
-		final ObservableList<Node> parent,
-		final Supplier<Integer> iMain,
-		final Optional<Supplier<Integer>> iSlice,
+		final SceneGraphIndex parent,
+		final MapPoint main,
+		final Optional<MapPoint> slice,
 		final CameraAngle angle, final long t
 	) {
 		final boolean moveSprite =
-			pos0.isPresent() || iSlice.isPresent() != isSliced;
+			pos0.isPresent() || slice.isPresent() != isSliced;
 		final int frame1 = frameAnimator.frameAt(t);
 
 		if (frame1 != frame || moveSprite) {
 			frame = frame1;
-			animation.updateFrame(sceneGraphNode, frame1, angle, direction);
+			animation.updateFrame(sceneGraphNode, frame1, angle, direction, mipLevel);
+			sceneGraphNode.setFitWidth(animation.w);
+			sceneGraphNode.setFitHeight(animation.h);
 		}
 
-		if (isSliced || iSlice.isPresent()) animation.updateFrame(
-			slicedGraphNode, frame, angle, direction);
+		if (isSliced || slice.isPresent()) animation.updateFrame(
+			slicedGraphNode, frame, angle, direction, mipLevel);
 
 		if (moveSprite) {
 			// the sprite has been moved
 			parent.remove(sceneGraph);
 			parent.remove(slicedGraph);
 
-			parent.add(iMain.get(), sceneGraph);
+			parent.insert(sceneGraph, main, info.priority);
 
-			iSlice.ifPresent(i -> parent.add(i.get(), slicedGraph));
+			slice.ifPresent(p -> parent.insert(slicedGraph, p, info.priority));
 			pos0 = Optional.empty();
 
-			isSliced = iSlice.isPresent();
+			isSliced = slice.isPresent();
 
 			onChange.accept(sceneGraph);
 		}
@@ -210,7 +258,7 @@ public class Sprite extends VisibleObject implements HasJSONRepresentation {
 	 * Update this sprite in the scene graph using the default method.
 	 * */
 	public void updateSceneGraph(
-		final ObservableList<Node> graph,
+		final SceneGraphIndex graph,
 		final StageInfo terrain,
 		final CameraAngle angle,
 		final long t
@@ -218,22 +266,152 @@ public class Sprite extends VisibleObject implements HasJSONRepresentation {
 		if (animationChain.isPresent()) {
 			animationChain.get().updateSceneGraph(graph, terrain, angle, t);
 		} else {
-			final Tile tile = terrain.getTile(pos);
-			final Point2D l = terrain.correctedSpriteIsoCoord(pos, angle);
-			sceneGraph.setTranslateX(l.getX());
-			sceneGraph.setTranslateY(l.getY());
-			final Supplier<Integer> iL = () ->
-				tile.getSceneGraphIndex(graph, info.priority) + 1;
-			update(graph, iL, Optional.empty(), angle, t);
+			placeSceneGraph(graph, terrain, angle, t);
+		}
+	}
+
+	/**
+	 * Update this sprite in the scene graph without advancing any animations.
+	 * This is used when the animations are driven by a SimulationClock.
+	 * */
+	void renderSceneGraph(
+		final SceneGraphIndex graph,
+		final StageInfo terrain,
+		final CameraAngle angle,
+		final long t
+	) {
+		final Optional<Animation> a =
+			animationChain.flatMap(c -> c.getActiveAnimation());
+		if (a.isPresent()) {
+			a.get().updateSceneGraph(graph, terrain, angle, t);
+		} else {
+			placeSceneGraph(graph, terrain, angle, t);
+		}
+	}
+
+	/**
+	 * Place this sprite on its tile in the scene graph.
+	 * */
+	void placeSceneGraph(
+		final SceneGraphIndex graph,
+		final StageInfo terrain,
+		final CameraAngle angle,
+		final long t
+	) {
+		final Point2D l = terrain.correctedSpriteIsoCoord(pos, angle);
+		sceneGraph.setTranslateX(l.getX());
+		sceneGraph.setTranslateY(l.getY());
+		update(graph, pos, Optional.empty(), angle, t);
+	}
+
+	/**
+	 * Render this sprite onto a canvas using the default method.
+	 * @param schedule Schedules a drawing operation to run immediately after a
+	 * particular tile has been drawn
+	 * */
+	public void render(
+		final BiConsumer<MapPoint, Consumer<GraphicsContext>> schedule,
+		final StageInfo terrain,
+		final CameraAngle angle,
+		final long t
+	) {
+		if (animationChain.isPresent()) {
+			animationChain.get().render(schedule, terrain, angle, t);
+		} else {
+			renderAt(schedule, pos,
+				terrain.correctedSpriteIsoCoord(pos, angle), angle, t);
 		}
 	}
 
+	/**
+	 * Render this sprite onto a canvas without advancing any animations.  This
+	 * is used when the animations are driven by a SimulationClock.
+	 * */
+	void renderOnly(
+		final BiConsumer<MapPoint, Consumer<GraphicsContext>> schedule,
+		final StageInfo terrain,
+		final CameraAngle angle,
+		final long t
+	) {
+		final Optional<Animation> a =
+			animationChain.flatMap(c -> c.getActiveAnimation());
+		if (a.isPresent()) {
+			a.get().render(schedule, terrain, angle, t);
+		} else {
+			renderAt(schedule, pos,
+				terrain.correctedSpriteIsoCoord(pos, angle), angle, t);
+		}
+	}
+
+	/**
+	 * Render this sprite at a particular location.
+	 * @param schedule Schedules a drawing operation
+	 * @param tile The tile to draw the sprite after
+	 * @param l Where to draw the sprite in iso space
+	 * */
+	void renderAt(
+		final BiConsumer<MapPoint, Consumer<GraphicsContext>> schedule,
+		final MapPoint tile,
+		final Point2D l,
+		final CameraAngle angle,
+		final long t
+	) {
+		renderSliceAt(schedule, tile, l, 0, GlobalConstants.TILEW, angle, t);
+	}
+
+	/**
+	 * Render a vertical slice of this sprite at a particular location.
+	 * @param schedule Schedules a drawing operation
+	 * @param tile The tile to draw the sprite after
+	 * @param l Where to draw the sprite in iso space
+	 * @param sliceX The left hand side of the slice
+	 * @param sliceW The width of the slice
+	 * */
+	void renderSliceAt(
+		final BiConsumer<MapPoint, Consumer<GraphicsContext>> schedule,
+		final MapPoint tile,
+		final Point2D l,
+		final double sliceX,
+		final double sliceW,
+		final CameraAngle angle,
+		final long t
+	) {
+		frame = frameAnimator.frameAt(t);
+		schedule.accept(tile, cx -> {
+			cx.save();
+			cx.translate(l.getX(), l.getY());
+			cx.beginPath();
+			cx.rect(sliceX, GlobalConstants.TILEH - animation.h, sliceW, animation.h);
+			cx.clip();
+			drawFrame(cx, t, angle);
+			cx.restore();
+		});
+	}
+
+	/**
+	 * Advance any external animations without touching the scene graph.  This
+	 * keeps sprites moving while they are culled.
+	 * */
+	void updateAnimation(final StageInfo terrain, final long t) {
+		animationChain.ifPresent(chain -> chain.updateAnimation(terrain, t));
+	}
+
 	/**
 	 * Mark the scene graph information in the sprite as invalid.
 	 * This will force the sprite to be reconstructed on the next update.
 	 * */
 	public void invalidate() {
 		pos0 = Optional.of(pos);
+		onInvalidate.run();
+	}
+
+	/**
+	 * Get the time at which this sprite next needs to be updated.
+	 * @param t The current time
+	 * @return Long.MAX_VALUE if the sprite will not change by itself
+	 * */
+	long nextUpdateAt(final long t) {
+		return animationChain.isPresent()? t : frameAnimator.nextFrameAt(t);
 	}
 
 	/**
@@ -257,11 +435,21 @@ public class Sprite extends VisibleObject implements HasJSONRepresentation {
 	) {
 		final int frame = frameAnimator.frameAt(t);
 		cx.translate(0, GlobalConstants.TILEH - animation.h);
-		animation.drawFrame(cx, frame, angle, direction);
+		animation.drawFrame(cx, frame, angle, direction, mipLevel);
 	}
 
 	public static Sprite fromJSON(final JSONObject json, final Library lib)
 		throws CorruptDataException
+	{
+		return fromJSON(json, lib::getSprite);
+	}
+
+	/**
+	 * Parse a sprite, looking up the sprite info with the given function.
+	 * */
+	static Sprite fromJSON(
+		final JSONObject json, final AssetCache.Lookup<SpriteInfo> sprites
+	) throws CorruptDataException
 	{
 		try {
 			final JSONObject pos = json.getJSONObject("pos");
@@ -269,7 +457,7 @@ public class Sprite extends VisibleObject implements HasJSONRepresentation {
 			final String spriteID = json.getString("sprite");
 			final String animation = json.getString("animation");
 
-			final Sprite sprite = new Sprite(lib.getSprite(spriteID));
+			final Sprite sprite = new Sprite(sprites.get(spriteID));
 			sprite.direction = FacingDirection.valueOf(direction);
 			sprite.pos = MapPoint.fromJSON(pos);
 			sprite.setAnimation(animation);
@@ -22,15 +22,14 @@ import isogame.GlobalConstants;
 import isogame.resource.ResourceLocator;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import javafx.geometry.Rectangle2D;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.image.PixelReader;
-import javafx.scene.paint.ImagePattern;
-import javafx.scene.paint.Paint;
-import javafx.scene.shape.Rectangle;
+import javafx.scene.image.WritableImage;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -55,13 +54,21 @@ public class SpriteAnimation implements HasJSONRepresentation {
 	public final int w;
 	public final int h; 
 
-	private final Image buffer;
-	private final Paint[] frameTextures;
-	private final Rectangle2D[] frameClips;
-	private final PixelReader hitTester;
-	private final int hitW;
-	private final int hitH;
-	private final double sf;
+	// the sprite sheet, at its original size
+	private final PixelReader sheet;
+
+	// the size of a frame in the sprite sheet
+	private final double sheetW;
+	private final double sheetH;
+
+	// The individual frames, sliced out of the sheet on first use.  Indexed by
+	// (frame * 4) + rotation.
+	private final Image[] frameImages;
+	private final PixelReader[] frameHitTesters;
+
+	// mipmaps of the frames, generated on demand.  Indexed by mipmap level - 1,
+	// then by frame index.
+	private final Image[][] frameMips;
 
 	public SpriteAnimation(
 		final ResourceLocator loc,
@@ -77,27 +84,22 @@ public class SpriteAnimation implements HasJSONRepresentation {
 		this.url = url;
 
 		try {
-			buffer = new Image(loc.gfx(url));
-			hitTester = buffer.getPixelReader();
-			hitW = (int) buffer.getWidth();
-			hitH = (int) buffer.getHeight();
-
-			final double iw = buffer.getWidth() / ((double) frames);
-			final double ih = buffer.getHeight() / 4.0d;
-			sf = GlobalConstants.TILEW / iw;
-			w = (int) GlobalConstants.TILEW;
-			h = (int) ((GlobalConstants.TILEW / iw) * ih);
-
-			frameTextures = new Paint[frames * 4];
-			frameClips = new Rectangle2D[frames * 4];
-			for (int d = 0; d < 4; d++) {
-				for (int f = 0; f < frames; f++) {
-					final int i = (f * 4) + d;
-					frameTextures[i] =
-						new ImagePattern(buffer, -f * w, -d * h, frames * w, 4 * h, false);
-					frameClips[i] = new Rectangle2D(f * iw, d * ih, iw, ih);
-				}
+			final Image raw;
+			try (InputStream in = loc.gfx(url)) {
+				raw = new Image(in);
 			}
+			if (raw.isError()) throw new CorruptDataException(
+				"Cannot decode sprite sheet " + url, raw.getException());
+
+			sheet = raw.getPixelReader();
+			sheetW = raw.getWidth() / ((double) frames);
+			sheetH = raw.getHeight() / 4.0d;
+			w = (int) GlobalConstants.TILEW;
+			h = (int) ((GlobalConstants.TILEW / sheetW) * sheetH);
+
+			frameImages = new Image[frames * 4];
+			frameHitTesters = new PixelReader[frames * 4];
+			frameMips = new Image[GlobalConstants.MIPMAP_LEVELS][frames * 4];
 
 		} catch (IOException e) {
 			throw new CorruptDataException(
@@ -123,14 +125,64 @@ public class SpriteAnimation implements HasJSONRepresentation {
 	) {
 		final int y = y0 + h - ((int) GlobalConstants.TILEH);
 
-		if (x < 0 || x >= w || y < 0 || y >= h) return false;
+		if (frame < 0 || x < 0 || x >= w || y < 0 || y >= h) return false;
+
+		final int i = frameIndex(frame, angle, direction);
+		getFrameImage(i);
+		return frameHitTesters[i].getColor(x, y).isOpaque();
+	}
+
+	private int frameIndex(
+		final int frame,
+		final CameraAngle angle,
+		final FacingDirection direction
+	) {
+		return ((frame % frames) * 4) + direction.transform(angle);
+	}
 
-		final int rotation = direction.transform(angle);
-		final int xt = (int) ((double) (x + (frame * GlobalConstants.TILEW)) / sf);
-		final int yt = (int) ((double) (y + (rotation * h)) / sf);
+	/**
+	 * Get the image for a single frame, slicing it out of the sprite sheet if
+	 * we haven't needed it before.  Each frame is sliced out before it is
+	 * scaled, so the neighbouring frames don't bleed into it.
+	 * @param i The frame index, as computed by frameIndex
+	 * */
+	private Image getFrameImage(final int i) {
+		if (frameImages[i] == null) {
+			final int frame = i / 4;
+			final int rotation = i % 4;
+			final int x0 = (int) Math.round(frame * sheetW);
+			final int x1 = (int) Math.round((frame + 1) * sheetW);
+			final int y0 = (int) Math.round(rotation * sheetH);
+			final int y1 = (int) Math.round((rotation + 1) * sheetH);
 
-		if (xt < 0 || xt >= hitW || yt < 0 || yt >= hitH) return false;
-		return hitTester.getColor(xt, yt).isOpaque();
+			final WritableImage img;
+			if (x1 - x0 == w && y1 - y0 == h) {
+				img = new WritableImage(sheet, x0, y0, w, h);
+			} else {
+				img = MipMap.resize(sheet,
+					new Rectangle2D(x0, y0, x1 - x0, y1 - y0), w, h);
+			}
+			frameImages[i] = img;
+			frameHitTesters[i] = img.getPixelReader();
+		}
+		return frameImages[i];
+	}
+
+	/**
+	 * Get a mipmap of a single frame.
+	 * @param i The frame index, as computed by frameIndex
+	 * @param level The mipmap level
+	 * */
+	private Image getFrameImage(final int i, final int level) {
+		if (level <= 0) return getFrameImage(i);
+
+		final int l = Math.min(level, GlobalConstants.MIPMAP_LEVELS);
+		if (frameMips[l - 1][i] == null) {
+			final Image larger = getFrameImage(i, l - 1);
+			frameMips[l - 1][i] = MipMap.downsample(larger,
+				new Rectangle2D(0, 0, larger.getWidth(), larger.getHeight()));
+		}
+		return frameMips[l - 1][i];
 	}
 
 	public static SpriteAnimation fromJSON(
@@ -158,29 +210,48 @@ public class SpriteAnimation implements HasJSONRepresentation {
 		final CameraAngle angle,
 		final FacingDirection direction
 	) {
-		final int rotation = direction.transform(angle);
-		cx.setFill(frameTextures[(frame * 4) + rotation]);
-		cx.fillRect(0, 0, GlobalConstants.TILEW, h);
+		drawFrame(cx, frame, angle, direction, 0);
+	}
+
+	/**
+	 * Draw a mipmap of this frame onto a canvas, at full size
+	 * */
+	public void drawFrame(
+		final GraphicsContext cx,
+		final int frame,
+		final CameraAngle angle,
+		final FacingDirection direction,
+		final int mipLevel
+	) {
+		cx.drawImage(getFrameImage(
+			frameIndex(frame, angle, direction), mipLevel), 0, 0, w, h);
 	}
 
 	/**
 	 * Update this frame object
 	 * */
 	public void updateFrame(
-		final Rectangle sceneGraphNode,
-		final int frame0,
+		final ImageView sceneGraphNode,
+		final int frame,
 		final CameraAngle angle,
 		final FacingDirection direction
 	) {
-		final int frame = frame0 % frames;
-		final int rotation = direction.transform(angle);
-		final int i = (frame * 4) + rotation;
-		sceneGraphNode.setFill(frameTextures[i]);
-		final ImageView clip = new ImageView(buffer);
-		clip.setPreserveRatio(true);
-		clip.setFitWidth(GlobalConstants.TILEW);
-		clip.setViewport(frameClips[i]);
-		sceneGraphNode.setClip(clip);
+		updateFrame(sceneGraphNode, frame, angle, direction, 0);
+	}
+
+	/**
+	 * Update this frame object with a mipmap of the frame.  The caller is
+	 * responsible for scaling the node back up to full size.
+	 * */
+	public void updateFrame(
+		final ImageView sceneGraphNode,
+		final int frame,
+		final CameraAngle angle,
+		final FacingDirection direction,
+		final int mipLevel
+	) {
+		sceneGraphNode.setImage(getFrameImage(
+			frameIndex(frame, angle, direction), mipLevel));
 	}
 
 	@Override
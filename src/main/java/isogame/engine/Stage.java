@@ -26,26 +26,44 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
-import javafx.beans.value.ObservableBooleanValue;
 import javafx.collections.ObservableList;
 import javafx.geometry.Point2D;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.Node;
+import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.paint.Paint;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import static isogame.GlobalConstants.CULL_MARGIN;
+import static isogame.GlobalConstants.ELEVATION_H;
+import static isogame.GlobalConstants.ROTATION_PREBUILD_TILES;
+import static isogame.GlobalConstants.TILEH;
+import static isogame.GlobalConstants.TILEW;
+import static isogame.engine.TilePrerenderer.OFFSETX;
+import static isogame.engine.TilePrerenderer.OFFSETY;
+
 public class Stage implements HasJSONRepresentation {
 	public String name = null;
 	public final StageInfo terrain;
@@ -83,28 +101,26 @@ public class Stage implements HasJSONRepresentation {
 			.stream().map(x -> new HashSet<Sprite>())
 			.collect(Collectors.toList()));
 
-		// manually clear out any old highlighting state from the tiles
-		final Iterator<Tile> it = terrain.iterateTiles(CameraAngle.UL);
-		while (it.hasNext()) {
-			it.next().setHighlight(CameraAngle.UL, Optional.empty());
-		}
+		this.maxElevation = terrain.getMaxElevation();
 	}
 
+	/**
+	 * Load a stage from a map file, which may be in either the JSON format or
+	 * the binary format (see MapFile).  JSON map files are streamed (see
+	 * JSONMapReader).
+	 * */
 	public static Stage fromFile(
 		final File filename, final ResourceLocator loc, final Library global
 	) throws IOException, CorruptDataException, JSONException
 	{
+		if (MapFile.isMapFile(filename)) return MapFile.load(filename, loc, global);
+
 		try (BufferedReader in =
 			new BufferedReader(
 			new InputStreamReader(
 			new FileInputStream(filename), "UTF-8")))
 		{
-			final StringBuilder raw = new StringBuilder();
-			String line = null;
-			while ((line = in.readLine()) != null) raw.append(line);
-			final JSONObject json = new JSONObject(raw.toString());
-
-			return Stage.fromJSON(json, loc, global);
+			return JSONMapReader.read(in).toStage(loc, global);
 		}
 	}
 
@@ -123,9 +139,15 @@ public class Stage implements HasJSONRepresentation {
 
 			final Stage r = new Stage(StageInfo.fromJSON(terrain, lib), lib);
 			r.name = name;
-			for (Object s : sprites) {
-				r.addSprite(Sprite.fromJSON((JSONObject) s, lib));
+
+			// sprites are decoded in parallel, but added in their original order
+			final AssetCache assets = new AssetCache(lib);
+			final List<CompletableFuture<Sprite>> jobs = new ArrayList<>();
+			for (final Object s : sprites) {
+				jobs.add(Library.loadAsync(() ->
+					Sprite.fromJSON((JSONObject) s, assets::getSprite)));
 			}
+			for (final CompletableFuture<Sprite> job : jobs) r.addSprite(Library.await(job));
 
 			return r;
 		} catch (ClassCastException e) {
@@ -156,12 +178,39 @@ public class Stage implements HasJSONRepresentation {
 
 	private final Map<MapPoint, List<Sprite>> spritesByTile = new HashMap<>();
 
+	private final List<Consumer<MapPoint>> mapChangeListeners =
+		new CopyOnWriteArrayList<>();
+
+	/**
+	 * Add a listener to be notified when the contents of a tile change.  That
+	 * is, when the tile itself is replaced (this is noticed at the next update
+	 * or render), or when sprites arrive or leave.
+	 * */
+	public void addMapChangeListener(final Consumer<MapPoint> listener) {
+		mapChangeListeners.add(listener);
+	}
+
+	/**
+	 * Remove a listener added with addMapChangeListener.
+	 * */
+	public void removeMapChangeListener(final Consumer<MapPoint> listener) {
+		mapChangeListeners.remove(listener);
+	}
+
+	private void fireMapChange(final MapPoint p) {
+		for (final Consumer<MapPoint> listener : mapChangeListeners) {
+			listener.accept(p);
+		}
+	}
+
 	/**
 	 * Add a sprite to the map.  z-order is determined by sprite priority.
 	 * */
 	public void addSprite(final Sprite sprite) {
 		sprite.doOnMove(this::moveSprite);
+		sprite.doOnInvalidate(() -> spriteInvalidated(sprite));
 		allSprites.add(sprite);
+		sprite.setMipLevel(mipLevel);
 		spritesByPriority.get(mapPriority(sprite.info.priority)).add(sprite);
 		moveSprite(sprite, sprite.getPos());
 	}
@@ -170,6 +219,8 @@ public class Stage implements HasJSONRepresentation {
 	 * Callback to handle when sprites move
 	 * */
 	private void moveSprite(final Sprite sprite, final MapPoint from) {
+		dirty = true;
+		metrics.count(FrameMetrics.Counter.SPRITES_MOVED, 1);
 		final List<Sprite> old = spritesByTile.get(from);
 		if (old != null) old.remove(sprite);
 
@@ -192,6 +243,9 @@ public class Stage implements HasJSONRepresentation {
 		if (!inserted) byTile.add(sprite);
 
 		for (final Sprite s : byTile) s.invalidate();
+
+		fireMapChange(from);
+		fireMapChange(sprite.getPos());
 	}
 
 	/**
@@ -209,7 +263,12 @@ public class Stage implements HasJSONRepresentation {
 	public void removeSprite(final Sprite sprite) {
 		allSprites.remove(sprite);
 		spritesByPriority.get(mapPriority(sprite.info.priority)).remove(sprite);
+		culledSprites.remove(sprite);
 		removedSprites.add(sprite);
+
+		final List<Sprite> byTile = spritesByTile.get(sprite.getPos());
+		if (byTile != null) byTile.remove(sprite);
+		fireMapChange(sprite.getPos());
 	}
 
 	/**
@@ -317,9 +376,219 @@ public class Stage implements HasJSONRepresentation {
 	 * */
 	public void invalidate() {
 		currentAngle = null;
+		dirty = true;
+	}
+
+	private Optional<SimulationClock> clock = Optional.empty();
+
+	/**
+	 * Drive the sprite animations from a fixed rate simulation clock instead
+	 * of the frame timestamps.
+	 * @param clock The clock to use, or empty to advance the animations once
+	 * per frame
+	 * */
+	public void setSimulationClock(final Optional<SimulationClock> clock) {
+		clock.ifPresent(c -> c.reset());
+		this.clock = clock;
+		dirty = true;
+	}
+
+	// dirty tracking.  When nothing is changing we skip updates entirely.
+	private boolean dirty = true;
+	private long nextUpdate = 0;
+
+	// the sprite that is being updated, if any
+	private Sprite updatingSprite = null;
+
+	/**
+	 * Request an update on the next frame, even if nothing appears to have
+	 * changed.
+	 * */
+	public void requestUpdate() {
+		dirty = true;
+	}
+
+	/**
+	 * Callback to handle when a sprite must be redrawn.  Sprites invalidate
+	 * themselves while they are being updated, but they are redrawn by that
+	 * same update, so those invalidations don't need another frame.  Any other
+	 * sprite that is invalidated (e.g. by an animation callback) may already
+	 * have been updated this frame, so it still needs another one.
+	 * */
+	private void spriteInvalidated(final Sprite sprite) {
+		if (sprite != updatingSprite) dirty = true;
+	}
+
+	/**
+	 * Determine if anything has changed that requires the stage to be updated.
+	 * @param t The current timestamp in nanoseconds
+	 * */
+	public boolean needsUpdate(final long t) {
+		return dirty || t >= nextUpdate ||
+			!highlightChanged.isEmpty() ||
+			!removedSprites.isEmpty() ||
+			terrain.hasUpdatedTiles();
 	}
 
 	private CameraAngle currentAngle = null;
+	private SceneGraphIndex index = null;
+
+	// culling state.  When culling is enabled, liveTiles marks the live tiles
+	// in the liveW by liveH rectangle of the map at (liveX, liveY).  The buffer
+	// is reused as the window moves, and only grows.
+	private Optional<Rectangle2D> visibleArea = Optional.empty();
+	private boolean cullWindowValid = false;
+	private int cullX = 0;
+	private int cullY = 0;
+	private int cullW = 0;
+	private int cullH = 0;
+	private int maxElevation = 0;
+	private boolean culling = false;
+	private boolean[] liveTiles = new boolean[0];
+	private int liveX = 0;
+	private int liveY = 0;
+	private int liveW = 0;
+	private int liveH = 0;
+
+	// scene graph nodes for the tiles that have been in the scene graph
+	private final TileNodeMap tileNodes = new TileNodeMap();
+	private List<Tile> liveTileList = new ArrayList<>();
+	private final Set<Sprite> culledSprites = new HashSet<>();
+
+	// the tiles that are hidden behind other tiles
+	private OcclusionMap occlusion = null;
+
+	// keeps the visible terrain in memory, when the terrain is loaded in chunks
+	private TerrainPin visiblePin = null;
+	private MapPoint pinMin = null;
+	private MapPoint pinMax = null;
+
+	// where to record timings and counts for each frame
+	private FrameMetrics metrics = new FrameMetrics();
+
+	/**
+	 * Set where to record timings and counts for each frame.
+	 * */
+	void setMetrics(final FrameMetrics metrics) {
+		this.metrics = metrics;
+		if (index != null) index.setMetrics(metrics);
+	}
+
+	// the highlighting for the current camera angle
+	private HighlightOverlay highlightOverlay = null;
+
+	// the debug overlay that was last brought up to date
+	private DebugOverlay debugOverlay = null;
+	private boolean debugOverlayValid = false;
+
+	// terrain baking state.  bakedTerrain is null when baking is disabled.
+	private boolean bakeTerrain = false;
+	private BakedTerrain bakedTerrain = null;
+
+	/**
+	 * Enable or disable terrain baking.  When baking is enabled, flat ground
+	 * tiles are composited into a few large images instead of having their own
+	 * nodes in the scene graph.  Terrain is only baked when culling is enabled
+	 * (see setVisibleArea).
+	 * */
+	public void setTerrainBaking(final boolean bakeTerrain) {
+		if (bakeTerrain != this.bakeTerrain) {
+			this.bakeTerrain = bakeTerrain;
+			bakedByAngle.clear();
+			invalidate();
+		}
+	}
+
+	// mipmap level for zoomed out views
+	private int mipLevel = 0;
+
+	/**
+	 * Set the mipmap level to draw with.  Views that are zoomed out use
+	 * smaller textures.
+	 * */
+	public void setMipLevel(final int mipLevel) {
+		if (mipLevel == this.mipLevel) return;
+		this.mipLevel = mipLevel;
+
+		clearNodeCaches();
+		bakedByAngle.clear();
+		prebuiltAngles.clear();
+		prebuildTiles = null;
+		for (final Sprite s : allSprites) s.setMipLevel(mipLevel);
+		invalidate();
+	}
+
+	// rotation caching state.  bakedByAngle holds the baked terrain for camera
+	// angles other than the current one.
+	private RotationCache rotationCache = RotationCache.NONE;
+	private final Map<CameraAngle, BakedTerrain> bakedByAngle =
+		new EnumMap<>(CameraAngle.class);
+	private final Set<CameraAngle> prebuiltAngles = EnumSet.noneOf(CameraAngle.class);
+	private CameraAngle prebuildAngle = null;
+	private Iterator<Tile> prebuildTiles = null;
+
+	/**
+	 * Set how much of the scene graph to keep for other camera angles.
+	 * */
+	public void setRotationCache(final RotationCache rotationCache) {
+		if (rotationCache == this.rotationCache) return;
+		this.rotationCache = rotationCache;
+		dirty = true;
+
+		if (rotationCache == RotationCache.NONE) {
+			clearNodeCaches();
+			bakedByAngle.clear();
+			prebuiltAngles.clear();
+			prebuildTiles = null;
+		}
+	}
+
+	/**
+	 * Set the region of iso space that is visible.  Tiles and sprites outside
+	 * this region (plus a margin) are removed from the scene graph.
+	 * @param area The visible area, or empty to disable culling
+	 * */
+	public void setVisibleArea(final Optional<Rectangle2D> area) {
+		if (area.isPresent() != visibleArea.isPresent()) {
+			cullWindowValid = false;
+			dirty = true;
+
+			// terrain is only baked when culling, so rebuild the scene graph
+			if (bakeTerrain) currentAngle = null;
+		}
+		visibleArea = area;
+
+		area.ifPresent(v -> {
+			// only recompute the live tiles when we cross a tile boundary
+			final int x = (int) Math.floor(v.getMinX() / (TILEW / 2));
+			final int y = (int) Math.floor(v.getMinY() / (TILEH / 2));
+			final int w = (int) Math.ceil(v.getWidth() / (TILEW / 2));
+			final int h = (int) Math.ceil(v.getHeight() / (TILEH / 2));
+			if (x != cullX || y != cullY || w != cullW || h != cullH) {
+				cullX = x; cullY = y; cullW = w; cullH = h;
+				cullWindowValid = false;
+				dirty = true;
+			}
+		});
+	}
+
+	private boolean isLive(final MapPoint p) {
+		if (!culling) return true;
+		final int x = p.x - liveX;
+		final int y = p.y - liveY;
+		return x >= 0 && y >= 0 && x < liveW && y < liveH &&
+			liveTiles[(y * liveW) + x];
+	}
+
+	/**
+	 * Get the occlusion map for a camera angle.
+	 * */
+	private OcclusionMap occlusionFor(final CameraAngle a) {
+		if (occlusion == null || occlusion.angle != a) {
+			occlusion = new OcclusionMap(terrain, a);
+		}
+		return occlusion;
+	}
 
 	/**
 	 * Update the scene graph for a new frame
@@ -329,49 +598,350 @@ public class Stage implements HasJSONRepresentation {
 	 * */
 	public void update(
 		final ObservableList<Node> graph,
-		final ObservableBooleanValue isDebug,
 		final long t,
 		final CameraAngle a
 	) {
+		dirty = false;
+		nextUpdate = Long.MAX_VALUE;
+		metrics.beginPhase(FrameMetrics.Phase.TILES);
+
+		if (index == null || index.getGraph() != graph) {
+			index = new SceneGraphIndex(graph, terrain);
+			index.setMetrics(metrics);
+			index.setOnSpritesChanged(row -> {
+				if (highlightOverlay != null) highlightOverlay.invalidateSprites(row);
+			});
+			currentAngle = null;
+		}
+
 		if (a != currentAngle) {
 			currentAngle = a;
-			rebuildSceneGraph(t, isDebug, graph);
+			rebuildSceneGraph(t, index);
+		} else if (!cullWindowValid) {
+			updateLiveTiles(index);
 		}
 
 		// update any tiles that have changed
 		for (final Tile tile : terrain.getUpdatedTiles()) {
-			final Point2D l = terrain.correctedIsoCoord(tile.pos, currentAngle);
-			tile.rebuildSceneGraph(isDebug, currentAngle);
-			tile.subGraph.setTranslateX(l.getX());
-			tile.subGraph.setTranslateY(l.getY());
-		}
+			if (tile.elevation > maxElevation) {
+				maxElevation = tile.elevation;
+				cullWindowValid = false;
+			}
 
-		// update highlighting
-		for (final HighlightLayer layer : highlighting) {
-			final Optional<Paint> color = Optional.of(layer.color);
+			if (bakedTerrain != null) bakedTerrain.invalidate(tile);
+			for (final BakedTerrain b : bakedByAngle.values()) {
+				if (b != bakedTerrain) b.invalidate(tile);
+			}
 
-			for (final MapPoint p : layer.points) {
-				if (highlightChanged.contains(p)) {
-					terrain.getTile(p).setHighlight(currentAngle, color);
-					highlightChanged.remove(p);
+			debugOverlayValid = false;
+			highlightOverlay.invalidateTiles(highlightOverlay.rowOf(tile.pos));
+			fireMapChange(tile.pos);
+			final TileNodes nodes = tileNodes.get(tile.pos);
+			if (nodes != null) {
+				nodes.clearNodeCache();
+				nodes.invalidate();
+			}
+			final List<MapPoint> changed = occlusionFor(currentAngle).update(tile.pos);
+			updateTileNode(tile);
+			for (final MapPoint p : changed) updateTileNode(terrain.getTile(p));
+		}
+		if (bakedTerrain != null) bakedTerrain.update();
+		metrics.endPhase(FrameMetrics.Phase.TILES);
+
+		// update the sprites
+		metrics.beginPhase(FrameMetrics.Phase.SPRITES);
+		final long tr = advanceSimulation(t);
+		for (final Set<Sprite> layer : spritesByPriority) {
+			for (final Sprite s : layer) {
+				updatingSprite = s;
+				if (isLive(s.getPos())) {
+					culledSprites.remove(s);
+					if (clock.isPresent()) {
+						s.renderSceneGraph(index, terrain, currentAngle, tr);
+					} else {
+						s.updateSceneGraph(index, terrain, currentAngle, t);
+					}
+					nextUpdate = Math.min(nextUpdate, wallTime(s.nextUpdateAt(tr), t, tr));
+				} else {
+					if (culledSprites.add(s)) {
+						index.remove(s.sceneGraph);
+						index.remove(s.slicedGraph);
+						s.invalidate();
+					}
+					if (!clock.isPresent()) s.updateAnimation(terrain, t);
+					if (s.getAnimationChain().isPresent()) nextUpdate = t;
 				}
 			}
 		}
+		updatingSprite = null;
+
+		for (final Sprite s : removedSprites) {
+			index.remove(s.sceneGraph);
+			index.remove(s.slicedGraph);
+		}
+		removedSprites.clear();
+		metrics.endPhase(FrameMetrics.Phase.SPRITES);
 
-		// clear highlighting on unhighlighted nodes.
+		// update the highlighting, but only the rows that have changed.  This
+		// goes after the sprites, because the highlight bands are cut around
+		// them.
+		metrics.beginPhase(FrameMetrics.Phase.HIGHLIGHTS);
 		for (final MapPoint p : highlightChanged) {
-			final Tile tile = terrain.getTile(p);
-			tile.setHighlight(currentAngle, Optional.empty());
+			highlightOverlay.invalidate(highlightOverlay.rowOf(p));
 		}
 		highlightChanged.clear();
+		highlightOverlay.update(index, this::isLive, this::getHighlight);
+		metrics.endPhase(FrameMetrics.Phase.HIGHLIGHTS);
 
-		// update the sprites
-		for (final Set<Sprite> layer : spritesByPriority) {
-			for (final Sprite s : layer)
-				s.updateSceneGraph(graph, terrain, currentAngle, t);
+		metrics.beginPhase(FrameMetrics.Phase.TILES);
+		if (rotationCache == RotationCache.ALL && prebuildSceneGraph()) {
+			nextUpdate = t;
+		}
+		metrics.endPhase(FrameMetrics.Phase.TILES);
+	}
+
+	/**
+	 * Build some of the tile nodes for the camera angles, so that rotating or
+	 * scrolling doesn't have to build them.  This is done a little at a time to
+	 * avoid dropping frames.
+	 * @return true if there is more work to do
+	 * */
+	private boolean prebuildSceneGraph() {
+		int budget = ROTATION_PREBUILD_TILES;
+		while (budget > 0) {
+			if (prebuildTiles == null) {
+				prebuildAngle = null;
+				for (final CameraAngle a : CameraAngle.values()) {
+					if (!prebuiltAngles.contains(a)) {
+						prebuildAngle = a;
+						break;
+					}
+				}
+				if (prebuildAngle == null) return false;
+				prebuildTiles = terrain.iterateTiles(prebuildAngle);
+			}
+
+			while (budget > 0 && prebuildTiles.hasNext()) {
+				final Tile tile = prebuildTiles.next();
+				if (!(bakeTerrain && BakedTerrain.isBaked(tile))) {
+					tileNodes.getOrCreate(tile.pos).prebuild(tile, prebuildAngle, mipLevel);
+				}
+				budget -= 1;
+			}
+
+			if (!prebuildTiles.hasNext()) {
+				prebuiltAngles.add(prebuildAngle);
+				prebuildTiles = null;
+			}
 		}
 
-		for (final Sprite s : removedSprites) graph.remove(s.sceneGraph);
+		return true;
+	}
+
+	/**
+	 * Render the visible part of the stage directly onto a canvas.  This is an
+	 * alternative to maintaining a scene graph with update.
+	 * @param cx The graphics context, with iso space coordinates
+	 * @param isDebug True to draw debug information
+	 * @param visible The visible area of iso space
+	 * @param a The camera angle
+	 * @param t The current timestamp in nanoseconds
+	 * */
+	public void render(
+		final GraphicsContext cx,
+		final boolean isDebug,
+		final Rectangle2D visible,
+		final CameraAngle a,
+		final long t
+	) {
+		// the scene graph is not being maintained, so it will need to be rebuilt
+		// if we switch back to it.
+		currentAngle = null;
+		dirty = false;
+		nextUpdate = Long.MAX_VALUE;
+		bakedByAngle.clear();
+		highlightChanged.clear();
+		removedSprites.clear();
+		final OcclusionMap occlusion = occlusionFor(a);
+		for (final MapPoint p : terrain.getUpdatedPoints()) {
+			maxElevation = Math.max(maxElevation, terrain.getElevation(p));
+			occlusion.update(p);
+			final TileNodes nodes = tileNodes.get(p);
+			if (nodes != null) nodes.clearNodeCache();
+			fireMapChange(p);
+		}
+
+		// update the sprites, and work out where to draw them
+		final Map<MapPoint, List<Consumer<GraphicsContext>>> spriteDraws =
+			new HashMap<>();
+		final BiConsumer<MapPoint, Consumer<GraphicsContext>> schedule = (p, k) -> {
+			spriteDraws.putIfAbsent(p, new ArrayList<>());
+			spriteDraws.get(p).add(k);
+		};
+
+		// lowest priority sprites are drawn first
+		metrics.beginPhase(FrameMetrics.Phase.SPRITES);
+		final long tr = advanceSimulation(t);
+		for (int i = spritesByPriority.size() - 1; i >= 0; i--) {
+			for (final Sprite s : spritesByPriority.get(i)) {
+				updatingSprite = s;
+				if (clock.isPresent()) {
+					s.renderOnly(schedule, terrain, a, tr);
+				} else {
+					s.render(schedule, terrain, a, t);
+				}
+				nextUpdate = Math.min(nextUpdate, wallTime(s.nextUpdateAt(tr), t, tr));
+			}
+		}
+		updatingSprite = null;
+		metrics.endPhase(FrameMetrics.Phase.SPRITES);
+
+		// find the visible tiles
+		metrics.beginPhase(FrameMetrics.Phase.TILES);
+		final double margin = TILEH;
+		final Rectangle2D search = new Rectangle2D(
+			visible.getMinX() - TILEW, visible.getMinY() - TILEH,
+			visible.getWidth() + (2 * TILEW),
+			visible.getHeight() + (2 * TILEH) - (ELEVATION_H * maxElevation));
+
+		final List<Tile> tiles = new ArrayList<>();
+		for (final Tile tile : terrain.tilesUnder(search, a)) {
+			final Point2D l = terrain.toIsoCoord(tile.pos, a);
+			final double top = l.getY() + (ELEVATION_H * tile.elevation) - OFFSETY;
+			final double bottom = l.getY() + TILEH + OFFSETY;
+			final double left = l.getX() - OFFSETX;
+			final double right = l.getX() + TILEW + OFFSETX;
+
+			// sprites may stick up above the tile, so tiles just below the bottom
+			// of the view might still have visible sprites on them
+			if (right >= visible.getMinX() && left <= visible.getMaxX() &&
+				bottom >= visible.getMinY() &&
+				top <= visible.getMaxY() + (spriteDraws.containsKey(tile.pos)? margin : 0)
+			) {
+				tiles.add(tile);
+			}
+		}
+
+		pinVisible(tiles);
+
+		// sort the tiles from the back to the front
+		tiles.sort(Comparator.comparingInt(tile -> terrain.drawOrder(tile.pos, a)));
+
+		for (final Tile tile : tiles) {
+			final Point2D l = terrain.correctedIsoCoord(tile.pos, a);
+			if (!occlusion.isOccluded(tile.pos)) {
+				cx.save();
+				cx.translate(l.getX(), l.getY());
+				tile.render(cx, a, mipLevel);
+				cx.restore();
+			}
+
+			cx.save();
+			cx.translate(l.getX(), l.getY());
+			tile.renderOverlay(cx, a, getHighlight(tile.pos), isDebug);
+			cx.restore();
+
+			final List<Consumer<GraphicsContext>> draws = spriteDraws.get(tile.pos);
+			if (draws != null) for (final Consumer<GraphicsContext> k : draws) k.accept(cx);
+		}
+		metrics.endPhase(FrameMetrics.Phase.TILES);
+	}
+
+	/**
+	 * Run any simulation ticks that are due.
+	 * @param t The current time
+	 * @return The time at which to render the sprites
+	 * */
+	private long advanceSimulation(final long t) {
+		if (!clock.isPresent()) return t;
+
+		clock.get().advance(t, tick -> {
+			for (final Sprite s : new ArrayList<>(allSprites)) {
+				s.updateAnimation(terrain, tick);
+			}
+		});
+		return clock.get().renderTime(t);
+	}
+
+	/**
+	 * Convert a render time back to real time.
+	 * @param tr The time to convert
+	 * @param t The current real time
+	 * @param t0 The current render time
+	 * */
+	private static long wallTime(final long tr, final long t, final long t0) {
+		return tr == Long.MAX_VALUE? tr : tr + (t - t0);
+	}
+
+	/**
+	 * Get the highest priority highlight colour for a tile.
+	 * */
+	private Optional<Paint> getHighlight(final MapPoint p) {
+		for (final HighlightLayer layer : highlighting) {
+			if (layer.points.contains(p)) return Optional.of(layer.color);
+		}
+		return Optional.empty();
+	}
+
+	/**
+	 * Bring the debug overlay up to date with the tiles in the scene graph.
+	 * Call this after update.
+	 * */
+	void updateDebugOverlay(final DebugOverlay overlay) {
+		if (overlay == debugOverlay && debugOverlayValid) return;
+		overlay.update(terrain, liveTileList, currentAngle);
+		debugOverlay = overlay;
+		debugOverlayValid = true;
+	}
+
+	/**
+	 * Determine if a tile needs a node of its own in the scene graph.  Tiles
+	 * that are hidden behind other tiles or drawn as part of the baked terrain
+	 * are left out.  The scene graph index still keeps a slot for them, so the
+	 * sprites standing on them are drawn at the right depth without any
+	 * placeholder nodes.
+	 * */
+	private boolean hasTileNode(final Tile tile) {
+		return !occlusionFor(currentAngle).isOccluded(tile.pos) &&
+			!(bakedTerrain != null && BakedTerrain.isBaked(tile));
+	}
+
+	/**
+	 * Add or remove a tile from the scene graph after it has changed, or after
+	 * it has been hidden or revealed by a change to the tiles in front of it.
+	 * */
+	private void updateTileNode(final Tile tile) {
+		if (!isLive(tile.pos)) return;
+
+		if (hasTileNode(tile)) {
+			index.insertTile(tile, builtNodesFor(tile).subGraph);
+		} else {
+			index.removeTile(tile);
+		}
+	}
+
+	/**
+	 * Discard the terrain nodes kept for other camera angles.
+	 * */
+	private void clearNodeCaches() {
+		tileNodes.forEach(TileNodes::clearNodeCache);
+	}
+
+	/**
+	 * Get the scene graph nodes for a tile, making or rebuilding them if they
+	 * are not up to date.
+	 * */
+	private TileNodes builtNodesFor(final Tile tile) {
+		final TileNodes nodes = tileNodes.getOrCreate(tile.pos);
+		if (nodes.isBuilt()) return nodes;
+
+		final Point2D l = terrain.correctedIsoCoord(tile.pos, currentAngle);
+		nodes.rebuild(tile, currentAngle, mipLevel,
+			rotationCache != RotationCache.NONE);
+		nodes.subGraph.setTranslateX(l.getX());
+		nodes.subGraph.setTranslateY(l.getY());
+		metrics.count(FrameMetrics.Counter.TILES_REBUILT, 1);
+		return nodes;
 	}
 
 	/**
@@ -379,19 +949,187 @@ public class Stage implements HasJSONRepresentation {
 	 * */
 	private void rebuildSceneGraph(
 		final long t,
-		final ObservableBooleanValue isDebug,
-		final ObservableList<Node> graph
+		final SceneGraphIndex graph
 	) {
-		graph.clear();
-		terrain.iterateTiles(currentAngle).forEachRemaining(tile -> {
-			final Point2D l = terrain.correctedIsoCoord(tile.pos, currentAngle);
-			tile.rebuildSceneGraph(isDebug, currentAngle);
-			tile.subGraph.setTranslateX(l.getX());
-			tile.subGraph.setTranslateY(l.getY());
-			graph.add(tile.subGraph);
-		});
+		tileNodes.forEach(TileNodes::invalidate);
+		highlightOverlay =
+			new HighlightOverlay(terrain, currentAngle, MipMap.scale(mipLevel));
+
+		// Without culling the baked chunks would cover the whole map, which uses
+		// far more memory than the tile nodes they replace.
+		if (!bakeTerrain || !visibleArea.isPresent()) {
+			bakedTerrain = null;
+		} else if (rotationCache == RotationCache.NONE) {
+			bakedTerrain = new BakedTerrain(terrain, currentAngle, mipLevel);
+		} else {
+			bakedTerrain = bakedByAngle.computeIfAbsent(currentAngle,
+				a -> new BakedTerrain(terrain, a, mipLevel));
+		}
+
+		updateLiveTiles(graph);
+	}
+
+	/**
+	 * Recompute the set of tiles that are in the scene graph, and rebuild the
+	 * scene graph to contain only those tiles.
+	 * */
+	private void updateLiveTiles(final SceneGraphIndex graph) {
+		final List<Tile> live = new ArrayList<>();
+		computeLiveTiles(live);
+		cullWindowValid = true;
 
+		// drop the nodes for tiles that have left the scene graph, unless we are
+		// keeping them for other camera angles
+		if (culling && rotationCache == RotationCache.NONE) {
+			for (final Tile tile : liveTileList) {
+				if (!isLive(tile.pos)) tileNodes.remove(tile.pos);
+			}
+		}
+
+		// baked terrain goes first, since it can't obscure anything
+		final List<Node> fixed = new ArrayList<>();
+		if (bakedTerrain != null) {
+			cullArea().ifPresent(v -> fixed.addAll(bakedTerrain.getChunks(v)));
+		}
+
+		// When culling, only visit the live tiles so scrolling and rotating
+		// around a big map doesn't cost time proportional to the map size.
+		if (!culling) {
+			pinVisible(new ArrayList<>());
+			terrain.iterateTiles(currentAngle).forEachRemaining(live::add);
+		} else {
+			pinVisible(live);
+			final CameraAngle a = currentAngle;
+			live.sort(Comparator.comparingInt(tile -> terrain.drawOrder(tile.pos, a)));
+		}
+
+		// hidden and baked tiles are left out of the scene graph, but sprites on
+		// them are not
+		graph.reset(fixed, live,
+			tile -> hasTileNode(tile)? builtNodesFor(tile).subGraph : null,
+			currentAngle);
+		liveTileList = live;
+		debugOverlayValid = false;
+
+		culledSprites.clear();
 		for (final Sprite s : allSprites) s.invalidate();
+
+		// put back the highlighting for the live tiles
+		highlightOverlay.invalidateAll();
+		for (final HighlightLayer layer : highlighting) {
+			for (final MapPoint p : layer.points) {
+				if (isLive(p)) highlightOverlay.reveal(highlightOverlay.rowOf(p));
+			}
+		}
 	}
-}
 
+	/**
+	 * Pin the rectangle of terrain that contains the visible tiles, so that
+	 * terrain which is loaded in chunks does not get evicted while it is on
+	 * screen.  The previous pin is released.
+	 * @param tiles The visible tiles, or an empty list to release the pin
+	 * */
+	private void pinVisible(final List<Tile> tiles) {
+		MapPoint min = null;
+		MapPoint max = null;
+		if (!tiles.isEmpty()) {
+			int x0 = terrain.w, y0 = terrain.h, x1 = 0, y1 = 0;
+			for (final Tile tile : tiles) {
+				x0 = Math.min(x0, tile.pos.x); y0 = Math.min(y0, tile.pos.y);
+				x1 = Math.max(x1, tile.pos.x); y1 = Math.max(y1, tile.pos.y);
+			}
+			min = new MapPoint(x0, y0);
+			max = new MapPoint(x1, y1);
+		}
+
+		if (Objects.equals(min, pinMin) && Objects.equals(max, pinMax)) return;
+
+		final TerrainPin old = visiblePin;
+		visiblePin = min == null? null : terrain.pin(min, max);
+		pinMin = min;
+		pinMax = max;
+		if (old != null) old.close();
+	}
+
+	/**
+	 * Get the area of iso space to keep in the scene graph, or empty if culling
+	 * is disabled.
+	 * */
+	private Optional<Rectangle2D> cullArea() {
+		return visibleArea.map(v -> new Rectangle2D(
+			v.getMinX() - (CULL_MARGIN * TILEW),
+			v.getMinY() - (CULL_MARGIN * TILEH),
+			v.getWidth() + (2 * CULL_MARGIN * TILEW),
+			v.getHeight() + (2 * CULL_MARGIN * TILEH)));
+	}
+
+	/**
+	 * Determine which tiles intersect the visible area, and update the culling
+	 * state to match.
+	 * @param live Output list of the tiles that intersect the visible area.
+	 * Left empty if culling is disabled.
+	 * */
+	private void computeLiveTiles(final List<Tile> live) {
+		culling = visibleArea.isPresent();
+		if (!culling) return;
+
+		final Rectangle2D v = cullArea().get();
+		final double minX = v.getMinX();
+		final double maxX = v.getMaxX();
+		final double minY = v.getMinY();
+		final double maxY = v.getMaxY();
+
+		// Elevated tiles are drawn above their map position, so we have to look
+		// further down the map to find all the tiles that might be visible.
+		final Rectangle2D search = new Rectangle2D(minX, minY,
+			maxX - minX, maxY - minY - (ELEVATION_H * maxElevation));
+
+		// only the live tiles need Tile objects
+		final int[] b = terrain.boundsUnder(search, currentAngle);
+		int x0 = Integer.MAX_VALUE;
+		int y0 = Integer.MAX_VALUE;
+		int x1 = Integer.MIN_VALUE;
+		int y1 = Integer.MIN_VALUE;
+		for (int y = b[1]; y <= b[3]; y++) {
+			for (int x = b[0]; x <= b[2]; x++) {
+				final MapPoint p = new MapPoint(x, y);
+				final Point2D l = terrain.toIsoCoord(p, currentAngle);
+
+				final double top = l.getY() +
+					(ELEVATION_H * terrain.getElevation(x, y)) - OFFSETY;
+				final double bottom = l.getY() + TILEH + OFFSETY;
+				final double left = l.getX() - OFFSETX;
+				final double right = l.getX() + TILEW + OFFSETX;
+
+				if (right >= minX && left <= maxX && bottom >= minY && top <= maxY) {
+					live.add(terrain.getTile(p));
+					x0 = Math.min(x0, x);
+					y0 = Math.min(y0, y);
+					x1 = Math.max(x1, x);
+					y1 = Math.max(y1, y);
+				}
+			}
+		}
+
+		// mark the live tiles in the bounding rectangle of the window
+		if (live.isEmpty()) {
+			liveW = 0;
+			liveH = 0;
+			return;
+		}
+
+		liveX = x0;
+		liveY = y0;
+		liveW = x1 - x0 + 1;
+		liveH = y1 - y0 + 1;
+		final int n = liveW * liveH;
+		if (n > liveTiles.length) {
+			liveTiles = new boolean[n];
+		} else {
+			Arrays.fill(liveTiles, 0, n, false);
+		}
+		for (final Tile tile : live) {
+			liveTiles[((tile.pos.y - liveY) * liveW) + (tile.pos.x - liveX)] = true;
+		}
+	}
+}
@@ -18,16 +18,21 @@ along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
 */
 package isogame.engine;
 
-import java.util.Arrays;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import javafx.geometry.Point2D;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.transform.Affine;
 import javafx.scene.transform.NonInvertibleTransformException;
 import javafx.scene.transform.Rotate;
@@ -37,13 +42,29 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import static isogame.GlobalConstants.ELEVATION_H;
+import static isogame.GlobalConstants.TERRAIN_CHUNK_BUDGET;
+import static isogame.GlobalConstants.TERRAIN_CHUNK_SIZE;
 import static isogame.GlobalConstants.TILEH;
 import static isogame.GlobalConstants.TILEW;
+import static isogame.GlobalConstants.TILE_DECODE_RANGE;
 
 public class StageInfo implements HasJSONRepresentation {
 	public final int w;
 	public final int h;
-	private final Tile[] data;
+
+	private final TerrainStore store;
+
+	/**
+	 * The highest elevation a tile can have.
+	 * */
+	public static final int MAX_ELEVATION = Byte.MAX_VALUE;
+
+	// layout of the flags
+	static final int MANA_ZONE = 1;
+	static final int START_ZONE_SHIFT = 1;
+
+	private static final SlopeType[] slopeTypes = SlopeType.values();
+	private static final StartZoneType[] startZoneTypes = StartZoneType.values();
 
 	// transformation from map coordinates to iso coordinates
 	private final Affine isoTransform;
@@ -56,12 +77,18 @@ public class StageInfo implements HasJSONRepresentation {
 	public StageInfo(
 		final int w, final int h, final Tile[] data
 	) throws CorruptDataException {
-		this.w = w;
-		this.h = h;
-		this.data = data;
+		this(makeStore(w, h));
 		if (data.length != w * h)
 			throw new CorruptDataException("Incorrect number of tiles in stage");
 
+		for (int i = 0; i < data.length; i++) store(i, data[i]);
+	}
+
+	StageInfo(final TerrainStore store) {
+		this.store = store;
+		this.w = store.w;
+		this.h = store.h;
+
 		// set the camera angle rotations
 		final double xPivot = ((double) this.w) / 2.0d;
 		final double yPivot = ((double) this.h) / 2.0d;
@@ -78,6 +105,17 @@ public class StageInfo implements HasJSONRepresentation {
 		isoTransform.appendRotation(45, 0, 0);
 	}
 
+	/**
+	 * Make an empty in-memory terrain.  Every tile must be stored before the
+	 * stage is used.
+	 * */
+	private static TerrainStore makeStore(final int w, final int h)
+		throws CorruptDataException
+	{
+		if (w <= 0 || h <= 0) throw new CorruptDataException("Invalid stage size");
+		return new ArrayTerrainStore(w, h);
+	}
+
 	public static StageInfo fromJSON(final JSONObject json, final Library lib)
 		throws CorruptDataException
 	{
@@ -86,14 +124,28 @@ public class StageInfo implements HasJSONRepresentation {
 			final int h =  json.getInt("h");
 			final JSONArray jsonData = json.getJSONArray("data");
 
-			final Tile[] data = new Tile[w * h];
+			if (jsonData.length() != w * h)
+				throw new CorruptDataException("Incorrect number of tiles in stage");
+
+			// decode ranges of tiles in parallel, then pack them into the store in
+			// order on this thread, because the store is not thread safe
+			final List<CompletableFuture<Tile[]>> jobs = new ArrayList<>();
+			for (int i = 0; i < w * h; i += TILE_DECODE_RANGE) {
+				final int start = i;
+				final int end = Math.min(w * h, i + TILE_DECODE_RANGE);
+				jobs.add(Library.loadAsync(() -> decodeTiles(jsonData, start, end, lib)));
+			}
+
+			final StageInfo r = new StageInfo(makeStore(w, h));
 			int i = 0;
-			for (final Object t : jsonData) {
-				data[i] = Tile.fromJSON((JSONObject) t, lib);
-				i += 1;
+			for (final CompletableFuture<Tile[]> job : jobs) {
+				for (final Tile tile : Library.await(job)) {
+					r.store(i, tile);
+					i += 1;
+				}
 			}
 
-			return new StageInfo(w, h, data);
+			return r;
 		} catch (ClassCastException e) {
 			throw new CorruptDataException("Type error in stage info", e);
 		} catch (JSONException e) {
@@ -101,39 +153,185 @@ public class StageInfo implements HasJSONRepresentation {
 		}
 	}
 
+	/**
+	 * Decode a range of tiles from the JSON representation.
+	 * @param start The index of the first tile, inclusive
+	 * @param end The index of the last tile, exclusive
+	 * */
+	private static Tile[] decodeTiles(
+		final JSONArray jsonData, final int start, final int end, final Library lib
+	) throws CorruptDataException {
+		final Tile[] r = new Tile[end - start];
+		for (int i = start; i < end; i++) {
+			r[i - start] = Tile.fromJSON((JSONObject) jsonData.get(i), lib);
+		}
+		return r;
+	}
+
+	/**
+	 * Open terrain that is stored in a chunk file.  Chunks of the terrain are
+	 * loaded as they are needed, so the memory used depends on how much of the
+	 * terrain is in use rather than the size of the map.  Changes are written
+	 * back to the file.  Call close when finished with the terrain.
+	 * @param lib Where to find the textures
+	 * @param budget The maximum number of unpinned chunks to keep in memory
+	 * */
+	public static StageInfo openChunked(
+		final File file, final Library lib, final int budget
+	) throws IOException, CorruptDataException
+	{
+		return new StageInfo(ChunkedTerrainStore.open(file.toPath(), lib, budget));
+	}
+
+	/**
+	 * Open terrain that is stored in a chunk file, with the default budget.
+	 * */
+	public static StageInfo openChunked(final File file, final Library lib)
+		throws IOException, CorruptDataException
+	{
+		return openChunked(file, lib, TERRAIN_CHUNK_BUDGET);
+	}
+
+	/**
+	 * Write this terrain to a chunk file, which can be opened with openChunked.
+	 * */
+	public void writeChunked(final File file) throws IOException {
+		ChunkedTerrainStore.write(store, file.toPath(), TERRAIN_CHUNK_SIZE);
+	}
+
+	/**
+	 * Write any changes to terrain opened with openChunked back to its file.
+	 * */
+	public void flush() throws IOException {
+		store.flush();
+	}
+
+	/**
+	 * Write any changes to terrain opened with openChunked, and close its file.
+	 * */
+	public void close() throws IOException {
+		store.close();
+	}
+
+	/**
+	 * Keep a rectangle of tiles in memory, for terrain opened with openChunked.
+	 * @param min The top left corner, inclusive
+	 * @param max The bottom right corner, inclusive
+	 * */
+	public TerrainPin pin(final MapPoint min, final MapPoint max) {
+		final int x0 = Math.max(0, min.x);
+		final int y0 = Math.max(0, min.y);
+		final int x1 = Math.min(w - 1, max.x);
+		final int y1 = Math.min(h - 1, max.y);
+		if (x1 < x0 || y1 < y0) return new TerrainPin(() -> {});
+		return store.pin(x0, y0, x1, y1);
+	}
+
+	/**
+	 * Get the underlying terrain store, for code that reads and writes the
+	 * packed tiles directly.
+	 * */
+	TerrainStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Pack a tile into the terrain store.
+	 * @throws CorruptDataException if the tile is in the wrong place or cannot
+	 * be represented
+	 * */
+	private void store(final int i, final Tile tile) throws CorruptDataException {
+		if (tile.pos.x != i % w || tile.pos.y != i / w)
+			throw new CorruptDataException("Tile " + tile.pos + " is out of place");
+		if (tile.elevation < 0 || tile.elevation > MAX_ELEVATION)
+			throw new CorruptDataException("Invalid elevation at " + tile.pos);
+
+		final int t;
+		final int c;
+		try {
+			t = store.textures.indexOf(tile.tex);
+			c = tile.cliffTexture == null? -1 : store.cliffTextures.indexOf(tile.cliffTexture);
+		} catch (final IllegalStateException e) {
+			throw new CorruptDataException(e.getMessage(), e);
+		}
+
+		store.set(tile.pos.x, tile.pos.y, tile.elevation, tile.slope.ordinal(), t, c,
+			(tile.isManaZone? MANA_ZONE : 0) |
+			(tile.startZone.ordinal() << START_ZONE_SHIFT));
+	}
+
+	/**
+	 * Make a tile object from the terrain store.
+	 * */
+	private Tile tileAt(final int x, final int y) {
+		final int flags = store.flags(x, y);
+		final int cliff = store.cliff(x, y);
+		return new Tile(new MapPoint(x, y),
+			store.elevation(x, y), slopeTypes[store.slope(x, y)],
+			(flags & MANA_ZONE) != 0,
+			startZoneTypes[flags >> START_ZONE_SHIFT],
+			store.textures.get(store.texture(x, y)),
+			cliff < 0? null : store.cliffTextures.get(cliff));
+	}
+
+	private void check(final MapPoint pos) throws IndexOutOfBoundsException {
+		check(pos.x, pos.y);
+	}
+
+	private void check(final int x, final int y) throws IndexOutOfBoundsException {
+		if (x < 0 || y < 0 || x >= w || y >= h)
+			throw new IndexOutOfBoundsException();
+	}
+
+	private List<MapPoint> findStartZone(final StartZoneType type) {
+		final List<MapPoint> r = new ArrayList<>();
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				if (store.flags(x, y) >> START_ZONE_SHIFT == type.ordinal())
+					r.add(new MapPoint(x, y));
+			}
+		}
+		return r;
+	}
+
 	/**
 	 * Get start tiles belonging to the human player (or player 1 in PVP)
 	 * */
 	public Collection<MapPoint> getPlayerStartTiles() {
-		return Arrays.stream(data)
-			.filter(t -> t.startZone == StartZoneType.PLAYER)
-			.map(t -> t.pos)
-			.collect(Collectors.toList());
+		return findStartZone(StartZoneType.PLAYER);
 	}
 
 	/**
 	 * Get start tiles belonging to the ai player (or player 2 in PVP)
 	 * */
 	public Collection<MapPoint> getAIStartTiles() {
-		return Arrays.stream(data)
-			.filter(t -> t.startZone == StartZoneType.AI)
-			.map(t -> t.pos)
-			.collect(Collectors.toList());
+		return findStartZone(StartZoneType.AI);
 	}
 
 	public boolean usesTerrainTexture(final TerrainTexture tex) {
-		return Arrays.stream(data).anyMatch(t -> t.tex == tex);
+		final Optional<Integer> i = store.textures.find(tex);
+		if (!i.isPresent()) return false;
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) if (store.texture(x, y) == i.get()) return true;
+		}
+		return false;
 	}
 
 	public boolean usesCliffTexture(final CliffTexture tex) {
-		return Arrays.stream(data).anyMatch(t -> t.cliffTexture == tex);
+		final Optional<Integer> i = store.cliffTextures.find(tex);
+		if (!i.isPresent()) return false;
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) if (store.cliff(x, y) == i.get()) return true;
+		}
+		return false;
 	}
 
 	@Override
 	public JSONObject getJSON() {
 		final JSONArray a = new JSONArray();
-		int ndata = w * h;
-		for (int i = 0; i < ndata; i++) a.put(data[i].getJSON());
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) a.put(tileAt(x, y).getJSON());
+		}
 
 		final JSONObject r = new JSONObject();
 		r.put("w", new Integer(w));
@@ -142,31 +340,140 @@ public class StageInfo implements HasJSONRepresentation {
 		return r;
 	}
 
+	/**
+	 * Get a tile.  Each call makes a new Tile object, so code that looks at a
+	 * lot of tiles may prefer the methods that get individual properties.
+	 * */
 	public Tile getTile(final MapPoint pos) throws IndexOutOfBoundsException {
-		if (pos.x < 0 || pos.y < 0 || pos.x >= w || pos.y >= h)
-			throw new IndexOutOfBoundsException();
-		return data[(pos.y * w) + pos.x];
+		check(pos);
+		return tileAt(pos.x, pos.y);
+	}
+
+	public int getElevation(final MapPoint pos) throws IndexOutOfBoundsException {
+		return getElevation(pos.x, pos.y);
+	}
+
+	public SlopeType getSlope(final MapPoint pos) throws IndexOutOfBoundsException {
+		return getSlope(pos.x, pos.y);
+	}
+
+	/**
+	 * Get the elevation of a tile without making any objects, for code that
+	 * looks at a lot of tiles.
+	 * */
+	public int getElevation(final int x, final int y)
+		throws IndexOutOfBoundsException
+	{
+		check(x, y);
+		return store.elevation(x, y);
+	}
+
+	/**
+	 * Get the slope of a tile without making any objects, for code that looks
+	 * at a lot of tiles.
+	 * */
+	public SlopeType getSlope(final int x, final int y)
+		throws IndexOutOfBoundsException
+	{
+		check(x, y);
+		return slopeTypes[store.slope(x, y)];
+	}
+
+	/**
+	 * Get the outline of a tile as seen from a particular camera angle.
+	 * */
+	TileShape getShape(final MapPoint pos, final CameraAngle a)
+		throws IndexOutOfBoundsException
+	{
+		return TileShape.get(
+			Tile.adjustSlopeForCameraAngle(getSlope(pos), a), getElevation(pos));
+	}
+
+	public TerrainTexture getTerrain(final MapPoint pos)
+		throws IndexOutOfBoundsException
+	{
+		check(pos);
+		return store.textures.get(store.texture(pos.x, pos.y));
+	}
+
+	/**
+	 * @return The cliff texture, or null if the tile has no cliff texture
+	 * */
+	public CliffTexture getCliffTexture(final MapPoint pos)
+		throws IndexOutOfBoundsException
+	{
+		check(pos);
+		final int c = store.cliff(pos.x, pos.y);
+		return c < 0? null : store.cliffTextures.get(c);
+	}
+
+	public boolean isManaZone(final MapPoint pos) throws IndexOutOfBoundsException {
+		check(pos);
+		return (store.flags(pos.x, pos.y) & MANA_ZONE) != 0;
+	}
+
+	public StartZoneType getStartZone(final MapPoint pos)
+		throws IndexOutOfBoundsException
+	{
+		check(pos);
+		return startZoneTypes[store.flags(pos.x, pos.y) >> START_ZONE_SHIFT];
+	}
+
+	/**
+	 * Get the elevation of the highest tile.  For terrain opened with
+	 * openChunked this is an upper bound.
+	 * */
+	public int getMaxElevation() {
+		return store.maxElevation();
 	}
 
 	private final Set<MapPoint> updated = new HashSet<>();
 
 	/**
-	 * Get all the tiles updated since the last call to getUpdatedTiles
+	 * Get all the tiles updated since the last call to getUpdatedTiles or
+	 * getUpdatedPoints.
 	 * */
 	public List<Tile> getUpdatedTiles() {
 		final List<Tile> r = updated.stream()
-			.map(p -> data[(p.y * w) + p.x]).collect(Collectors.toList());
+			.map(p -> tileAt(p.x, p.y)).collect(Collectors.toList());
 		updated.clear();
 		return r;
 	}
 
+	/**
+	 * Get the positions of all the tiles updated since the last call to
+	 * getUpdatedTiles or getUpdatedPoints.  Unlike getUpdatedTiles, this makes
+	 * no Tile objects.
+	 * */
+	public List<MapPoint> getUpdatedPoints() {
+		final List<MapPoint> r = new ArrayList<>(updated);
+		updated.clear();
+		return r;
+	}
+
+	/**
+	 * Determine if any tiles have been updated since the last call to
+	 * getUpdatedTiles or getUpdatedPoints.
+	 * */
+	public boolean hasUpdatedTiles() {
+		return !updated.isEmpty();
+	}
+
+	/**
+	 * Replace a tile.
+	 * @throws IllegalArgumentException if the tile cannot be represented, e.g.
+	 * because its elevation is not between 0 and MAX_ELEVATION
+	 * */
 	public void setTile(final Tile tile)
 		throws IndexOutOfBoundsException
 	{
-		if (tile.pos.x < 0 || tile.pos.y < 0 || tile.pos.x >= w || tile.pos.y >= h)
-			throw new IndexOutOfBoundsException();
+		check(tile.pos);
+		try {
+			store((tile.pos.y * w) + tile.pos.x, tile);
+		} catch (final CorruptDataException e) {
+			throw new IllegalArgumentException(e.getMessage(), e);
+		}
 		updated.add(tile.pos);
-		data[(tile.pos.y * w) + tile.pos.x] = tile;
 	}
 
 	public boolean hasTile(final MapPoint pos) {
@@ -273,14 +580,87 @@ public class StageInfo implements HasJSONRepresentation {
 	 * its elevation.
 	 * */
 	public Point2D correctedIsoCoord(final MapPoint p, final CameraAngle a) {
-		final Tile tile = getTile(p);
-		return toIsoCoord(p, a).add(0d, ELEVATION_H * tile.elevation);
+		return toIsoCoord(p, a).add(0d, ELEVATION_H * getElevation(p));
+	}
+
+	/**
+	 * Get all the tiles that might lie under a rectangle in iso space, ignoring
+	 * elevation.  The result is conservative, so callers should do their own
+	 * intersection tests on the returned tiles.
+	 * */
+	public List<Tile> tilesUnder(final Rectangle2D r, final CameraAngle a) {
+		final int[] b = boundsUnder(r, a);
+		final List<Tile> result = new ArrayList<>();
+		for (int y = b[1]; y <= b[3]; y++) {
+			for (int x = b[0]; x <= b[2]; x++) result.add(tileAt(x, y));
+		}
+		return result;
+	}
+
+	/**
+	 * Get the rectangle of map coordinates that tilesUnder would return, for
+	 * callers that want to look at the tiles without making Tile objects.
+	 * @return {x0, y0, x1, y1}, inclusive.  Empty if x1 &lt; x0 or y1 &lt; y0.
+	 * */
+	int[] boundsUnder(final Rectangle2D r, final CameraAngle a) {
+		final MapPoint[] corners = new MapPoint[] {
+			fromIsoCoord(new Point2D(r.getMinX(), r.getMinY()), a),
+			fromIsoCoord(new Point2D(r.getMaxX(), r.getMinY()), a),
+			fromIsoCoord(new Point2D(r.getMinX(), r.getMaxY()), a),
+			fromIsoCoord(new Point2D(r.getMaxX(), r.getMaxY()), a)
+		};
+
+		int x0 = w; int x1 = 0;
+		int y0 = h; int y1 = 0;
+		for (final MapPoint p : corners) {
+			x0 = Math.min(x0, p.x - 2); x1 = Math.max(x1, p.x + 2);
+			y0 = Math.min(y0, p.y - 2); y1 = Math.max(y1, p.y + 2);
+		}
+		x0 = Math.max(0, x0); x1 = Math.min(w - 1, x1);
+		y0 = Math.max(0, y0); y1 = Math.min(h - 1, y1);
+		return new int[] {x0, y0, x1, y1};
 	}
 
 	public Point2D correctedSpriteIsoCoord(final MapPoint p, final CameraAngle a) {
-		final Tile tile = getTile(p);
-		return toIsoCoord(p, a).add(0d, ELEVATION_H * tile.elevation +
-			(tile.slope != SlopeType.NONE? 0.5d * ELEVATION_H : 0d));
+		return toIsoCoord(p, a).add(0d, ELEVATION_H * getElevation(p) +
+			(getSlope(p) != SlopeType.NONE? 0.5d * ELEVATION_H : 0d));
+	}
+
+	/**
+	 * Get the position of a tile in the order returned by iterateTiles, without
+	 * iterating over the tiles.
+	 * @return A key such that tiles with smaller keys are drawn first
+	 * */
+	public int drawOrder(final MapPoint p, final CameraAngle a) {
+		final int row;
+		final int col;
+		switch (a) {
+			case UL: row = p.x + p.y; col = p.x; break;
+			case LL: row = p.x + (h - 1 - p.y); col = w - 1 - p.x; break;
+			case LR: row = (w - 1 - p.x) + (h - 1 - p.y); col = w - 1 - p.x; break;
+			case UR: row = (w - 1 - p.x) + p.y; col = p.x; break;
+			default: throw new RuntimeException("Invalid camera angle, this cannot happen");
+		}
+		return (row * w) + col;
+	}
+
+	/**
+	 * Find the tile at a position in the draw order.  This is the inverse of
+	 * drawOrder, which gives (row * w) + col.
+	 * @return null if there is no tile at that position
+	 * */
+	public MapPoint fromDrawOrder(final int row, final int col, final CameraAngle a) {
+		final int x;
+		final int y;
+		switch (a) {
+			case UL: x = col; y = row - col; break;
+			case LL: x = w - 1 - col; y = (h - 1) - (row - x); break;
+			case LR: x = w - 1 - col; y = (h - 1) - (row - col); break;
+			case UR: x = col; y = row - (w - 1 - x); break;
+			default: throw new RuntimeException("Invalid camera angle, this cannot happen");
+		}
+		if (x < 0 || x >= w || y < 0 || y >= h) return null;
+		return new MapPoint(x, y);
 	}
 
 	/**
@@ -354,7 +734,7 @@ public class StageInfo implements HasJSONRepresentation {
 				if (done) {
 					throw new NoSuchElementException();
 				} else {
-					Tile r = data[(y * w) + x];
+					Tile r = tileAt(x, y);
 					x += dx;
 					y += dy;
 					if (x < 0 || x >= w || y < 0 || y >= h) {
@@ -512,7 +892,7 @@ public class StageInfo implements HasJSONRepresentation {
 						"Invalid move counter.  This cannot happen");
 				}
 
-				return data[(ry * w) + rx];
+				return tileAt(rx, ry);
 			}
 		};
 	}
@@ -0,0 +1,40 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import javafx.scene.Node;
+
+/**
+ * A strategy for drawing a stage into a view.
+ * */
+public interface StageRenderer {
+	/**
+	 * Get the node that displays the rendered stage.  The view places this
+	 * node in iso space.
+	 * */
+	public Node getNode();
+
+	/**
+	 * Render a frame.
+	 * @param stage The stage to render
+	 * @param view The view we are rendering into
+	 * @param t The current timestamp in nanoseconds
+	 * */
+	public void render(final Stage stage, final View view, final long t);
+}
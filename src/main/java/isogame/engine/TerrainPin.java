@@ -0,0 +1,41 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+/**
+ * Keeps part of the terrain of a stage in memory, when the terrain is loaded
+ * on demand.  Close the pin when the tiles are no longer needed, so they can
+ * be evicted.  Pins on terrain that is entirely in memory do nothing.
+ * */
+public final class TerrainPin implements AutoCloseable {
+	private Runnable release;
+
+	TerrainPin(final Runnable release) {
+		this.release = release;
+	}
+
+	/**
+	 * Release the pin.  Does nothing if the pin is already released.
+	 * */
+	@Override
+	public void close() {
+		release.run();
+		release = () -> {};
+	}
+}
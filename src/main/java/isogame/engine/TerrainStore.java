@@ -0,0 +1,81 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.io.IOException;
+
+/**
+ * Storage for the terrain of a stage.  Each tile is packed into a few small
+ * integers: the elevation, the slope ordinal, indices into the texture
+ * palettes (-1 for no cliff texture), and some flags.  Stores are not thread
+ * safe.
+ * */
+abstract class TerrainStore {
+	public final int w;
+	public final int h;
+
+	public final Palette<TerrainTexture> textures;
+	public final Palette<CliffTexture> cliffTextures;
+
+	protected TerrainStore(
+		final int w, final int h,
+		final Palette<TerrainTexture> textures,
+		final Palette<CliffTexture> cliffTextures
+	) {
+		this.w = w;
+		this.h = h;
+		this.textures = textures;
+		this.cliffTextures = cliffTextures;
+	}
+
+	public abstract int elevation(final int x, final int y);
+	public abstract int slope(final int x, final int y);
+	public abstract int texture(final int x, final int y);
+	public abstract int cliff(final int x, final int y);
+	public abstract int flags(final int x, final int y);
+
+	public abstract void set(
+		final int x, final int y,
+		final int elevation, final int slope,
+		final int texture, final int cliff, final int flags);
+
+	/**
+	 * Get an upper bound on the elevation of every tile.
+	 * */
+	public abstract int maxElevation();
+
+	/**
+	 * Keep a rectangle of tiles in memory.  The corners are inclusive.
+	 * */
+	public TerrainPin pin(final int x0, final int y0, final int x1, final int y1) {
+		return new TerrainPin(() -> {});
+	}
+
+	/**
+	 * Write any changes back to the underlying storage.
+	 * */
+	public void flush() throws IOException {
+	}
+
+	/**
+	 * Release the underlying storage.
+	 * */
+	public void close() throws IOException {
+	}
+}
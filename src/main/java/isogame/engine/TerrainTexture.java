@@ -20,10 +20,18 @@ package isogame.engine;
 
 import isogame.resource.ResourceLocator;
 import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.paint.Color;
 import javafx.scene.paint.ImagePattern;
 import javafx.scene.paint.Paint;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -36,9 +44,10 @@ public class TerrainTexture implements HasJSONRepresentation {
 	private final String url;
 
 	public final Paint samplePaint;
+	private Color sampleColor = null;
 
-	private final Map<SlopeType, Image> evenPrerendered;
-	private final Map<SlopeType, Image> oddPrerendered;
+	private final Map<SlopeType, AtlasRegion> evenPrerendered;
+	private final Map<SlopeType, AtlasRegion> oddPrerendered;
 
 	public TerrainTexture(
 		final ResourceLocator loc,
@@ -56,16 +65,41 @@ public class TerrainTexture implements HasJSONRepresentation {
 
 		} else {
 			try {
-				final Image texture = new Image(loc.gfx(url));
-				int w = (int) texture.getWidth();
-				int h = (int) texture.getHeight();
-
-				final Paint evenPaint = new ImagePattern(texture, 0, 0, 1, 1, true);
-				final Paint oddPaint = new ImagePattern(texture, -0.5, -0.5, 1, 1, true);
+				final byte[] data;
+				try (InputStream in = loc.gfx(url)) {
+					data = PrerenderCache.readAll(in);
+				}
+				final Image texture = new Image(new ByteArrayInputStream(data));
+
+				final ImagePattern evenPaint = new ImagePattern(texture, 0, 0, 1, 1, true);
+				final ImagePattern oddPaint = new ImagePattern(texture, -0.5, -0.5, 1, 1, true);
 				samplePaint = evenPaint;
 
-				evenPrerendered = TilePrerenderer.prerenderTile(evenPaint);
-				oddPrerendered = TilePrerenderer.prerenderTile(oddPaint);
+				final String key = PrerenderCache.key("terrain", data);
+				final SlopeType[] slopes = SlopeType.values();
+				final Optional<List<Image>> cached =
+					PrerenderCache.load(key, 2 * slopes.length);
+
+				final Map<SlopeType, Image> even;
+				final Map<SlopeType, Image> odd;
+				if (cached.isPresent()) {
+					even = new EnumMap<>(SlopeType.class);
+					odd = new EnumMap<>(SlopeType.class);
+					for (int i = 0; i < slopes.length; i++) {
+						even.put(slopes[i], cached.get().get(i));
+						odd.put(slopes[i], cached.get().get(slopes.length + i));
+					}
+				} else {
+					even = TilePrerenderer.prerenderTile(evenPaint);
+					odd = TilePrerenderer.prerenderTile(oddPaint);
+					final List<Image> images = new ArrayList<>();
+					for (final SlopeType s : slopes) images.add(even.get(s));
+					for (final SlopeType s : slopes) images.add(odd.get(s));
+					PrerenderCache.store(key, images);
+				}
+
+				evenPrerendered = toRegions(even);
+				oddPrerendered = toRegions(odd);
 			} catch (IOException e) {
 				throw new CorruptDataException(
 					"Cannot locate resource " + url, e);
@@ -73,14 +107,60 @@ public class TerrainTexture implements HasJSONRepresentation {
 		}
 	}
 
+	static Map<SlopeType, AtlasRegion> toRegions(final Map<SlopeType, Image> images) {
+		final Map<SlopeType, AtlasRegion> r = new EnumMap<>(SlopeType.class);
+		for (final SlopeType s : images.keySet()) r.put(s, new AtlasRegion(images.get(s)));
+		return r;
+	}
+
+	/**
+	 * Get the average colour of this texture, for drawing maps.
+	 * */
+	public synchronized Color getSampleColor() {
+		if (sampleColor == null) {
+			if (!(samplePaint instanceof ImagePattern)) return Color.GRAY;
+
+			final Image img = ((ImagePattern) samplePaint).getImage();
+			final int w = (int) img.getWidth();
+			final int h = (int) img.getHeight();
+			final int[] pixels = new int[w * h];
+			img.getPixelReader().getPixels(
+				0, 0, w, h, PixelFormat.getIntArgbInstance(), pixels, 0, w);
+
+			long r = 0; long g = 0; long b = 0; long a = 0;
+			for (final int p : pixels) {
+				final int pa = p >>> 24;
+				a += pa;
+				r += ((p >>> 16) & 0xFF) * pa;
+				g += ((p >>> 8) & 0xFF) * pa;
+				b += (p & 0xFF) * pa;
+			}
+
+			sampleColor = a == 0? Color.TRANSPARENT : Color.rgb(
+				(int) (r / a), (int) (g / a), (int) (b / a));
+		}
+		return sampleColor;
+	}
+
 	/**
 	 * Get an appropriate prerendered texture.
 	 * */
-	public Image getTexture(final boolean even, final SlopeType slope) {
+	public AtlasRegion getTexture(final boolean even, final SlopeType slope) {
 		if (even) return evenPrerendered.get(slope);
 		else return oddPrerendered.get(slope);
 	}
 
+	/**
+	 * Move the prerendered textures into a texture atlas.
+	 * */
+	void packInto(final TextureAtlas.Builder atlas) {
+		if (evenPrerendered == null) return;
+		for (final SlopeType s : SlopeType.values()) {
+			atlas.add(evenPrerendered.get(s), r -> evenPrerendered.put(s, r));
+			atlas.add(oddPrerendered.get(s), r -> oddPrerendered.put(s, r));
+		}
+	}
+
 	/**
 	 * @param nofx True if we are running in an environment where we cannot use
 	 * JavaFX
@@ -0,0 +1,208 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+import static isogame.GlobalConstants.ATLAS_SIZE;
+
+/**
+ * Packs many small prerendered images into a few large textures.  This means
+ * fewer textures to upload to the graphics card, and less overhead per image.
+ *
+ * Each page has one set of mipmaps, shared by all its regions.  Regions are
+ * placed on multiples of MipChain.ALIGN pixels, with at least that much space
+ * between them, so the regions don't bleed into each other at any level.
+ * */
+public class TextureAtlas {
+	private final List<Image> pages;
+
+	// the page for regions added after the atlas was built, its mipmaps, and
+	// the position of the next region on it
+	private WritableImage extra = null;
+	private MipChain extraMips = null;
+	private int extraX = 0;
+	private int extraY = 0;
+	private int extraShelfH = 0;
+
+	private static final WritablePixelFormat<IntBuffer> format =
+		PixelFormat.getIntArgbPreInstance();
+
+	private TextureAtlas(final List<Image> pages) {
+		this.pages = new ArrayList<>(pages);
+	}
+
+	/**
+	 * Get the large images that make up this atlas.
+	 * */
+	public synchronized List<Image> getPages() {
+		return new ArrayList<>(pages);
+	}
+
+	/**
+	 * Add a region to the atlas after it has been built.  This is for images
+	 * that are made on demand, such as cliff columns.  They go on extra pages,
+	 * which are allocated at full size as they are needed.
+	 * @param pixels The image, in premultiplied ARGB format
+	 * @param w The width of the image
+	 * @param h The height of the image
+	 * */
+	public synchronized AtlasRegion add(
+		final int[] pixels, final int w, final int h
+	) {
+		if (w > ATLAS_SIZE || h > ATLAS_SIZE) throw new RuntimeException(
+			"Image too large for texture atlas");
+
+		if (extra != null && extraX + w > ATLAS_SIZE) {
+			extraX = 0;
+			extraY += extraShelfH;
+			extraShelfH = 0;
+		}
+		if (extra == null || extraY + h > ATLAS_SIZE) {
+			extra = new WritableImage(ATLAS_SIZE, ATLAS_SIZE);
+			extraMips = new MipChain(extra);
+			pages.add(extra);
+			extraX = 0;
+			extraY = 0;
+			extraShelfH = 0;
+		}
+
+		extra.getPixelWriter().setPixels(extraX, extraY, w, h, format, pixels, 0, w);
+		extraMips.update(extraX, extraY, w, h);
+		final AtlasRegion r = new AtlasRegion(extra,
+			new Rectangle2D(extraX, extraY, w, h), extraMips);
+
+		extraX = MipChain.align(extraX + w + MipChain.ALIGN);
+		extraShelfH = Math.max(extraShelfH, MipChain.align(h + MipChain.ALIGN));
+		return r;
+	}
+
+	/**
+	 * Pack all the prerendered terrain and cliff images.  The textures are
+	 * updated to draw from the atlas instead of their own images, and the cliff
+	 * textures add their cliff columns to it as they make them.
+	 * */
+	public static TextureAtlas pack(
+		final Collection<TerrainTexture> terrains,
+		final Collection<CliffTexture> cliffs
+	) {
+		final Builder builder = new Builder();
+		for (final TerrainTexture t : terrains) t.packInto(builder);
+		for (final CliffTexture t : cliffs) t.packInto(builder);
+		final TextureAtlas atlas = builder.build();
+		for (final CliffTexture t : cliffs) t.setColumnAtlas(atlas);
+		return atlas;
+	}
+
+	/**
+	 * Collects regions to pack, and lays them out on shelves.
+	 * */
+	static class Builder {
+		private final List<AtlasRegion> sources = new ArrayList<>();
+		private final List<Consumer<AtlasRegion>> targets = new ArrayList<>();
+
+		/**
+		 * Add a region to the atlas.
+		 * @param region The region to copy into the atlas
+		 * @param onPacked Receives the new region once the atlas is built
+		 * */
+		public void add(
+			final AtlasRegion region, final Consumer<AtlasRegion> onPacked
+		) {
+			sources.add(region);
+			targets.add(onPacked);
+		}
+
+		public TextureAtlas build() {
+			// lay out the regions
+			final int n = sources.size();
+			final int[] page = new int[n];
+			final int[] xs = new int[n];
+			final int[] ys = new int[n];
+			final List<Integer> pageHeights = new ArrayList<>();
+
+			int p = 0;
+			int x = 0;
+			int y = 0;
+			int shelfH = 0;
+			for (int i = 0; i < n; i++) {
+				final int w = (int) Math.ceil(sources.get(i).getWidth());
+				final int h = (int) Math.ceil(sources.get(i).getHeight());
+				if (w > ATLAS_SIZE || h > ATLAS_SIZE) throw new RuntimeException(
+					"Image too large for texture atlas");
+
+				if (x + w > ATLAS_SIZE) {
+					x = 0;
+					y += shelfH;
+					shelfH = 0;
+				}
+				if (y + h > ATLAS_SIZE) {
+					pageHeights.add(y);
+					p += 1;
+					x = 0;
+					y = 0;
+					shelfH = 0;
+				}
+
+				page[i] = p;
+				xs[i] = x;
+				ys[i] = y;
+
+				// leave a gap so smoothing doesn't bleed between entries, even in the
+				// mipmaps
+				x = MipChain.align(x + w + MipChain.ALIGN);
+				shelfH = Math.max(shelfH, MipChain.align(h + MipChain.ALIGN));
+			}
+			if (n > 0) pageHeights.add(y + shelfH);
+
+			// copy the images into the pages
+			final List<Image> pages = new ArrayList<>();
+			final List<MipChain> mips = new ArrayList<>();
+			for (final int h : pageHeights) {
+				final WritableImage img = new WritableImage(ATLAS_SIZE, Math.max(1, h));
+				pages.add(img);
+				mips.add(new MipChain(img));
+			}
+
+			for (int i = 0; i < n; i++) {
+				final AtlasRegion src = sources.get(i);
+				final WritableImage dst = (WritableImage) pages.get(page[i]);
+				final int w = (int) src.getWidth();
+				final int h = (int) src.getHeight();
+
+				dst.getPixelWriter().setPixels(xs[i], ys[i], w, h,
+					src.image.getPixelReader(),
+					(int) src.viewport.getMinX(), (int) src.viewport.getMinY());
+
+				targets.get(i).accept(new AtlasRegion(dst,
+					new Rectangle2D(xs[i], ys[i], w, h), mips.get(page[i])));
+			}
+
+			return new TextureAtlas(pages);
+		}
+	}
+}
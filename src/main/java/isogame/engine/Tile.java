@@ -21,31 +21,20 @@ package isogame.engine;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
-import javafx.beans.value.ObservableBooleanValue;
-import javafx.collections.ObservableList;
-import javafx.geometry.Point2D;
 import javafx.scene.Node;
 import javafx.scene.canvas.GraphicsContext;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
-import javafx.scene.paint.Color;
 import javafx.scene.paint.Paint;
-import javafx.scene.shape.Polygon;
-import javafx.scene.shape.Shape;
-import javafx.scene.text.Font;
-import javafx.scene.text.Text;
-import javafx.scene.text.TextAlignment;
 import org.json.JSONException;
 import org.json.JSONObject;
-import static isogame.GlobalConstants.TILEH;
-import static isogame.GlobalConstants.TILEW;
 import static isogame.engine.TilePrerenderer.OFFSETX;
 import static isogame.engine.TilePrerenderer.OFFSETY;
 
 /**
- * Represents a single tile in a stage.
+ * Represents a single tile in a stage.  Tiles are immutable values, the
+ * stage itself does not store Tile objects.
  * */
-public class Tile extends VisibleObject implements HasJSONRepresentation {
+public class Tile implements HasJSONRepresentation {
 	public final int elevation;
 	public final TerrainTexture tex;
 	public final CliffTexture cliffTexture;
@@ -54,25 +43,10 @@ public class Tile extends VisibleObject implements HasJSONRepresentation {
 	public final StartZoneType startZone;
 	public final MapPoint pos;
 
-	public final List<Point2D> shapeUL;
-	public final List<Point2D> shapeUR;
-	public final List<Point2D> shapeLL;
-	public final List<Point2D> shapeLR;
-
 	private final boolean even;
 
-	private final Text debugText = new Text();
-	private final static Font debugFont = new Font(TILEH / 2);
-
-	public final PrioritizedGroup subGraph;
-	private Optional<Shape> highlightNode = Optional.empty();
-	private Optional<Paint> highlightColor = Optional.empty();
-
-	public Object userData = null;
-
 	public Tile(final MapPoint p, final TerrainTexture texture) {
-		this(p, 0, SlopeType.NONE, false, StartZoneType.NONE,
-			texture, null, new PrioritizedGroup(PrioritizedGroup.TILE));
+		this(p, 0, SlopeType.NONE, false, StartZoneType.NONE, texture, null);
 	}
 
 	public Tile(
@@ -82,8 +56,7 @@ public class Tile extends VisibleObject implements HasJSONRepresentation {
 		final CliffTexture cliffTexture
 	) {
 		this(new MapPoint(0, 0), elevation, slope,
-			false, StartZoneType.NONE, texture, cliffTexture,
-			new PrioritizedGroup(PrioritizedGroup.TILE));
+			false, StartZoneType.NONE, texture, cliffTexture);
 	}
 
 	public Tile(
@@ -93,8 +66,7 @@ public class Tile extends VisibleObject implements HasJSONRepresentation {
 		final boolean isManaZone,
 		final StartZoneType startZone,
 		final TerrainTexture texture,
-		final CliffTexture cliffTexture,
-		final PrioritizedGroup subGraph
+		final CliffTexture cliffTexture
 	) {
 		this.elevation = elevation;
 		this.pos = pos;
@@ -107,35 +79,6 @@ public class Tile extends VisibleObject implements HasJSONRepresentation {
 		this.slope = slope;
 		this.isManaZone = isManaZone;
 		this.startZone = startZone;
-
-		this.subGraph = subGraph;
-		this.subGraph.setCache(true);
-
-		final StringBuilder debug = new StringBuilder();
-		if (isManaZone) debug.append("M");
-		if (isManaZone && startZone != StartZoneType.NONE) debug.append(", ");
-		if (startZone != StartZoneType.NONE)
-			debug.append(startZone == StartZoneType.PLAYER? "S1" : "S2");
-		debugText.setText(debug.toString());
-
-		debugText.setX(0);
-		debugText.setY(TILEH / 2);
-		debugText.setWrappingWidth(TILEW);
-		debugText.setFont(debugFont);
-		debugText.setTextAlignment(TextAlignment.CENTER);
-		debugText.setFill(Color.RED);
-
-		if (slope == SlopeType.NONE) {
-			this.shapeUL = generateShape(CameraAngle.UL);
-			this.shapeUR = this.shapeUL;
-			this.shapeLL = this.shapeUL;
-			this.shapeLR = this.shapeUL;
-		} else {
-			this.shapeUL = generateShape(CameraAngle.UL);
-			this.shapeUR = generateShape(CameraAngle.UR);
-			this.shapeLL = generateShape(CameraAngle.LL);
-			this.shapeLR = generateShape(CameraAngle.LR);
-		}
 	}
 
 	public static Tile fromJSON(final JSONObject json, final Library lib)
@@ -155,8 +98,7 @@ public class Tile extends VisibleObject implements HasJSONRepresentation {
 				SlopeType.valueOf(slope), isManaZone,
 				StartZoneType.valueOf(startZone),
 				lib.getTerrain(texture),
-				cliffTexture == null? null : lib.getCliffTexture(cliffTexture),
-				new PrioritizedGroup(PrioritizedGroup.TILE));
+				cliffTexture == null? null : lib.getCliffTexture(cliffTexture));
 		} catch (JSONException e) {
 			throw new CorruptDataException("Error parsing tile, " + e.getMessage(), e);
 		} catch (IllegalArgumentException e) {
@@ -201,7 +143,7 @@ public class Tile extends VisibleObject implements HasJSONRepresentation {
 	 * */
 	public Tile newTexture(final TerrainTexture tex) {
 		return new Tile(pos, elevation, slope,
-			isManaZone, startZone, tex, cliffTexture, subGraph);
+			isManaZone, startZone, tex, cliffTexture);
 	}
 
 	/**
@@ -213,7 +155,7 @@ public class Tile extends VisibleObject implements HasJSONRepresentation {
 		final CliffTexture cliffTexture
 	) {
 		return new Tile(pos, elevation, slope,
-			isManaZone, startZone, tex, cliffTexture, subGraph);
+			isManaZone, startZone, tex, cliffTexture);
 	}
 
 	/**
@@ -221,7 +163,7 @@ public class Tile extends VisibleObject implements HasJSONRepresentation {
 	 * */
 	public Tile newManaZone(final boolean isManaZone) {
 		return new Tile(pos, elevation, slope,
-			isManaZone, startZone, tex, cliffTexture, subGraph);
+			isManaZone, startZone, tex, cliffTexture);
 	}
 
 	/**
@@ -229,15 +171,24 @@ public class Tile extends VisibleObject implements HasJSONRepresentation {
 	 * */
 	public Tile newStartZone(final StartZoneType startZone) {
 		return new Tile(pos, elevation, slope,
-			isManaZone, startZone, tex, cliffTexture, subGraph);
+			isManaZone, startZone, tex, cliffTexture);
 	}
 
 	public Tile clearSpecialProperties() {
 		return new Tile(pos, elevation, slope,
-			false, StartZoneType.NONE, tex, cliffTexture, subGraph);
+			false, StartZoneType.NONE, tex, cliffTexture);
 	}
 
 	public SlopeType adjustSlopeForCameraAngle(final CameraAngle angle) {
+		return adjustSlopeForCameraAngle(slope, angle);
+	}
+
+	/**
+	 * Get the slope of a tile as seen from a particular camera angle.
+	 * */
+	public static SlopeType adjustSlopeForCameraAngle(
+		final SlopeType slope, final CameraAngle angle
+	) {
 		int s;
 		int d;
 
@@ -278,206 +229,77 @@ public class Tile extends VisibleObject implements HasJSONRepresentation {
 		final GraphicsContext cx,
 		final CameraAngle angle
 	) {
-		final SlopeType slope = adjustSlopeForCameraAngle(angle);
+		render(cx, angle, 0);
+	}
 
-		cx.drawImage(tex.getTexture(even, slope), -OFFSETX, -OFFSETY);
-		if (slope != SlopeType.NONE) {
-			cx.drawImage(cliffTexture.getPreTexture(slope), -OFFSETX, -OFFSETY);
-		}
+	/**
+	 * Render this tile at (0,0) using mipmapped textures.
+	 * @param mipLevel The mipmap level of the textures
+	 * */
+	public void render(
+		final GraphicsContext cx,
+		final CameraAngle angle,
+		final int mipLevel
+	) {
+		final SlopeType slope = adjustSlopeForCameraAngle(angle);
 
-		if (elevation != 0) {
-			final Image epaint = cliffTexture.getPreTexture(SlopeType.NONE);
-			for (int i = 0; i < elevation; i++) {
-				cx.translate(0, TILEH / 2);
-				cx.drawImage(epaint, -OFFSETX, -OFFSETY);
-			}
+		tex.getTexture(even, slope).draw(cx, -OFFSETX, -OFFSETY, mipLevel);
+		if (slope != SlopeType.NONE || elevation != 0) {
+			cliffTexture.getColumn(slope, elevation).draw(
+				cx, -OFFSETX, -OFFSETY, mipLevel);
 		}
 	}
 
-	public int getSceneGraphIndex(
-		final ObservableList<Node> graph, final int priority
+	/**
+	 * Render the highlighting and debug information for this tile at (0,0).
+	 * @param highlight The highlight colour, if any
+	 * @param isDebug True to render the debug text
+	 * */
+	public void renderOverlay(
+		final GraphicsContext cx,
+		final CameraAngle angle,
+		final Optional<Paint> highlight,
+		final boolean isDebug
 	) {
-		final int base = graph.indexOf(subGraph);
-		if (priority == PrioritizedGroup.TILE) return base;
-		int i = base + 1;
-		while (i < graph.size() && graph.get(i) instanceof PrioritizedGroup) {
-			final PrioritizedGroup n = (PrioritizedGroup) graph.get(i);
-			if (n.priority == PrioritizedGroup.TILE || priority < n.priority) {
-				break;
-			}
-
-			i += 1;
-		}
-		return i - 1;
+		highlight.ifPresent(color -> {
+			final TileShape shape = getShape(angle);
+			cx.setFill(color);
+			shape.fill(cx);
+		});
+
+		if (isDebug) DebugOverlay.render(cx, this);
 	}
 
 	/**
-	 * Rebuild this part of the scenegraph
+	 * Construct the nodes that draw this tile from a particular camera angle.
 	 * */
-	public void rebuildSceneGraph(
-		final ObservableBooleanValue isDebug,
-		final CameraAngle angle
+	List<Node> buildTerrainNodes(
+		final CameraAngle angle, final int mipLevel
 	) {
-		final ObservableList<Node> graph = subGraph.getChildren();
-		graph.clear();
-		highlightNode = Optional.empty();
-
+		final List<Node> r = new ArrayList<>();
 		final SlopeType slope = adjustSlopeForCameraAngle(angle);
 
-		final ImageView base = new ImageView(tex.getTexture(even, slope));
-		base.setClip(getHighlightShape(angle));
+		final ImageView base = tex.getTexture(even, slope).makeView(mipLevel);
+		base.setClip(getShape(angle).toPolygon());
 		base.setX(-OFFSETX);
 		base.setY(-OFFSETY);
-		graph.add(base);
+		r.add(base);
 
-		if (slope != SlopeType.NONE) {
-			final ImageView cliff = new ImageView(cliffTexture.getPreTexture(slope));
+		if (slope != SlopeType.NONE || elevation != 0) {
+			final ImageView cliff = cliffTexture.getColumn(slope, elevation).makeView(mipLevel);
 			cliff.setX(-OFFSETX);
 			cliff.setY(-OFFSETY);
-			base.setClip(getHighlightShape(angle));
-			graph.add(cliff);
-		}
-
-		if (elevation != 0) {
-			final Image epaint = cliffTexture.getPreTexture(SlopeType.NONE);
-			for (int i = 1; i <= elevation; i++) {
-				final ImageView cliff2 = new ImageView(epaint);
-				cliff2.setX(-OFFSETX);
-				cliff2.setY(-OFFSETY + (i * (TILEH / 2)));
-				base.setClip(getHighlightShape(angle));
-				graph.add(cliff2);
-			}
-		}
-
-		debugText.visibleProperty().bind(isDebug);
-		graph.add(debugText);
-
-		setHighlight0(angle);
-
-		onChange.accept(subGraph);
-	}
-
-	private Polygon getHighlightShape(final CameraAngle angle) {
-		final List<Point2D> shape;
-		switch (angle) {
-			case UL: shape = shapeUL; break;
-			case UR: shape = shapeUR; break;
-			case LL: shape = shapeLL; break;
-			case LR: shape = shapeLR; break;
-			default:
-				throw new RuntimeException("Invalid angle, this cannot happen");
+			r.add(cliff);
 		}
 
-		final double[] pts = new double[shape.size() * 2];
-		for (int i = 0; i < shape.size(); i++) {
-			pts[i * 2] = shape.get(i).getX();
-			pts[(i * 2) + 1] = shape.get(i).getY();
-		}
-
-		return new Polygon(pts);
-	}
-
-	/**
-	 * Update the highlight color for this tile
-	 * @param highlight The highlight color
-	 * */
-	public void setHighlight(
-		final CameraAngle angle,
-		final Optional<Paint> highlight
-	) {
-		this.highlightColor = highlight;
-		setHighlight0(angle);
-	}
-
-	/**
-	 * Create or destroy the highlight node as necessary.
-	 * */
-	private void setHighlight0(final CameraAngle angle) {
-		final ObservableList<Node> graph = subGraph.getChildren();
-
-		if (highlightColor.isPresent()) {
-			final Shape n = highlightNode.orElseGet(() -> {
-				final Shape r = getHighlightShape(angle);
-				r.setCache(true);
-
-				// the highlighter goes in the second to last position, so that it
-				// always appears behind the debug text
-				graph.add(graph.size() - 1, r);
-				highlightNode = Optional.of(r);
-				return r;
-			});
-
-			n.setFill(highlightColor.get());
-		} else {
-			highlightNode.ifPresent(n -> {
-				graph.remove(n);
-				highlightNode = Optional.empty();
-			});
-		}
+		return r;
 	}
 
 	/**
-	 * Get the shape of this tile.
-	 * @return A list of points representing the outline of this tile
+	 * Get the outline of this tile as seen from a particular camera angle.
 	 * */
-	private List<Point2D> generateShape(final CameraAngle a) {
-		final double extension = (TILEH * ((double) elevation)) / 2;
-		final List<Point2D> r = new ArrayList<>();
-		switch (adjustSlopeForCameraAngle(a)) {
-			case NONE:
-				if (elevation == 0) {
-					r.add(new Point2D(TILEW / 2, -2       ));
-					r.add(new Point2D(TILEW + 4, TILEH / 2));
-					r.add(new Point2D(TILEW / 2, TILEH + 2));
-					r.add(new Point2D(-4       , TILEH / 2));
-				} else if (elevation > 0) {
-					r.add(new Point2D(TILEW / 2, -2                         ));
-					r.add(new Point2D(TILEW + 4,  TILEH / 2                 ));
-					r.add(new Point2D(TILEW + 4, (TILEH / 2) + extension + 2));
-					r.add(new Point2D(TILEW / 2,       TILEH + extension + 2));
-					r.add(new Point2D(-4       , (TILEH / 2) + extension + 2));
-					r.add(new Point2D(-4       ,  TILEH / 2                 ));
-				} else {
-					throw new RuntimeException("Negative elevation not supported");
-				}
-				break;
-			case N:
-				r.add(new Point2D(-4       ,     (TILEH / 2) + 2        ));
-				r.add(new Point2D(TILEW / 2, 0 - (TILEH / 2) - 2        ));
-				r.add(new Point2D(TILEW + 4, 0                          ));
-				r.add(new Point2D(TILEW + 4, (TILEH / 2) + extension + 2));
-				r.add(new Point2D(TILEW / 2,       TILEH + extension + 4));
-				r.add(new Point2D(-4       , (TILEH / 2) + extension + 2));
-				break;
-			case E:
-				r.add(new Point2D(-4       , (TILEH / 2) + 2            ));
-				r.add(new Point2D(TILEW / 2, -2                         ));
-				r.add(new Point2D(TILEW + 4, -2                         ));
-				r.add(new Point2D(TILEW + 4, (TILEH / 2) + extension + 2));
-				r.add(new Point2D(TILEW / 2,       TILEH + extension + 2));
-				r.add(new Point2D(-4       , (TILEH / 2) + extension + 2));
-				break;
-			case S:
-				r.add(new Point2D(-4       , -2                         ));
-				r.add(new Point2D(TILEW / 2, -2                         ));
-				r.add(new Point2D(TILEW + 4, (TILEH / 2) + 2            ));
-				r.add(new Point2D(TILEW + 4, (TILEH / 2) + extension + 2));
-				r.add(new Point2D(TILEW / 2,       TILEH + extension + 2));
-				r.add(new Point2D(-4       , (TILEH / 2) + extension + 2));
-				break;
-			case W:
-				r.add(new Point2D(-4       , 0                          ));
-				r.add(new Point2D(TILEW / 2, 0 - (TILEH / 2) - 2        ));
-				r.add(new Point2D(TILEW + 4,     (TILEH / 2) + 2        ));
-				r.add(new Point2D(TILEW + 4, (TILEH / 2) + extension + 2));
-				r.add(new Point2D(TILEW / 2,       TILEH + extension + 4));
-				r.add(new Point2D(-4       , (TILEH / 2) + extension + 2));
-				break;
-			default: throw new RuntimeException(
-				"Invalid slope type. This cannot happen");
-		}
-
-		return r;
+	TileShape getShape(final CameraAngle angle) {
+		return TileShape.get(adjustSlopeForCameraAngle(angle), elevation);
 	}
 
 	@Override public String toString() {
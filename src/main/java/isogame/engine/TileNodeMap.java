@@ -0,0 +1,98 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static isogame.GlobalConstants.NODE_CHUNK_TILES;
+
+/**
+ * The scene graph nodes for the tiles of a stage, kept in square chunks of
+ * the map so that memory is only used for the parts of the map that have been
+ * in the scene graph.  Chunks are discarded when they become empty.
+ * */
+class TileNodeMap {
+	private static class Chunk {
+		final TileNodes[] nodes = new TileNodes[NODE_CHUNK_TILES * NODE_CHUNK_TILES];
+		int count = 0;
+	}
+
+	private final Map<MapPoint, Chunk> chunks = new HashMap<>();
+
+	private static MapPoint chunkOf(final MapPoint p) {
+		return new MapPoint(
+			Math.floorDiv(p.x, NODE_CHUNK_TILES), Math.floorDiv(p.y, NODE_CHUNK_TILES));
+	}
+
+	private static int indexOf(final MapPoint p) {
+		return (Math.floorMod(p.y, NODE_CHUNK_TILES) * NODE_CHUNK_TILES) +
+			Math.floorMod(p.x, NODE_CHUNK_TILES);
+	}
+
+	/**
+	 * Get the nodes for a tile.
+	 * @return null if the tile has no nodes
+	 * */
+	public TileNodes get(final MapPoint p) {
+		final Chunk chunk = chunks.get(chunkOf(p));
+		return chunk == null? null : chunk.nodes[indexOf(p)];
+	}
+
+	/**
+	 * Get the nodes for a tile, making them if necessary.
+	 * */
+	public TileNodes getOrCreate(final MapPoint p) {
+		final Chunk chunk = chunks.computeIfAbsent(chunkOf(p), c -> new Chunk());
+		final int i = indexOf(p);
+		if (chunk.nodes[i] == null) {
+			chunk.nodes[i] = new TileNodes();
+			chunk.count += 1;
+		}
+		return chunk.nodes[i];
+	}
+
+	/**
+	 * Discard the nodes for a tile.
+	 * */
+	public void remove(final MapPoint p) {
+		final MapPoint c = chunkOf(p);
+		final Chunk chunk = chunks.get(c);
+		if (chunk == null) return;
+
+		final int i = indexOf(p);
+		if (chunk.nodes[i] != null) {
+			chunk.nodes[i] = null;
+			chunk.count -= 1;
+			if (chunk.count == 0) chunks.remove(c);
+		}
+	}
+
+	/**
+	 * Do something with the nodes for every tile that has them.
+	 * */
+	public void forEach(final Consumer<TileNodes> k) {
+		for (final Chunk chunk : chunks.values()) {
+			for (final TileNodes nodes : chunk.nodes) {
+				if (nodes != null) k.accept(nodes);
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+
+/**
+ * The part of the scene graph that draws a single tile.  These are kept
+ * apart from the tiles themselves, and the stage only makes them for tiles
+ * that are in the scene graph.
+ * */
+class TileNodes {
+	public final PrioritizedGroup subGraph =
+		new PrioritizedGroup(PrioritizedGroup.TILE);
+
+	// terrain nodes kept for each camera angle.  May be null.
+	private Map<CameraAngle, List<Node>> nodeCache = null;
+
+	// true if subGraph is up to date with the tile and the current camera angle
+	private boolean built = false;
+
+	public TileNodes() {
+		subGraph.setCache(true);
+	}
+
+	/**
+	 * Rebuild this part of the scenegraph
+	 * @param mipLevel The mipmap level of the textures.  If this changes, call
+	 * clearNodeCache first.
+	 * @param keepNodes If true, keep the terrain nodes for this camera angle so
+	 * we don't have to build them again next time we rotate to this angle.
+	 * */
+	public void rebuild(
+		final Tile tile,
+		final CameraAngle angle,
+		final int mipLevel,
+		final boolean keepNodes
+	) {
+		final ObservableList<Node> graph = subGraph.getChildren();
+
+		if (keepNodes) {
+			prebuild(tile, angle, mipLevel);
+			graph.setAll(nodeCache.get(angle));
+		} else {
+			final List<Node> cached = nodeCache == null? null : nodeCache.get(angle);
+			graph.setAll(cached == null? tile.buildTerrainNodes(angle, mipLevel) : cached);
+		}
+		built = true;
+	}
+
+	/**
+	 * Determine if the subgraph is up to date.
+	 * */
+	public boolean isBuilt() {
+		return built;
+	}
+
+	/**
+	 * Mark the subgraph out of date, so it will be rebuilt before it is next
+	 * added to the scene graph.
+	 * */
+	public void invalidate() {
+		built = false;
+	}
+
+	/**
+	 * Build the terrain nodes for a camera angle ahead of time, so that the next
+	 * rebuild for that angle can reuse them.
+	 * */
+	public void prebuild(
+		final Tile tile, final CameraAngle angle, final int mipLevel
+	) {
+		if (nodeCache == null) nodeCache = new EnumMap<>(CameraAngle.class);
+		if (!nodeCache.containsKey(angle))
+			nodeCache.put(angle, tile.buildTerrainNodes(angle, mipLevel));
+	}
+
+	/**
+	 * Discard any terrain nodes kept by rebuild or prebuild.  This must be done
+	 * whenever the tile changes.
+	 * */
+	public void clearNodeCache() {
+		nodeCache = null;
+	}
+}
@@ -18,6 +18,8 @@ along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
 */
 package isogame.engine;
 
+import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.function.Function;
@@ -25,148 +27,309 @@ import javafx.scene.SnapshotParameters;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
 import javafx.scene.paint.Color;
-import javafx.scene.paint.Paint;
+import javafx.scene.paint.ImagePattern;
 import static isogame.GlobalConstants.TILEH;
 import static isogame.GlobalConstants.TILEW;
 
-class TilePrerenderer {
-	private static final double[] xs = new double[6];
-	private static final double[] ys = new double[6];
-	private static final SnapshotParameters sp = new SnapshotParameters();
+/**
+ * Prerenders the tile and cliff textures.
+ *
+ * By default the textures are drawn by a small software rasteriser.  It does
+ * not need the FX thread, so several textures can be prerendered at once.  It
+ * follows the JavaFX canvas renderer: edge coverage is computed on 8
+ * scanlines per pixel row with exact horizontal coverage (like the Marlin
+ * rasteriser's default 8x256 subpixel grid), and the texture is sampled with
+ * bilinear filtering at the pixel centres, wrapping at the edges.  The
+ * geometry is identical, so the two should differ only by rounding.  The
+ * tolerance is 1 level (out of 255) per channel inside the polygons and 2
+ * levels on the partly covered pixels at the edges.
+ *
+ * The canvas renderer is still available with setSoftwareRendering(false),
+ * but it must run on the FX thread, so textures are then prerendered one at a
+ * time.
+ * */
+public class TilePrerenderer {
+	// increment this whenever the output changes, to invalidate PrerenderCache
+	public static final int VERSION = 2;
 
-	private static double canvasW = TILEW + 8;
-	private static double canvasH = TILEH + (TILEH / 2) + 8;
+	private static final int canvasW = (int) (TILEW + 8);
+	private static final int canvasH = (int) (TILEH + (TILEH / 2) + 8);
 
 	public static final double OFFSETX = 4;
 	public static final double OFFSETY = 4 + (TILEH / 2);
 
-	public static Map<SlopeType, Image> prerenderTile(final Paint texture) {
-		sp.setFill(Color.TRANSPARENT);
-		final Canvas canvas = new Canvas(canvasW, canvasH);
-		final GraphicsContext cx = canvas.getGraphicsContext2D();
-		cx.translate(OFFSETX, OFFSETY);
+	// number of scanlines to sample per row of pixels, for antialiasing
+	private static final int SUBSAMPLES = 8;
 
+	private static final WritablePixelFormat<IntBuffer> format =
+		PixelFormat.getIntArgbPreInstance();
+
+	private static boolean software = true;
+
+	/**
+	 * Choose how to prerender textures.  This must be set before any libraries
+	 * are loaded.
+	 * @param software If true (the default), use the software rasteriser, and
+	 * prerender textures in parallel off the FX thread.  If false use a JavaFX
+	 * canvas on the calling thread, which must be the FX thread.
+	 * */
+	public static synchronized void setSoftwareRendering(final boolean software) {
+		TilePrerenderer.software = software;
+	}
+
+	public static synchronized boolean isSoftwareRendering() {
+		return software;
+	}
+
+	/**
+	 * Fills polygons with a texture, producing one image per polygon.
+	 * */
+	@FunctionalInterface
+	private interface Filler {
+		/**
+		 * @param xs The x coordinates of the vertices, relative to the tile origin
+		 * @param ys The y coordinates of the vertices, relative to the tile origin
+		 * */
+		public Image fill(ImagePattern texture, double[] xs, double[] ys);
+	}
+
+	private static Filler getFiller() {
+		if (isSoftwareRendering()) {
+			final Map<ImagePattern, Texture> textures = new HashMap<>();
+			return (texture, xs, ys) ->
+				fill(textures.computeIfAbsent(texture, Texture::new), xs, ys);
+		} else {
+			final SnapshotParameters sp = new SnapshotParameters();
+			sp.setFill(Color.TRANSPARENT);
+			final Canvas canvas = new Canvas(canvasW, canvasH);
+			final GraphicsContext cx = canvas.getGraphicsContext2D();
+			cx.translate(OFFSETX, OFFSETY);
+			return (texture, xs, ys) -> {
+				cx.clearRect(-OFFSETX, -OFFSETY, canvasW, canvasH);
+				cx.setFill(texture);
+				cx.fillPolygon(xs, ys, xs.length);
+				return canvas.snapshot(sp, null);
+			};
+		}
+	}
+
+	public static Map<SlopeType, Image> prerenderTile(final ImagePattern texture) {
+		final Filler f = getFiller();
 		final Map<SlopeType, Image> r = new HashMap<>();
 
-		// NONE
-		xs[0] = TILEW / 2; ys[0] = -2;
-		xs[1] = TILEW + 4; ys[1] = TILEH / 2;
-		xs[2] = TILEW / 2; ys[2] = TILEH + 2;
-		xs[3] = -4;        ys[3] = TILEH / 2;
-		cx.setFill(texture);
-		cx.fillPolygon(xs, ys, 4);
-		r.put(SlopeType.NONE, canvas.snapshot(sp, null));
-
-		// N
-		cx.clearRect(-OFFSETX, -OFFSETY, canvasW, canvasH);
-		xs[0] = -4;        ys[0] = (TILEH / 2) + 2;
-		xs[1] = TILEW / 2; ys[1] = 0 - (TILEH / 2) - 2;
-		xs[2] = TILEW + 4; ys[2] = 0;
-		xs[3] = TILEW / 2; ys[3] = TILEH + 4;
-		cx.setFill(texture);
-		cx.fillPolygon(xs, ys, 4);
-		r.put(SlopeType.N, canvas.snapshot(sp, null));
-
-		// E
-		cx.clearRect(-OFFSETX, -OFFSETY, canvasW, canvasH);
-		xs[0] = -4;        ys[0] = (TILEH / 2) + 2;
-		xs[1] = TILEW / 2; ys[1] = -2;
-		xs[2] = TILEW + 4; ys[2] = -2;
-		xs[3] = TILEW / 2; ys[3] = (TILEH / 2) + 2;
-		cx.setFill(texture);
-		cx.fillPolygon(xs, ys, 4);
-		r.put(SlopeType.E, canvas.snapshot(sp, null));
-
-		// S
-		cx.clearRect(-OFFSETX, -OFFSETY, canvasW, canvasH);
-		xs[0] = -4;        ys[0] = -2;
-		xs[1] = TILEW / 2; ys[1] = -2;
-		xs[2] = TILEW + 4; ys[2] = (TILEH / 2) + 2;
-		xs[3] = TILEW / 2; ys[3] = (TILEH / 2) + 2;
-		cx.setFill(texture);
-		cx.fillPolygon(xs, ys, 4);
-		r.put(SlopeType.S, canvas.snapshot(sp, null));
-
-		// W
-		cx.clearRect(-OFFSETX, -OFFSETY, canvasW, canvasH);
-		xs[0] = -4;        ys[0] = 0;
-		xs[1] = TILEW / 2; ys[1] = 0 - (TILEH / 2) - 2;
-		xs[2] = TILEW + 4; ys[2] = (TILEH / 2) + 2;
-		xs[3] = TILEW / 2; ys[3] = TILEH + 4;
-		cx.setFill(texture);
-		cx.fillPolygon(xs, ys, 4);
-		r.put(SlopeType.W, canvas.snapshot(sp, null));
+		r.put(SlopeType.NONE, f.fill(texture,
+			new double[] {TILEW / 2, TILEW + 4, TILEW / 2, -4},
+			new double[] {-2, TILEH / 2, TILEH + 2, TILEH / 2}));
+
+		r.put(SlopeType.N, f.fill(texture,
+			new double[] {-4, TILEW / 2, TILEW + 4, TILEW / 2},
+			new double[] {(TILEH / 2) + 2, 0 - (TILEH / 2) - 2, 0, TILEH + 4}));
+
+		r.put(SlopeType.E, f.fill(texture,
+			new double[] {-4, TILEW / 2, TILEW + 4, TILEW / 2},
+			new double[] {(TILEH / 2) + 2, -2, -2, (TILEH / 2) + 2}));
+
+		r.put(SlopeType.S, f.fill(texture,
+			new double[] {-4, TILEW / 2, TILEW + 4, TILEW / 2},
+			new double[] {-2, -2, (TILEH / 2) + 2, (TILEH / 2) + 2}));
+
+		r.put(SlopeType.W, f.fill(texture,
+			new double[] {-4, TILEW / 2, TILEW + 4, TILEW / 2},
+			new double[] {0, 0 - (TILEH / 2) - 2, (TILEH / 2) + 2, TILEH + 4}));
 
 		return r;
 	}
 
 	public static Map<SlopeType, Image> prerenderCliff(
-		final Function<SlopeType, Paint> texture
+		final Function<SlopeType, ImagePattern> texture
 	) {
-		sp.setFill(Color.TRANSPARENT);
-		final Canvas canvas = new Canvas(canvasW, canvasH);
-		final GraphicsContext cx = canvas.getGraphicsContext2D();
-		cx.translate(OFFSETX, OFFSETY);
-
+		final Filler f = getFiller();
 		final Map<SlopeType, Image> r = new HashMap<>();
 
-		// NONE
-		xs[0] = 0;         ys[0] = 0;
-		xs[1] = 0;         ys[1] = (TILEH / 2) + 2;
-		xs[2] = TILEW / 2; ys[2] = TILEH + 2;
-		xs[3] = TILEW;     ys[3] = (TILEH / 2) + 2;
-		xs[4] = TILEW;     ys[4] = 0;
-		xs[5] = TILEW / 2; ys[5] = TILEH / 2;
-		cx.setFill(texture.apply(SlopeType.NONE));
-		cx.fillPolygon(xs, ys, 6);
-		r.put(SlopeType.NONE, canvas.snapshot(sp, null));
-
-		// N
-		cx.clearRect(-OFFSETX, -OFFSETY, canvasW, canvasH);
-		xs[0] = TILEW / 2; ys[0] = TILEH;
-		xs[1] = TILEW;     ys[1] = 0;
-		xs[2] = TILEW;     ys[2] = (TILEH / 2) + 2;
-		xs[3] = TILEW / 2; ys[3] = TILEH + 2;
-		cx.setFill(texture.apply(SlopeType.N));
-		cx.fillPolygon(xs, ys, 4);
-		r.put(SlopeType.N, canvas.snapshot(sp, null));
-
-		// E
-		cx.clearRect(-OFFSETX, -OFFSETY, canvasW, canvasH);
-		xs[0] = 0;         ys[0] = TILEH / 2;
-		xs[1] = TILEW / 2; ys[1] = TILEH / 2;
-		xs[2] = TILEW;     ys[2] = 0;
-		xs[3] = TILEW;     ys[3] = (TILEH / 2) + 2;
-		xs[4] = TILEW / 2; ys[4] = TILEH + 2;
-		xs[5] = 0;         ys[5] = (TILEH / 2) + 2;
-		cx.setFill(texture.apply(SlopeType.E));
-		cx.fillPolygon(xs, ys, 6);
-		r.put(SlopeType.E, canvas.snapshot(sp, null));
-
-		// S
-		cx.clearRect(-OFFSETX, -OFFSETY, canvasW, canvasH);
-		xs[0] = 0;         ys[0] = 0;
-		xs[1] = TILEW / 2; ys[1] = TILEH / 2;
-		xs[2] = TILEW;     ys[2] = TILEH / 2;
-		xs[3] = TILEW;     ys[3] = (TILEH / 2) + 2;
-		xs[4] = TILEW / 2; ys[4] = TILEH + 2;
-		xs[5] = 0;         ys[5] = (TILEH / 2) + 2;
-		cx.setFill(texture.apply(SlopeType.S));
-		cx.fillPolygon(xs, ys, 6);
-		r.put(SlopeType.S, canvas.snapshot(sp, null));
-
-		// W
-		cx.clearRect(-OFFSETX, -OFFSETY, canvasW, canvasH);
-		xs[0] = 0;         ys[0] = 0;
-		xs[1] = TILEW / 2; ys[1] = TILEH;
-		xs[2] = TILEW / 2; ys[2] = TILEH + 2;
-		xs[3] = 0;         ys[3] = (TILEH / 2) + 2;
-		cx.setFill(texture.apply(SlopeType.W));
-		cx.fillPolygon(xs, ys, 4);
-		r.put(SlopeType.W, canvas.snapshot(sp, null));
+		r.put(SlopeType.NONE, f.fill(texture.apply(SlopeType.NONE),
+			new double[] {0, 0, TILEW / 2, TILEW, TILEW, TILEW / 2},
+			new double[] {0, (TILEH / 2) + 2, TILEH + 2, (TILEH / 2) + 2, 0, TILEH / 2}));
+
+		r.put(SlopeType.N, f.fill(texture.apply(SlopeType.N),
+			new double[] {TILEW / 2, TILEW, TILEW, TILEW / 2},
+			new double[] {TILEH, 0, (TILEH / 2) + 2, TILEH + 2}));
+
+		r.put(SlopeType.E, f.fill(texture.apply(SlopeType.E),
+			new double[] {0, TILEW / 2, TILEW, TILEW, TILEW / 2, 0},
+			new double[] {TILEH / 2, TILEH / 2, 0, (TILEH / 2) + 2, TILEH + 2, (TILEH / 2) + 2}));
+
+		r.put(SlopeType.S, f.fill(texture.apply(SlopeType.S),
+			new double[] {0, TILEW / 2, TILEW, TILEW, TILEW / 2, 0},
+			new double[] {0, TILEH / 2, TILEH / 2, (TILEH / 2) + 2, TILEH + 2, (TILEH / 2) + 2}));
+
+		r.put(SlopeType.W, f.fill(texture.apply(SlopeType.W),
+			new double[] {0, TILEW / 2, TILEW / 2, 0},
+			new double[] {0, TILEH, TILEH + 2, (TILEH / 2) + 2}));
 
 		return r;
 	}
-}
 
+	/**
+	 * The pixels of an image pattern, in premultiplied ARGB format.
+	 * */
+	private static class Texture {
+		final ImagePattern pattern;
+		final int w;
+		final int h;
+		final int[] pixels;
+
+		Texture(final ImagePattern pattern) {
+			final Image img = pattern.getImage();
+			this.pattern = pattern;
+			this.w = (int) img.getWidth();
+			this.h = (int) img.getHeight();
+			this.pixels = new int[w * h];
+			img.getPixelReader().getPixels(0, 0, w, h, format, pixels, 0, w);
+		}
+
+		/**
+		 * Sample the texture with bilinear filtering, wrapping at the edges.
+		 * @param u The x coordinate in texels
+		 * @param v The y coordinate in texels
+		 * */
+		int sample(final double u, final double v) {
+			final double fu = u - 0.5;
+			final double fv = v - 0.5;
+			final int x0 = (int) Math.floor(fu);
+			final int y0 = (int) Math.floor(fv);
+			final double ax = fu - x0;
+			final double ay = fv - y0;
+
+			final int xa = Math.floorMod(x0, w);
+			final int xb = Math.floorMod(x0 + 1, w);
+			final int ya = Math.floorMod(y0, h) * w;
+			final int yb = Math.floorMod(y0 + 1, h) * w;
+
+			return lerp(
+				lerp(pixels[ya + xa], pixels[ya + xb], ax),
+				lerp(pixels[yb + xa], pixels[yb + xb], ax), ay);
+		}
+	}
+
+	/**
+	 * Fill a polygon with a texture, with antialiased edges, using the software
+	 * rasteriser.
+	 * @param xs The x coordinates of the vertices, relative to the tile origin
+	 * @param ys The y coordinates of the vertices, relative to the tile origin
+	 * */
+	private static Image fill(
+		final Texture tex, final double[] xs, final double[] ys
+	) {
+		final int n = xs.length;
+
+		// the pattern is positioned relative to the bounding box of the polygon
+		double bx0 = Double.MAX_VALUE;
+		double by0 = Double.MAX_VALUE;
+		double bx1 = -Double.MAX_VALUE;
+		double by1 = -Double.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			bx0 = Math.min(bx0, xs[i]); bx1 = Math.max(bx1, xs[i]);
+			by0 = Math.min(by0, ys[i]); by1 = Math.max(by1, ys[i]);
+		}
+
+		final ImagePattern p = tex.pattern;
+		final double px;
+		final double py;
+		final double pw;
+		final double ph;
+		if (p.isProportional()) {
+			px = bx0 + (p.getX() * (bx1 - bx0));
+			py = by0 + (p.getY() * (by1 - by0));
+			pw = p.getWidth() * (bx1 - bx0);
+			ph = p.getHeight() * (by1 - by0);
+		} else {
+			px = p.getX(); py = p.getY(); pw = p.getWidth(); ph = p.getHeight();
+		}
+
+		// work out the coverage of each pixel, one scanline at a time
+		final double[] coverage = new double[canvasW * canvasH];
+		final double[] crossings = new double[n];
+		final double weight = 1.0d / SUBSAMPLES;
+		for (int j = 0; j < canvasH; j++) {
+			for (int s = 0; s < SUBSAMPLES; s++) {
+				final double y = j + ((s + 0.5d) * weight) - OFFSETY;
+
+				int nc = 0;
+				for (int k = 0; k < n; k++) {
+					final double x0 = xs[k];
+					final double y0 = ys[k];
+					final double x1 = xs[(k + 1) % n];
+					final double y1 = ys[(k + 1) % n];
+					if ((y0 <= y && y1 > y) || (y1 <= y && y0 > y)) {
+						crossings[nc++] = x0 + (((y - y0) * (x1 - x0)) / (y1 - y0)) + OFFSETX;
+					}
+				}
+				Arrays.sort(crossings, 0, nc);
+
+				for (int c = 0; c + 1 < nc; c += 2) {
+					addSpan(coverage, j * canvasW, crossings[c], crossings[c + 1], weight);
+				}
+			}
+		}
+
+		// shade the covered pixels
+		final int[] out = new int[canvasW * canvasH];
+		for (int j = 0; j < canvasH; j++) {
+			for (int i = 0; i < canvasW; i++) {
+				final double a = Math.min(1.0d, coverage[(j * canvasW) + i]);
+				if (a <= 0) continue;
+
+				final double u = (((i + 0.5d - OFFSETX) - px) / pw) * tex.w;
+				final double v = (((j + 0.5d - OFFSETY) - py) / ph) * tex.h;
+				out[(j * canvasW) + i] = scale(tex.sample(u, v), a);
+			}
+		}
+
+		final WritableImage r = new WritableImage(canvasW, canvasH);
+		r.getPixelWriter().setPixels(0, 0, canvasW, canvasH, format, out, 0, canvasW);
+		return r;
+	}
+
+	/**
+	 * Add the coverage of a horizontal span to a row of pixels.
+	 * */
+	private static void addSpan(
+		final double[] coverage, final int row,
+		final double xa, final double xb, final double weight
+	) {
+		final int i0 = Math.max(0, (int) Math.floor(xa));
+		final int i1 = Math.min(canvasW - 1, (int) Math.ceil(xb) - 1);
+		for (int i = i0; i <= i1; i++) {
+			final double c = Math.min(xb, i + 1) - Math.max(xa, i);
+			if (c > 0) coverage[row + i] += c * weight;
+		}
+	}
+
+	/**
+	 * Interpolate between two premultiplied ARGB colours.
+	 * */
+	private static int lerp(final int c0, final int c1, final double a) {
+		int r = 0;
+		for (int shift = 0; shift < 32; shift += 8) {
+			final int v0 = (c0 >>> shift) & 0xFF;
+			final int v1 = (c1 >>> shift) & 0xFF;
+			r |= ((int) Math.round(v0 + ((v1 - v0) * a))) << shift;
+		}
+		return r;
+	}
+
+	/**
+	 * Scale all the channels of a premultiplied ARGB colour.
+	 * */
+	private static int scale(final int c, final double a) {
+		int r = 0;
+		for (int shift = 0; shift < 32; shift += 8) {
+			r |= ((int) Math.round(((c >>> shift) & 0xFF) * a)) << shift;
+		}
+		return r;
+	}
+}
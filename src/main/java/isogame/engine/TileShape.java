@@ -0,0 +1,217 @@
+/* © Callum Lowcay 2015, 2016, 2017
+
+This file is part of iso-game-engine.
+
+iso-game-engine is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+iso-game-engine is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with iso-game-engine.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+package isogame.engine;
+
+import java.util.Arrays;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.shape.Polygon;
+import static isogame.GlobalConstants.TILEH;
+import static isogame.GlobalConstants.TILEW;
+
+/**
+ * The outline of a tile, used for clipping, highlighting, and collision
+ * detection.  The outline depends only on the slope (as seen from the
+ * camera) and the elevation, so the shapes are shared between all the tiles.
+ * Instances are immutable.
+ * */
+final class TileShape {
+	private static final int SLOPES = SlopeType.values().length;
+
+	// indexed by (elevation * SLOPES) + slope.  The array grows to fit the
+	// highest elevation requested so far.
+	private static volatile TileShape[] shapes = new TileShape[SLOPES * 16];
+
+	private final double[] xs;
+	private final double[] ys;
+
+	/**
+	 * The number of vertices.
+	 * */
+	public final int n;
+
+	/**
+	 * The bounding box.
+	 * */
+	public final double minX;
+	public final double minY;
+	public final double maxX;
+	public final double maxY;
+
+	private TileShape(final double[] xs, final double[] ys) {
+		this.xs = xs;
+		this.ys = ys;
+		this.n = xs.length;
+
+		double x0 = Double.MAX_VALUE; double x1 = -Double.MAX_VALUE;
+		double y0 = Double.MAX_VALUE; double y1 = -Double.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			x0 = Math.min(x0, xs[i]); x1 = Math.max(x1, xs[i]);
+			y0 = Math.min(y0, ys[i]); y1 = Math.max(y1, ys[i]);
+		}
+		this.minX = x0; this.maxX = x1;
+		this.minY = y0; this.maxY = y1;
+	}
+
+	/**
+	 * Get the shape of a tile.
+	 * @param slope The slope of the tile, adjusted for the camera angle
+	 * @param elevation The elevation of the tile
+	 * */
+	public static TileShape get(final SlopeType slope, final int elevation) {
+		if (elevation < 0)
+			throw new RuntimeException("Negative elevation not supported");
+
+		final int k = (elevation * SLOPES) + slope.ordinal();
+		final TileShape[] cache = shapes;
+		if (k < cache.length) {
+			final TileShape r = cache[k];
+			if (r != null) return r;
+		}
+
+		return put(k, slope, elevation);
+	}
+
+	private static synchronized TileShape put(
+		final int k, final SlopeType slope, final int elevation
+	) {
+		TileShape[] cache = shapes;
+		if (k >= cache.length) {
+			cache = Arrays.copyOf(cache, Math.max(k + 1, cache.length * 2));
+		} else if (cache[k] != null) {
+			return cache[k];
+		} else {
+			cache = cache.clone();
+		}
+
+		final TileShape r = generate(slope, elevation);
+		cache[k] = r;
+		shapes = cache;
+		return r;
+	}
+
+	/**
+	 * Get the x coordinate of a vertex.
+	 * */
+	public double x(final int i) {
+		return xs[i];
+	}
+
+	/**
+	 * Get the y coordinate of a vertex.
+	 * */
+	public double y(final int i) {
+		return ys[i];
+	}
+
+	/**
+	 * Fill this shape with the current fill paint.
+	 * */
+	public void fill(final GraphicsContext cx) {
+		cx.fillPolygon(xs, ys, n);
+	}
+
+	/**
+	 * Start a new path on a graphics context, with the outline of this shape.
+	 * */
+	public void tracePath(final GraphicsContext cx) {
+		cx.beginPath();
+		cx.moveTo(xs[0], ys[0]);
+		for (int i = 1; i < n; i++) cx.lineTo(xs[i], ys[i]);
+		cx.closePath();
+	}
+
+	/**
+	 * Make a new polygon node with this shape.
+	 * */
+	public Polygon toPolygon() {
+		final double[] pts = new double[n * 2];
+		for (int i = 0; i < n; i++) {
+			pts[i * 2] = xs[i];
+			pts[(i * 2) + 1] = ys[i];
+		}
+
+		return new Polygon(pts);
+	}
+
+	private static TileShape generate(
+		final SlopeType slope, final int elevation
+	) {
+		final double extension = (TILEH * ((double) elevation)) / 2;
+		switch (slope) {
+			case NONE:
+				if (elevation == 0) {
+					return new TileShape(
+						new double[] {TILEW / 2, TILEW + 4, TILEW / 2, -4},
+						new double[] {-2, TILEH / 2, TILEH + 2, TILEH / 2});
+				} else {
+					return new TileShape(
+						new double[] {TILEW / 2, TILEW + 4, TILEW + 4, TILEW / 2, -4, -4},
+						new double[] {
+							-2,
+							 TILEH / 2,
+							(TILEH / 2) + extension + 2,
+							      TILEH + extension + 2,
+							(TILEH / 2) + extension + 2,
+							 TILEH / 2});
+				}
+			case N:
+				return new TileShape(
+					new double[] {-4, TILEW / 2, TILEW + 4, TILEW + 4, TILEW / 2, -4},
+					new double[] {
+						    (TILEH / 2) + 2,
+						0 - (TILEH / 2) - 2,
+						0,
+						(TILEH / 2) + extension + 2,
+						      TILEH + extension + 4,
+						(TILEH / 2) + extension + 2});
+			case E:
+				return new TileShape(
+					new double[] {-4, TILEW / 2, TILEW + 4, TILEW + 4, TILEW / 2, -4},
+					new double[] {
+						(TILEH / 2) + 2,
+						-2,
+						-2,
+						(TILEH / 2) + extension + 2,
+						      TILEH + extension + 2,
+						(TILEH / 2) + extension + 2});
+			case S:
+				return new TileShape(
+					new double[] {-4, TILEW / 2, TILEW + 4, TILEW + 4, TILEW / 2, -4},
+					new double[] {
+						-2,
+						-2,
+						(TILEH / 2) + 2,
+						(TILEH / 2) + extension + 2,
+						      TILEH + extension + 2,
+						(TILEH / 2) + extension + 2});
+			case W:
+				return new TileShape(
+					new double[] {-4, TILEW / 2, TILEW + 4, TILEW + 4, TILEW / 2, -4},
+					new double[] {
+						0,
+						0 - (TILEH / 2) - 2,
+						    (TILEH / 2) + 2,
+						(TILEH / 2) + extension + 2,
+						      TILEH + extension + 4,
+						(TILEH / 2) + extension + 2});
+			default: throw new RuntimeException(
+				"Invalid slope type. This cannot happen");
+		}
+	}
+}
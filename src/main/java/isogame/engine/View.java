@@ -21,7 +21,9 @@ package isogame.engine;
 import java.util.EmptyStackException;
 import java.util.Stack;
 import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleObjectProperty;
 import javafx.geometry.Point2D;
 import javafx.geometry.Rectangle2D;
 import javafx.scene.layout.Pane;
@@ -32,6 +34,8 @@ import javafx.scene.transform.NonInvertibleTransformException;
 import javafx.scene.transform.Translate;
 import static isogame.GlobalConstants.ISO_VIEWPORTH;
 import static isogame.GlobalConstants.ISO_VIEWPORTW;
+import static isogame.GlobalConstants.MAX_ZOOM;
+import static isogame.GlobalConstants.MIN_ZOOM;
 import static isogame.GlobalConstants.TILEH;
 import static isogame.GlobalConstants.TILEW;
 
@@ -43,6 +47,10 @@ public class View extends Pane {
 	private double x;
 	private double y;
 
+	// The zoom factor.  At zoom 1, ISO_VIEWPORTW by ISO_VIEWPORTH of iso space
+	// fills the viewport.  Smaller values zoom out.
+	private double zoom = 1;
+
 	// letterboxing coordinates
 	private double lx;
 	private double ly;
@@ -52,14 +60,40 @@ public class View extends Pane {
 	private double viewportH;
 
 	final private Pane innerPane = new Pane();
+	private StageRenderer renderer = new SceneGraphRenderer();
 
 	final public BooleanProperty isDebug = new SimpleBooleanProperty(false);
 
+	/**
+	 * If set, only tiles and sprites near the viewport are kept in the scene
+	 * graph.
+	 * */
+	final public BooleanProperty cullOffscreen = new SimpleBooleanProperty(false);
+
+	/**
+	 * If set, flat ground tiles are baked into large images instead of having
+	 * their own nodes in the scene graph.
+	 * */
+	final public BooleanProperty bakeTerrain = new SimpleBooleanProperty(false);
+
+	/**
+	 * How much of the scene graph to keep for other camera angles, trading
+	 * memory for faster rotation.
+	 * */
+	final public ObjectProperty<RotationCache> rotationCache =
+		new SimpleObjectProperty<>(RotationCache.NONE);
+
+	/**
+	 * Timings and counts for each frame.  Disabled by default.
+	 * */
+	final public FrameMetrics metrics = new FrameMetrics();
+
 	/**
 	 * Create a view with an initial viewport.
 	 * */
 	public View(final int w, final int h) {
 		this.getChildren().add(innerPane);
+		innerPane.getChildren().add(renderer.getNode());
 
 		innerPane.setFocusTraversable(false);
 		//innerPane.setMouseTransparent(true);
@@ -72,6 +106,11 @@ public class View extends Pane {
 		lx = 0;
 		ly = 0;
 
+		isDebug.addListener(o -> invalidate());
+		cullOffscreen.addListener(o -> invalidate());
+		bakeTerrain.addListener(o -> invalidate());
+		rotationCache.addListener(o -> invalidate());
+
 		widthProperty().addListener((obs, w0, w1) -> {
 			setViewport(w1.intValue(), (int) getHeight());
 		});
@@ -136,8 +175,8 @@ public class View extends Pane {
 
 	public void centreOnTile(final Stage stage, final MapPoint pos) {
 		final Point2D centre = stage.terrain.toIsoCoord(pos, angle);
-		x = centre.getX() - ((ISO_VIEWPORTW - TILEW) / 2.0);
-		y = centre.getY() - ((ISO_VIEWPORTH - TILEH) / 2.0);
+		x = centre.getX() - (((ISO_VIEWPORTW / zoom) - TILEW) / 2.0);
+		y = centre.getY() - (((ISO_VIEWPORTH / zoom) - TILEH) / 2.0);
 		updateScreenTransform();
 	}
 
@@ -163,10 +202,38 @@ public class View extends Pane {
 
 	public void rotateLeft() {
 		angle = angle.nextClockwise();
+		invalidate();
 	}
 
 	public void rotateRight() {
 		angle = angle.nextAnticlockwise();
+		invalidate();
+	}
+
+	/**
+	 * Zoom the view, keeping the centre of the view in the same place.
+	 * @param zoom The new zoom factor.  Smaller values zoom out.  This is
+	 * clamped to the range MIN_ZOOM to MAX_ZOOM.
+	 * */
+	public void setZoom(final double zoom) {
+		final double z = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+		final double cx = x + (ISO_VIEWPORTW / this.zoom / 2.0);
+		final double cy = y + (ISO_VIEWPORTH / this.zoom / 2.0);
+		this.zoom = z;
+		x = cx - (ISO_VIEWPORTW / z / 2.0);
+		y = cy - (ISO_VIEWPORTH / z / 2.0);
+		updateScreenTransform();
+	}
+
+	public double getZoom() {
+		return zoom;
+	}
+
+	/**
+	 * Get the mipmap level appropriate for the current zoom factor.
+	 * */
+	public int getMipLevel() {
+		return MipMap.levelFor(zoom);
 	}
 
 	private final static int overscroll = 3;
@@ -176,11 +243,16 @@ public class View extends Pane {
 		final Point2D pb = stage.terrain.toIsoCoord(stage.terrain.getBottom(angle), angle);
 		final Point2D pl = stage.terrain.toIsoCoord(stage.terrain.getLeft(angle), angle);
 		final Point2D pr = stage.terrain.toIsoCoord(stage.terrain.getRight(angle), angle);
+		final double w =
+			pr.subtract(pl).getX() + (overscroll * TILEW * 2) - (ISO_VIEWPORTW / zoom);
+		final double h =
+			pb.subtract(pt).getY() + (overscroll * TILEH * 2) - (ISO_VIEWPORTH / zoom);
+
+		// if the view is bigger than the map, keep the map in the middle
 		return new Rectangle2D(
-			pl.getX() - (overscroll * TILEW),
-			pt.getY() - (overscroll * TILEH),
-			pr.subtract(pl).getX() + (overscroll * TILEW * 2) - ISO_VIEWPORTW,
-			pb.subtract(pt).getY() + (overscroll * TILEH * 2) - ISO_VIEWPORTH);
+			pl.getX() - (overscroll * TILEW) + Math.min(0, w / 2),
+			pt.getY() - (overscroll * TILEH) + Math.min(0, h / 2),
+			Math.max(0, w), Math.max(0, h));
 	}
 
 	public CameraAngle getCameraAngle() {
@@ -188,6 +260,7 @@ public class View extends Pane {
 	}
 
 	public void setScrollPos(final Point2D p) {
+		if (p.getX() != x || p.getY() != y) invalidate();
 		this.x = p.getX();
 		this.y = p.getY();
 
@@ -235,19 +308,61 @@ public class View extends Pane {
 		screenTransform = new Affine();
 		screenTransform.appendTranslation(lx, ly);
 		screenTransform.appendScale(
-			viewportW / ISO_VIEWPORTW, viewportH / ISO_VIEWPORTH);
+			zoom * viewportW / ISO_VIEWPORTW, zoom * viewportH / ISO_VIEWPORTH);
 		
 		totalScreenTransform = screenTransform.clone();
 		totalScreenTransform.appendTranslation(-x, -y);
 
+		invalidate();
 		innerPane.getTransforms().clear();
 		innerPane.getTransforms().addAll(screenTransform, scrollTransform);
 		scrollTransform.setX(-x);
 		scrollTransform.setY(-y);
 	}
 
+	/**
+	 * Get the area of iso space that is currently visible.
+	 * */
+	public Rectangle2D getVisibleArea() {
+		return new Rectangle2D(x, y, ISO_VIEWPORTW / zoom, ISO_VIEWPORTH / zoom);
+	}
+
+	/**
+	 * Change the renderer.
+	 * */
+	public void setRenderer(final StageRenderer renderer) {
+		this.renderer = renderer;
+		innerPane.getChildren().setAll(renderer.getNode());
+		invalidate();
+	}
+
+	public StageRenderer getRenderer() {
+		return renderer;
+	}
+
+	private boolean dirty = true;
+
+	/**
+	 * Force the view to be redrawn on the next update, even if the stage hasn't
+	 * changed.
+	 * */
+	public void invalidate() {
+		dirty = true;
+	}
+
+	/**
+	 * Determine if anything has changed that requires a new frame.
+	 * @param t The current timestamp in nanoseconds
+	 * */
+	public boolean needsUpdate(final long t, final Stage stage) {
+		return dirty || stage.needsUpdate(t);
+	}
+
 	public void update(final long t, final Stage stage) {
-		stage.update(innerPane.getChildren(), isDebug, t, angle);
+		dirty = false;
+		metrics.beginFrame();
+		renderer.render(stage, this, t);
+		metrics.endFrame();
 	}
 }
 